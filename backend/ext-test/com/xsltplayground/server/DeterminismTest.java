@@ -0,0 +1,56 @@
+package com.xsltplayground.server;
+
+/**
+ * Which stylesheets {@link Determinism} lets the result cache keep. Plain
+ * {@code main}, no test framework: the daemons are built with javac alone
+ * (see the Dockerfile), and {@code make backend-test} runs this the same way.
+ */
+public final class DeterminismTest {
+
+    private static int failures;
+
+    public static void main(String[] args) {
+        deterministic("plain templates",
+                "<xsl:template match=\"/\"><out><xsl:value-of select=\"sum(//n)\"/></out></xsl:template>");
+        deterministic("a schema-aware cast, no schema import",
+                "<xsl:value-of select=\"xs:date('2026-01-01')\"/>");
+
+        volatileText("json-doc", "<xsl:variable name=\"j\" select=\"json-doc('data.json')\"/>");
+        volatileText("fn:transform",
+                "<xsl:sequence select=\"fn:transform(map{'stylesheet-location':'x.xsl'})\"/>");
+        volatileText("xsl:source-document",
+                "<xsl:source-document streamable=\"no\" href=\"in.xml\"><xsl:copy-of select=\".\"/></xsl:source-document>");
+        volatileText("xsl:merge-source",
+                "<xsl:merge><xsl:merge-source for-each-source=\"$uris\" select=\"*\"><xsl:merge-key select=\"@k\"/></xsl:merge-source></xsl:merge>");
+        volatileText("xsl:for-each-source", "<xsl:for-each-source href=\"in.xml\"/>");
+        volatileText("xsl:import-schema",
+                "<xsl:import-schema namespace=\"urn:x\" schema-location=\"x.xsd\"/>");
+        volatileText("xsl:include with href first", "<xsl:include href=\"common.xsl\"/>");
+        volatileText("xsl:import with href after another attribute",
+                "<xsl:import use-when=\"true()\" href=\"common.xsl\"/>");
+        volatileText("xsl:include over several lines",
+                "<xsl:include\n    use-when=\"true()\"\n    href=\"common.xsl\"/>");
+        volatileText("another prefix", "<x:import href=\"common.xsl\"/>");
+
+        if (failures > 0) {
+            throw new AssertionError(failures + " Determinism check(s) failed");
+        }
+        System.out.println("DeterminismTest: ok");
+    }
+
+    private static void deterministic(String what, String xslt) {
+        check(what, xslt, true);
+    }
+
+    private static void volatileText(String what, String xslt) {
+        check(what, xslt, false);
+    }
+
+    private static void check(String what, String xslt, boolean expected) {
+        if (Determinism.isDeterministic(xslt) != expected) {
+            failures++;
+            System.err.println("FAIL " + what + ": expected "
+                    + (expected ? "deterministic" : "not deterministic") + " for " + xslt);
+        }
+    }
+}
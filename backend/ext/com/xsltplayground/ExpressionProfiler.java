@@ -0,0 +1,447 @@
+package com.xsltplayground;
+
+import com.xsltplayground.server.TraceSink;
+import net.sf.saxon.Controller;
+import net.sf.saxon.expr.ContextItemExpression;
+import net.sf.saxon.expr.Expression;
+import net.sf.saxon.expr.FilterExpression;
+import net.sf.saxon.expr.Literal;
+import net.sf.saxon.expr.SlashExpression;
+import net.sf.saxon.expr.VariableReference;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.expr.elab.BooleanEvaluator;
+import net.sf.saxon.expr.elab.Elaborator;
+import net.sf.saxon.expr.elab.ItemEvaluator;
+import net.sf.saxon.expr.elab.PullEvaluator;
+import net.sf.saxon.expr.elab.PushEvaluator;
+import net.sf.saxon.expr.elab.StringEvaluator;
+import net.sf.saxon.expr.elab.UnicodeStringEvaluator;
+import net.sf.saxon.expr.elab.UpdateEvaluator;
+import net.sf.saxon.expr.instruct.TraceExpression;
+import net.sf.saxon.expr.parser.ExpressionTool;
+import net.sf.saxon.expr.parser.RebindingMap;
+import net.sf.saxon.expr.parser.XPathParser;
+import net.sf.saxon.lib.TraceListener;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.s9api.Location;
+import net.sf.saxon.s9api.XsltCompiler;
+import net.sf.saxon.trace.XSLTTraceCodeInjector;
+import net.sf.saxon.tree.AttributeLocation;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Times the XPath expressions of a traced stylesheet. Saxon's trace injector
+ * stops at instructions, but a slow stylesheet is usually slow because of one
+ * {@code //} path or one predicate inside a {@code select} or {@code test}.
+ * {@link #install} swaps in an injector that also wraps the expressions worth
+ * looking at (each attribute's XPath, and the paths and filters within it) in
+ * a {@link Timed} node, whose elaborator times every evaluation — including,
+ * for a lazily consumed sequence, the time spent pulling each item.
+ *
+ * The times go to the {@link Profile} of the run's trace listener, which
+ * reports the most expensive expressions to its trace sink after the
+ * transform: count, total time, line, column, where and the expression. A
+ * total includes the expressions nested in it, so a path and its predicate
+ * can both rank.
+ */
+final class ExpressionProfiler {
+
+    static final int TOP_N = 25;
+    private static final int MAX_TEXT = 160;
+
+    private ExpressionProfiler() {
+    }
+
+    /** Implemented by the trace listener that collects a run's expression times. */
+    interface Profiled {
+        Profile expressionProfile();
+    }
+
+    /**
+     * Replaces the injector {@link XsltCompiler#setCompileWithTracing} set up
+     * with one that also times expressions. False, leaving instruction
+     * tracing as it was, if this Saxon does not allow it.
+     */
+    static boolean install(XsltCompiler compiler) {
+        try {
+            compiler.getUnderlyingCompilerInfo().setCodeInjector(new Injector());
+            return true;
+        } catch (Throwable ignored) {
+            return false;
+        }
+    }
+
+    static final class Injector extends XSLTTraceCodeInjector {
+        @Override
+        public Expression inject(Expression exp) {
+            Expression injected = super.inject(exp);
+            if (injected != exp || !isProfiled(exp)) {
+                return injected;
+            }
+            Timed timed = new Timed(exp);
+            ExpressionTool.copyLocationInfo(exp, timed);
+            return timed;
+        }
+
+        private static boolean isProfiled(Expression exp) {
+            if (exp.isInstruction() || exp instanceof TraceExpression || exp instanceof Literal
+                    || exp instanceof VariableReference || exp instanceof ContextItemExpression) {
+                return false;
+            }
+            if (!(exp.getLocation() instanceof XPathParser.NestedLocation)) {
+                return false;
+            }
+            Expression parent = exp.getParentExpression();
+            if (exp instanceof SlashExpression) {
+                // a/b/c is a chain of slashes; only the whole path is of interest.
+                return !(parent instanceof SlashExpression);
+            }
+            if (exp instanceof FilterExpression) {
+                // a step of a path is in the path's time already
+                return !(parent instanceof SlashExpression) && !(parent instanceof FilterExpression);
+            }
+            if (parent instanceof FilterExpression && ((FilterExpression) parent).getFilter() == exp) {
+                // A predicate, once per item it is tested on.
+                return true;
+            }
+            // Otherwise only the attribute's whole expression.
+            return parent == null || parent.isInstruction()
+                    || !(parent.getLocation() instanceof XPathParser.NestedLocation);
+        }
+    }
+
+    /**
+     * An expression under measurement. A TraceExpression so that Saxon's
+     * rewrites and the trace injector treat it as the wrapper it is, but it
+     * raises no trace events of its own. The column is within the XPath
+     * text of the attribute, the line that of its element.
+     */
+    static final class Timed extends TraceExpression {
+        final String where;
+        final String text;
+        final int line;
+        final int column;
+        // The run being profiled and this expression's entry in it, so that
+        // an evaluation does not look itself up. A traced executable is
+        // compiled for one run, so these are never contended.
+        private Profile profile;
+        private Stat stat;
+
+        Timed(Expression child) {
+            super(child);
+            Location location = child.getLocation();
+            this.line = location.getLineNumber();
+            this.column = location.getColumnNumber();
+            this.where = describeAttribute(location);
+            this.text = describeExpression(child);
+        }
+
+        private Timed(Expression child, Timed original) {
+            super(child);
+            this.line = original.line;
+            this.column = original.column;
+            this.where = original.where;
+            this.text = original.text;
+        }
+
+        @Override
+        public Expression copy(RebindingMap rebindings) {
+            Timed copy = new Timed(getChild().copy(rebindings), this);
+            ExpressionTool.copyLocationInfo(this, copy);
+            return copy;
+        }
+
+        @Override
+        public Elaborator getElaborator() {
+            return new TimedElaborator();
+        }
+
+        @Override
+        public String toShortString() {
+            return getChild().toShortString();
+        }
+    }
+
+    private static String describeAttribute(Location location) {
+        if (location instanceof XPathParser.NestedLocation) {
+            Location outer = ((XPathParser.NestedLocation) location).getContainingLocation();
+            if (outer instanceof AttributeLocation) {
+                AttributeLocation attribute = (AttributeLocation) outer;
+                return attribute.getElementName().getDisplayName()
+                        + "/@" + attribute.getAttributeName().getDisplayName();
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Saxon's abbreviated rendering of the compiled expression: the source
+     * text is gone by the time code is injected, and the full rendering
+     * spells out every axis and type.
+     */
+    private static String describeExpression(Expression exp) {
+        String text = exp.toShortString().replace('\r', ' ').replace('\n', ' ').trim();
+        return text.length() > MAX_TEXT ? text.substring(0, MAX_TEXT - 1) + "…" : text;
+    }
+
+    private static final class TimedElaborator extends Elaborator {
+
+        private Timed timed() {
+            return (Timed) getExpression();
+        }
+
+        private Elaborator child() {
+            return timed().getChild().makeElaborator();
+        }
+
+        @Override
+        public PullEvaluator elaborateForPull() {
+            Timed timed = timed();
+            PullEvaluator child = child().elaborateForPull();
+            return context -> {
+                Profile profile = Profile.of(context);
+                if (profile == null) {
+                    return child.iterate(context);
+                }
+                Stat stat = profile.stat(timed);
+                stat.count++;
+                long start = System.nanoTime();
+                long overhead = profile.overhead();
+                SequenceIterator items = child.iterate(context);
+                profile.add(stat, start, overhead);
+                return new TimedIterator(items, profile, stat);
+            };
+        }
+
+        @Override
+        public PushEvaluator elaborateForPush() {
+            Timed timed = timed();
+            PushEvaluator child = child().elaborateForPush();
+            return (output, context) -> {
+                Profile profile = Profile.of(context);
+                if (profile == null) {
+                    return child.processLeavingTail(output, context);
+                }
+                Stat stat = profile.stat(timed);
+                stat.count++;
+                long start = System.nanoTime();
+                long overhead = profile.overhead();
+                try {
+                    Expression.dispatchTailCall(child.processLeavingTail(output, context));
+                } finally {
+                    profile.add(stat, start, overhead);
+                }
+                return null;
+            };
+        }
+
+        @Override
+        public ItemEvaluator elaborateForItem() {
+            Timed timed = timed();
+            ItemEvaluator child = child().elaborateForItem();
+            return context -> {
+                Profile profile = Profile.of(context);
+                if (profile == null) {
+                    return child.eval(context);
+                }
+                Stat stat = profile.stat(timed);
+                stat.count++;
+                long start = System.nanoTime();
+                long overhead = profile.overhead();
+                try {
+                    return child.eval(context);
+                } finally {
+                    profile.add(stat, start, overhead);
+                }
+            };
+        }
+
+        @Override
+        public BooleanEvaluator elaborateForBoolean() {
+            Timed timed = timed();
+            BooleanEvaluator child = child().elaborateForBoolean();
+            return context -> {
+                Profile profile = Profile.of(context);
+                if (profile == null) {
+                    return child.eval(context);
+                }
+                Stat stat = profile.stat(timed);
+                stat.count++;
+                long start = System.nanoTime();
+                long overhead = profile.overhead();
+                try {
+                    return child.eval(context);
+                } finally {
+                    profile.add(stat, start, overhead);
+                }
+            };
+        }
+
+        @Override
+        public UnicodeStringEvaluator elaborateForUnicodeString(boolean zeroLengthWhenAbsent) {
+            Timed timed = timed();
+            UnicodeStringEvaluator child = child().elaborateForUnicodeString(zeroLengthWhenAbsent);
+            return context -> {
+                Profile profile = Profile.of(context);
+                if (profile == null) {
+                    return child.eval(context);
+                }
+                Stat stat = profile.stat(timed);
+                stat.count++;
+                long start = System.nanoTime();
+                long overhead = profile.overhead();
+                try {
+                    return child.eval(context);
+                } finally {
+                    profile.add(stat, start, overhead);
+                }
+            };
+        }
+
+        @Override
+        public StringEvaluator elaborateForString(boolean zeroLengthWhenAbsent) {
+            Timed timed = timed();
+            StringEvaluator child = child().elaborateForString(zeroLengthWhenAbsent);
+            return context -> {
+                Profile profile = Profile.of(context);
+                if (profile == null) {
+                    return child.eval(context);
+                }
+                Stat stat = profile.stat(timed);
+                stat.count++;
+                long start = System.nanoTime();
+                long overhead = profile.overhead();
+                try {
+                    return child.eval(context);
+                } finally {
+                    profile.add(stat, start, overhead);
+                }
+            };
+        }
+
+        @Override
+        public UpdateEvaluator elaborateForUpdate() {
+            return child().elaborateForUpdate();
+        }
+    }
+
+    /** Charges the time spent producing each item to the expression. */
+    private static final class TimedIterator implements SequenceIterator {
+        private final SequenceIterator items;
+        private final Profile profile;
+        private final Stat stat;
+
+        TimedIterator(SequenceIterator items, Profile profile, Stat stat) {
+            this.items = items;
+            this.profile = profile;
+            this.stat = stat;
+        }
+
+        @Override
+        public Item next() {
+            long start = System.nanoTime();
+            long overhead = profile.overhead();
+            try {
+                return items.next();
+            } finally {
+                profile.add(stat, start, overhead);
+            }
+        }
+
+        @Override
+        public void close() {
+            items.close();
+        }
+    }
+
+    private static final class Stat {
+        final Timed expression;
+        long count;
+        long nanos;
+
+        Stat(Timed expression) {
+            this.expression = expression;
+        }
+    }
+
+    /**
+     * One run's expression times. Time the trace listener spends capturing
+     * variable values (its {@code overhead}) is taken out, as it is for
+     * instructions.
+     */
+    static final class Profile {
+        private final List<Stat> stats = new ArrayList<>();
+        private final LongSupplier overhead;
+
+        Profile(LongSupplier overhead) {
+            this.overhead = overhead;
+        }
+
+        static Profile of(XPathContext context) {
+            Controller controller = context.getController();
+            TraceListener listener = controller != null ? controller.getTraceListener() : null;
+            return listener instanceof Profiled ? ((Profiled) listener).expressionProfile() : null;
+        }
+
+        long overhead() {
+            return overhead.getAsLong();
+        }
+
+        Stat stat(Timed expression) {
+            if (expression.profile != this) {
+                expression.profile = this;
+                expression.stat = new Stat(expression);
+                stats.add(expression.stat);
+            }
+            return expression.stat;
+        }
+
+        void add(Stat stat, long start, long overheadAtStart) {
+            stat.nanos += System.nanoTime() - start - (overhead() - overheadAtStart);
+        }
+
+        /**
+         * Reports the TOP_N most expensive expressions, and forgets them.
+         * Copies of one expression (inlined functions and templates) are
+         * reported as one.
+         */
+        void emit(TraceSink sink) {
+            try {
+                Map<String, Stat> merged = new LinkedHashMap<>();
+                for (Stat s : stats) {
+                    Timed e = s.expression;
+                    String key = e.line + "\u0001" + e.column + "\u0001" + e.where + "\u0001" + e.text;
+                    Stat total = merged.get(key);
+                    if (total == null) {
+                        total = new Stat(e);
+                        merged.put(key, total);
+                    }
+                    total.count += s.count;
+                    total.nanos += s.nanos;
+                }
+                List<Stat> entries = new ArrayList<>(merged.values());
+                entries.sort((a, b) -> Long.compare(b.nanos, a.nanos));
+                int limit = Math.min(entries.size(), TOP_N);
+                for (int i = 0; i < limit; i++) {
+                    Stat s = entries.get(i);
+                    Timed e = s.expression;
+                    sink.expression(s.count, Math.max(0, s.nanos / 1000), e.line, e.column, e.where, e.text);
+                }
+            } catch (Throwable ignored) {
+                // Never let profiling break the run.
+            } finally {
+                for (Stat s : stats) {
+                    s.expression.profile = null;
+                    s.expression.stat = null;
+                }
+                stats.clear();
+            }
+        }
+    }
+}
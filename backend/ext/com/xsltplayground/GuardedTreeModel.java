@@ -0,0 +1,50 @@
+package com.xsltplayground;
+
+import com.xsltplayground.server.TransformServer;
+import net.sf.saxon.event.Builder;
+import net.sf.saxon.event.PipelineConfiguration;
+import net.sf.saxon.om.TreeModel;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.tiny.TinyBuilder;
+
+/**
+ * The tiny tree, as Saxon builds every temporary tree of a transform
+ * (variables with content, document nodes, copies), checking at each
+ * element whether the heap guard has aborted the request. A run that fills
+ * the heap with temporary trees reads no input and writes no output while
+ * it does, so the guarded reader and writer alone would never stop it.
+ *
+ * Set on the transformer's controller for one run; the same class builds
+ * against Saxon 12 and 9.6, so both daemons use it.
+ */
+final class GuardedTreeModel extends TreeModel {
+
+    private final TransformServer.Request req;
+
+    GuardedTreeModel(TransformServer.Request req) {
+        this.req = req;
+    }
+
+    @Override
+    public Builder makeBuilder(PipelineConfiguration pipe) {
+        return new TinyBuilder(pipe) {
+            @Override
+            public void endElement() throws XPathException {
+                if (req.isAborted()) {
+                    throw new XPathException("transform aborted: the daemon is low on memory");
+                }
+                super.endElement();
+            }
+        };
+    }
+
+    @Override
+    public int getSymbolicValue() {
+        return TreeModel.TINY_TREE.getSymbolicValue();
+    }
+
+    @Override
+    public String getName() {
+        return TreeModel.TINY_TREE.getName();
+    }
+}
@@ -1,7 +1,16 @@
 package com.xsltplayground;
 
 import com.xsltplayground.ext.CustomFunctions;
+import com.xsltplayground.server.AsyncTraceSink;
+import com.xsltplayground.server.TextTraceSink;
+import com.xsltplayground.server.TraceBudget;
+import com.xsltplayground.server.TraceSampling;
+import com.xsltplayground.server.TraceSink;
+import com.xsltplayground.server.TraceWatch;
 import net.sf.saxon.Controller;
+import net.sf.saxon.expr.Locatable;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.lib.TraceListener;
 import net.sf.saxon.lib.ErrorReporter;
 import net.sf.saxon.om.GroundedValue;
 import net.sf.saxon.om.Item;
@@ -10,6 +19,7 @@ import net.sf.saxon.om.Sequence;
 import net.sf.saxon.om.SequenceIterator;
 import net.sf.saxon.om.StandardNames;
 import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.trace.Traceable;
 import net.sf.saxon.s9api.*;
 import net.sf.saxon.lib.FeatureKeys;
 import net.sf.saxon.s9api.QName;
@@ -19,21 +29,35 @@ import net.sf.saxon.value.SequenceExtent;
 
 import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.StringWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Deque;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
 import java.util.Set;
 import java.util.IdentityHashMap;
 import java.util.concurrent.ConcurrentHashMap;
@@ -146,39 +170,37 @@ public class Runner {
             }
             XsltTransformer transformer = exec.load();
 
-            // If a trace output path is provided, tee System.err to that file so that
-            // xsl:message (and other diagnostics) also land in the trace file.
-            java.io.PrintStream originalErr = System.err;
-            java.io.FileOutputStream traceFos = null;
-            java.io.PrintStream tracePs = null;
-            java.io.PrintStream teeErr = null;
+            // The trace goes to standard error and, if a trace output path is provided,
+            // to that file too. Nothing flushes per line: the trace writer flushes
+            // whenever it catches up.
+            PrintStream originalErr = System.err;
+            OutputStream traceFile = null;
+            OutputStream traceStream = new BufferedOutputStream(new FileOutputStream(FileDescriptor.err), 1 << 16);
             if (traceOutPath != null && !traceOutPath.isEmpty()) {
                 try {
-                    traceFos = new java.io.FileOutputStream(new File(traceOutPath), true);
-                    tracePs = new java.io.PrintStream(traceFos, true, "UTF-8");
-                    final java.io.PrintStream err1 = originalErr;
-                    final java.io.PrintStream err2 = tracePs;
-                    java.io.OutputStream tee = new java.io.OutputStream() {
-                        @Override public void write(int b) throws java.io.IOException { err1.write(b); err2.write(b); }
-                        @Override public void write(byte[] b) throws java.io.IOException { err1.write(b); err2.write(b); }
-                        @Override public void write(byte[] b, int off, int len) throws java.io.IOException { err1.write(b, off, len); err2.write(b, off, len); }
-                        @Override public void flush() throws java.io.IOException { err1.flush(); err2.flush(); }
-                        @Override public void close() throws java.io.IOException { err2.close(); err1.flush(); }
-                    };
-                    teeErr = new java.io.PrintStream(tee, true, "UTF-8");
-                    System.setErr(teeErr);
+                    traceFile = new BufferedOutputStream(new FileOutputStream(new File(traceOutPath), true), 1 << 16);
+                    traceStream = new TeeOutputStream(traceStream, traceFile);
                 } catch (Exception e) {
                     // If we fail to set up the trace file, continue without it
                     e.printStackTrace(originalErr);
                 }
             }
+            PrintStream traceOut = new PrintStream(traceStream, false, "UTF-8");
 
             boolean traceActive = trace && instrumentationEnabled;
             if (TRACE_DEBUG) {
                 System.err.println("TRACE_DEBUG traceActive=" + traceActive);
             }
+            AsyncTraceSink traceSink = null;
+            Runnable flushProfile = null;
             if (traceActive) {
-                attachTraceListener(proc, transformer, System.err);
+                traceSink = new AsyncTraceSink(new TextTraceSink(traceOut), traceOut);
+                flushProfile = attachTraceListener(proc, transformer, traceSink, null, null);
+                // Diagnostics written to System.err join the trace as messages, in
+                // order with it, rather than racing the writer for the same stream.
+                System.setErr(new PrintStream(new MessageStream(traceSink), true, "UTF-8"));
+            } else if (traceFile != null) {
+                System.setErr(new PrintStream(traceStream, true, "UTF-8"));
             }
 
             if (sourcePath != null && !sourcePath.isEmpty()) {
@@ -209,18 +231,20 @@ public class Runner {
             transformer.setDestination(ser);
             try {
                 transformer.transform();
-            } finally {
-                // Restore System.err and close the trace stream if used
-                if (teeErr != null) {
-                    System.setErr(originalErr);
-                    try { teeErr.flush(); } catch (Exception ignored) {}
+                if (flushProfile != null) {
+                    flushProfile.run();
                 }
-                if (tracePs != null) {
-                    try { tracePs.flush(); } catch (Exception ignored) {}
-                    try { tracePs.close(); } catch (Exception ignored) {}
+            } finally {
+                // Let the trace writer catch up, then restore System.err and close the trace file
+                PrintStream redirectedErr = System.err;
+                System.setErr(originalErr);
+                if (traceSink != null) {
+                    redirectedErr.close();
+                    traceSink.close();
                 }
-                if (traceFos != null) {
-                    try { traceFos.close(); } catch (Exception ignored) {}
+                traceOut.flush();
+                if (traceFile != null) {
+                    try { traceFile.close(); } catch (Exception ignored) {}
                 }
             }
         } catch (Exception e) {
@@ -232,6 +256,7 @@ public class Runner {
     static boolean enableCompileWithTracing(XsltCompiler compiler) {
         try {
             compiler.setCompileWithTracing(true);
+            ExpressionProfiler.install(compiler);
             return true;
         } catch (Throwable primary) {
             try {
@@ -245,6 +270,80 @@ public class Runner {
         }
     }
 
+    /** Writes to both streams, a buffer at a time. */
+    private static final class TeeOutputStream extends OutputStream {
+        private final OutputStream first;
+        private final OutputStream second;
+
+        TeeOutputStream(OutputStream first, OutputStream second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            first.write(b);
+            second.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            first.write(b, off, len);
+            second.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            first.flush();
+            second.flush();
+        }
+    }
+
+    /** Hands what is written to it to a trace sink, a message per line. */
+    private static final class MessageStream extends OutputStream {
+        private final TraceSink sink;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        MessageStream(TraceSink sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public void write(int b) {
+            if (b == '\n') {
+                endLine();
+            } else {
+                line.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            int start = off;
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == '\n') {
+                    line.write(b, start, i - start);
+                    endLine();
+                    start = i + 1;
+                }
+            }
+            line.write(b, start, off + len - start);
+        }
+
+        @Override
+        public void close() {
+            if (line.size() > 0) {
+                endLine();
+            }
+        }
+
+        private void endLine() {
+            String text = line.toString(StandardCharsets.UTF_8);
+            sink.message(text.endsWith("\r") ? text.substring(0, text.length() - 1) : text);
+            line.reset();
+        }
+    }
+
     static final class DeduplicatingErrorReporter implements ErrorReporter {
         private final ErrorReporter downstream;
         private final Set<String> seen = ConcurrentHashMap.newKeySet();
@@ -305,8 +404,13 @@ public class Runner {
      * before the daemon reads the trace buffer, so the caller has to flush
      * explicitly once the transform is done — relying on close() silently lost
      * every hot spot.
+     *
+     * Captures only the variables {@code watch} selects, every variable if it
+     * is null; and of those only the evaluations {@code sampling} picks, or
+     * all of them if it is null.
      */
-    static Runnable attachTraceListener(Processor processor, XsltTransformer transformer, PrintStream sink) {
+    static Runnable attachTraceListener(Processor processor, XsltTransformer transformer, TraceSink sink,
+                                        TraceWatch watch, TraceSampling sampling) {
         try {
             Controller controller = transformer.getUnderlyingController();
             if (controller == null) {
@@ -314,7 +418,12 @@ public class Runner {
             }
             ClassLoader loader = controller.getClass().getClassLoader();
             Class<?> traceListenerClass = Class.forName("net.sf.saxon.lib.TraceListener", false, loader);
-            VariableTraceListenerProxy handler = new VariableTraceListenerProxy(processor, transformer, sink);
+            VariableTraceListener handler = new VariableTraceListener(processor, transformer, sink, watch, sampling);
+            if (traceListenerClass == TraceListener.class) {
+                // The Saxon this was compiled against: no proxy in the way of every event.
+                controller.addTraceListener(handler);
+                return handler::emitHotspots;
+            }
             Object listener = Proxy.newProxyInstance(loader, new Class<?>[]{traceListenerClass}, handler);
 
             if (!invokeTraceHook(controller, "addTraceListener", traceListenerClass, listener)) {
@@ -338,49 +447,394 @@ public class Runner {
         }
     }
 
-    private static final class VariableTraceListenerProxy implements InvocationHandler {
+    /**
+     * Saxon's accessors, looked up by name and argument types and kept per
+     * class as MethodHandles of one shape, (Object target, Object[] args)Object.
+     * Tracing probes every variable, on every iteration, for accessors whose
+     * names differ between Saxon versions and instruction kinds; resolving
+     * them each time (getMethod, a scan of getMethods() when that misses,
+     * setAccessible, Method.invoke) made traced loops orders of magnitude
+     * slower than the transform. Most probes miss, so misses are kept too.
+     */
+    static final class Reflection {
+        /** A cached miss. */
+        private static final Optional<MethodHandle> MISSING = Optional.empty();
+        private static final ClassValue<Map<Signature, Optional<MethodHandle>>> METHODS =
+                new ClassValue<Map<Signature, Optional<MethodHandle>>>() {
+                    @Override
+                    protected Map<Signature, Optional<MethodHandle>> computeValue(Class<?> type) {
+                        return new ConcurrentHashMap<>();
+                    }
+                };
+        private static final Map<String, Optional<Class<?>>> CLASSES = new ConcurrentHashMap<>();
+
+        private Reflection() {
+        }
+
+        private static final class Signature {
+            final String name;
+            final Class<?>[] parameterTypes;
+
+            Signature(String name, Class<?>[] parameterTypes) {
+                this.name = name;
+                this.parameterTypes = parameterTypes;
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                return o instanceof Signature && ((Signature) o).name.equals(name)
+                        && Arrays.equals(((Signature) o).parameterTypes, parameterTypes);
+            }
+
+            @Override
+            public int hashCode() {
+                return 31 * name.hashCode() + Arrays.hashCode(parameterTypes);
+            }
+        }
+
+        /**
+         * The public method of {@code type} called {@code name} that takes
+         * arguments of these types: the exact match if there is one, else the
+         * first whose parameters they can be passed to. Null if there is none.
+         */
+        static MethodHandle method(Class<?> type, String name, Class<?>... parameterTypes) {
+            return METHODS.get(type)
+                    .computeIfAbsent(new Signature(name, parameterTypes), sig -> resolve(type, sig))
+                    .orElse(null);
+        }
+
+        /** A public static method, taking a null target when called; null if there is none. */
+        static MethodHandle staticMethod(String className, String name, Class<?>... parameterTypes) {
+            try {
+                Method m = Class.forName(className).getMethod(name, parameterTypes);
+                return Modifier.isStatic(m.getModifiers()) ? adapt(m) : null;
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        /** Calls the no-argument method {@code name}; null if there is none or it failed. */
+        static Object call(Object target, String name) {
+            return target == null ? null : call(method(target.getClass(), name), target);
+        }
+
+        /** Calls a handle from this class; null if there is none or it failed. */
+        static Object call(MethodHandle handle, Object target, Object... args) {
+            if (handle == null) {
+                return null;
+            }
+            try {
+                return (Object) handle.invokeExact(target, args);
+            } catch (Throwable e) {
+                // As before with Method.invoke: a probe that throws is a probe that missed.
+                return null;
+            }
+        }
+
+        /** {@code Class.forName}, remembered, misses included; null if it is not there. */
+        static Class<?> classNamed(String className) {
+            return CLASSES.computeIfAbsent(className, n -> {
+                try {
+                    return Optional.of(Class.forName(n));
+                } catch (ReflectiveOperationException | LinkageError e) {
+                    return Optional.empty();
+                }
+            }).orElse(null);
+        }
+
+        private static Optional<MethodHandle> resolve(Class<?> type, Signature sig) {
+            Method found = null;
+            try {
+                found = type.getMethod(sig.name, sig.parameterTypes);
+            } catch (NoSuchMethodException | SecurityException ignored) {
+                // fall through to compatibility search
+            }
+            if (found == null) {
+                for (Method m : type.getMethods()) {
+                    if (m.getName().equals(sig.name) && m.getParameterCount() == sig.parameterTypes.length
+                            && accepts(m.getParameterTypes(), sig.parameterTypes)) {
+                        found = m;
+                        break;
+                    }
+                }
+            }
+            if (found == null || Modifier.isStatic(found.getModifiers())) {
+                return MISSING;
+            }
+            try {
+                return Optional.of(adapt(found));
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                return MISSING;
+            }
+        }
+
+        /** As (Object target, Object[] args)Object; a static method ignores the target. */
+        private static MethodHandle adapt(Method m) throws IllegalAccessException {
+            // Public methods of Saxon's non-public classes need this.
+            m.setAccessible(true);
+            MethodHandle handle = MethodHandles.lookup().unreflect(m);
+            if (Modifier.isStatic(m.getModifiers())) {
+                handle = MethodHandles.dropArguments(handle, 0, Object.class);
+            }
+            return handle.asType(MethodType.genericMethodType(m.getParameterCount() + 1))
+                    .asSpreader(Object[].class, m.getParameterCount());
+        }
+
+        private static boolean accepts(Class<?>[] targetParams, Class<?>[] requested) {
+            for (int i = 0; i < targetParams.length; i++) {
+                if (!isAssignable(targetParams[i], requested[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isAssignable(Class<?> targetType, Class<?> requestedType) {
+            if (requestedType == null || requestedType == Object.class) {
+                return true;
+            }
+            return primitiveToWrapper(targetType).isAssignableFrom(primitiveToWrapper(requestedType));
+        }
+
+        private static Class<?> primitiveToWrapper(Class<?> type) {
+            if (!type.isPrimitive()) {
+                return type;
+            }
+            if (type == boolean.class) return Boolean.class;
+            if (type == byte.class) return Byte.class;
+            if (type == short.class) return Short.class;
+            if (type == char.class) return Character.class;
+            if (type == int.class) return Integer.class;
+            if (type == long.class) return Long.class;
+            if (type == float.class) return Float.class;
+            if (type == double.class) return Double.class;
+            return type;
+        }
+    }
+
+    /**
+     * Reports variable values and counts executed constructs. Saxon 12, which
+     * this is compiled against, calls it as a {@link TraceListener}; any other
+     * Saxon on the controller's class path is served through a dynamic proxy
+     * ({@link #invoke}).
+     */
+    private static final class VariableTraceListener
+            implements TraceListener, InvocationHandler, ExpressionProfiler.Profiled {
+        private static final MethodHandle TO_GROUNDED_VALUE =
+                Reflection.staticMethod("net.sf.saxon.om.SequenceTool", "toGroundedValue", Sequence.class);
         private final Processor processor;
-        private final PrintStream out;
+        private final TraceSink sink;
         private final XsltTransformer transformer;
         private final Deque<Frame> stack = new ArrayDeque<>();
         private int debugCounter = 0;
+        // What to capture. Whether an instruction is a variable, and whether
+        // the watch names it or its line, is decided once per instruction:
+        // everything else then costs one identity lookup per event, and
+        // never reaches extractTraceValue. Variables watched only by the
+        // template they are in depend on `scopes`, the templates and
+        // functions now running: they are captured while the innermost one
+        // is a watched template, which is then the template that declares
+        // them, not one that merely applied or called theirs.
+        private final TraceWatch watch;
+        private final Map<Object, Byte> decisions = new IdentityHashMap<>();
+        private final Deque<Object> scopes = new ArrayDeque<>();
+        private static final byte IGNORED = 0;
+        private static final byte CAPTURED = 1;
+        private static final byte CAPTURED_IN_WATCHED_TEMPLATE = 2;
+        private static final byte WATCHED_TEMPLATE = 3;
+        private static final byte SCOPE = 4;
+        // Bounds what the captured values add to the trace, per value and per
+        // run; once the run's share is spent, capturing stops altogether.
+        private final TraceBudget budget = new TraceBudget();
+        // The profile is flushed by the daemon and again by close(); once is enough.
+        private boolean reported;
+        // Which evaluations of each variable (by name) to capture; null for
+        // all of them. One not sampled never reaches extractTraceValue: it is
+        // counted, and its value kept by reference in case it is the last.
+        // The random sample is seeded, so the same run samples the same way.
+        private final TraceSampling sampling;
+        private final Map<String, Samples> samples = new LinkedHashMap<>();
+        private final Map<Object, Integer> localSlots = new IdentityHashMap<>();
+        private final Random random = new Random(0x5eedL);
         // Execution counts per construct. Deliberately kept apart from `stack`:
         // that deque pairs enter/leave for variables and stays balanced only
-        // because both handlers filter on isVariable() identically. Counting
+        // because both handlers filter on captures() identically. Counting
         // must never push or pop it, or the variable values reported in the UI
         // would be attributed to the wrong frame.
-        private final Map<String, int[]> hotspots = new LinkedHashMap<>();
+        //
+        // Keyed on the instruction object itself, so that after an
+        // instruction's first event counting it is one identity lookup and an
+        // increment: its kind, label and line are resolved once, and
+        // instructions that are not counted get NOT_COUNTED so they are not
+        // classified again.
+        private final Map<Object, Hotspot> hotspots = new IdentityHashMap<>();
+        /** The counted ones, in the order first seen, which breaks ties in the report. */
+        private final List<Hotspot> counted = new ArrayList<>();
+        private static final Hotspot NOT_COUNTED = new Hotspot(null, null, -1);
         private static final int MAX_HOTSPOTS = 500;
-
-        VariableTraceListenerProxy(Processor processor, XsltTransformer transformer, PrintStream out) {
+        // Shadow call stack of the counted constructs now running, for their
+        // inclusive and self time, as parallel arrays so that entering and
+        // leaving allocate nothing. Time the listener spends capturing
+        // variable values is tracing's own cost, not the stylesheet's, and is
+        // taken out of every frame it falls in.
+        private Object[] frameInstructions = new Object[64];
+        private Hotspot[] frameHotspots = new Hotspot[64];
+        private CallNode[] frameNodes = new CallNode[64];
+        private long[] frameStarts = new long[64];
+        private long[] frameChildNanos = new long[64];
+        private long[] frameOverheadAtStart = new long[64];
+        private int depth;
+        private long overheadNanos;
+        // The same frames merged into a call tree for the collapsed stacks;
+        // bounded in depth and size, past which time folds into the parent.
+        private final CallNode callTree = new CallNode(null);
+        private int callNodes;
+        private static final int MAX_CALL_DEPTH = 64;
+        private static final int MAX_CALL_NODES = 2000;
+        private final ExpressionProfiler.Profile expressions = new ExpressionProfiler.Profile(() -> overheadNanos);
+
+        VariableTraceListener(Processor processor, XsltTransformer transformer, TraceSink sink, TraceWatch watch,
+                              TraceSampling sampling) {
             this.processor = processor;
             this.transformer = transformer;
-            this.out = out;
+            this.sink = sink;
+            this.watch = watch;
+            this.sampling = sampling;
+        }
+
+        @Override
+        public void close() {
+            emitHotspots();
+            stack.clear();
+        }
+
+        @Override
+        public ExpressionProfiler.Profile expressionProfile() {
+            return expressions;
+        }
+
+        @Override
+        public void enter(Traceable info, Map<String, Object> properties, XPathContext context) {
+            onEnter(info, properties, context);
+        }
+
+        @Override
+        public void leave(Traceable info) {
+            onLeave(info, null, null);
+        }
+
+        private void onEnter(Object info, Object properties, Object context) {
+            debugEvent("enter", info);
+            if (info != null && opensScope(decision(info))) {
+                scopes.push(info);
+            }
+            long t = System.nanoTime();
+            handleEnter(info, properties, context);
+            overheadNanos += System.nanoTime() - t;
+            enterHotspot(info);
+        }
+
+        private void onLeave(Object info, Object properties, Object context) {
+            debugEvent("leave", info);
+            leaveHotspot(info);
+            long t = System.nanoTime();
+            handleLeave(info, properties, context);
+            overheadNanos += System.nanoTime() - t;
+            if (info != null && opensScope(decision(info))) {
+                leaveScope(info);
+            }
+        }
+
+        private static boolean opensScope(byte decision) {
+            return decision == WATCHED_TEMPLATE || decision == SCOPE;
+        }
+
+        /** Also closes the ones above it that never saw their leave (an error caught by xsl:try). */
+        private void leaveScope(Object info) {
+            boolean running = false;
+            for (Object scope : scopes) {
+                running |= scope == info;
+            }
+            if (running) {
+                Object closed;
+                do {
+                    closed = scopes.pop();
+                } while (closed != info);
+            }
+        }
+
+        private boolean captures(Object instructionInfo) {
+            if (instructionInfo == null) {
+                return false;
+            }
+            byte decision = decision(instructionInfo);
+            return decision == CAPTURED
+                    || (decision == CAPTURED_IN_WATCHED_TEMPLATE && !scopes.isEmpty()
+                            && decision(scopes.peek()) == WATCHED_TEMPLATE);
+        }
+
+        private byte decision(Object instructionInfo) {
+            Byte decision = decisions.get(instructionInfo);
+            if (decision == null) {
+                decision = decide(instructionInfo);
+                decisions.put(instructionInfo, decision);
+            }
+            return decision;
+        }
+
+        private byte decide(Object instructionInfo) {
+            String kind = classifyConstruct(instructionInfo);
+            if (kind != null) {
+                // Templates, functions and calls have names as variables do,
+                // but evaluating one "by name" runs it again. With templates
+                // watched, templates and function bodies delimit whose
+                // variables are whose; calls do not.
+                if (watch == null || !watch.watchesTemplates()) {
+                    return IGNORED;
+                }
+                if (kind.equals("xsl:template")) {
+                    return watch.watchesTemplate(describeInstruction(instructionInfo)) ? WATCHED_TEMPLATE : SCOPE;
+                }
+                return instructionInfo.getClass().getName().endsWith(".UserFunction") ? SCOPE : IGNORED;
+            }
+            if (!isVariable(instructionInfo)) {
+                return IGNORED;
+            }
+            if (watch == null) {
+                return CAPTURED;
+            }
+            StructuredQName name = getVariableName(instructionInfo);
+            if (name != null && watch.watchesVariable(name.getLocalPart(), name.getDisplayName())) {
+                return CAPTURED;
+            }
+            if (watch.watchesLine(getLineNumber(instructionInfo))) {
+                return CAPTURED;
+            }
+            // A global is in no template, whichever one first reads it.
+            String className = instructionInfo.getClass().getName();
+            boolean global = className.contains(".GlobalVariable") || className.contains(".GlobalParam");
+            return watch.watchesTemplates() && !global ? CAPTURED_IN_WATCHED_TEMPLATE : IGNORED;
         }
 
         @Override
         public Object invoke(Object proxy, Method method, Object[] args) {
             String name = method.getName();
             if ("close".equals(name)) {
-                emitHotspots();
-                stack.clear();
+                close();
                 return null;
             }
             if ("enter".equals(name)) {
                 Object info = args != null && args.length > 0 ? args[0] : null;
                 Object properties = args != null && args.length > 1 ? args[1] : null;
                 Object context = args != null && args.length > 2 ? args[2] : null;
-                debugEvent("enter", info);
-                countHotspot(info);
-                handleEnter(info, properties, context);
+                onEnter(info, properties, context);
                 return null;
             }
             if ("leave".equals(name)) {
                 Object info = args != null && args.length > 0 ? args[0] : null;
                 Object properties = args != null && args.length > 1 ? args[1] : null;
                 Object context = args != null && args.length > 2 ? args[2] : null;
-                debugEvent("leave", info);
-                handleLeave(info, properties, context);
+                onLeave(info, properties, context);
                 return null;
             }
             if ("open".equals(name) || "startCurrentItem".equals(name) || "endCurrentItem".equals(name)) {
@@ -390,34 +844,125 @@ public class Runner {
         }
 
         /**
-         * Record that a construct executed. Read-only with respect to every
-         * other piece of state here, and silent on any failure: profiling must
-         * never be able to disturb the variable reporting it sits alongside.
+         * Record that a construct started: count it and push its frame. Read-only
+         * with respect to every other piece of state here, and silent on any
+         * failure: profiling must never be able to disturb the variable
+         * reporting it sits alongside.
+         */
+        private void enterHotspot(Object instructionInfo) {
+            if (instructionInfo == null) {
+                return;
+            }
+            Hotspot hotspot = hotspots.get(instructionInfo);
+            if (hotspot == null) {
+                hotspot = firstSight(instructionInfo);
+            }
+            if (hotspot == NOT_COUNTED) {
+                return;
+            }
+            hotspot.count++;
+            if (depth == frameInstructions.length) {
+                growFrames();
+            }
+            CallNode parent = depth > 0 ? frameNodes[depth - 1] : callTree;
+            frameInstructions[depth] = instructionInfo;
+            frameHotspots[depth] = hotspot;
+            frameNodes[depth] = callNode(parent, hotspot);
+            frameChildNanos[depth] = 0;
+            frameOverheadAtStart[depth] = overheadNanos;
+            hotspot.active++;
+            frameStarts[depth++] = System.nanoTime();
+        }
+
+        /**
+         * Record that a construct finished: pop its frame, and with it any
+         * frame above that never saw its leave (an error caught by xsl:try).
          */
-        private void countHotspot(Object instructionInfo) {
+        private void leaveHotspot(Object instructionInfo) {
+            long now = System.nanoTime();
+            if (depth == 0 || instructionInfo == null) {
+                return;
+            }
+            Hotspot hotspot = hotspots.get(instructionInfo);
+            if (hotspot == null || hotspot == NOT_COUNTED || hotspot.active == 0) {
+                return;
+            }
+            int frame = depth - 1;
+            while (frame >= 0 && frameInstructions[frame] != instructionInfo) {
+                frame--;
+            }
+            while (frame >= 0 && depth > frame) {
+                popFrame(now);
+            }
+        }
+
+        private void popFrame(long now) {
+            int top = --depth;
+            long inclusive = now - frameStarts[top] - (overheadNanos - frameOverheadAtStart[top]);
+            long self = inclusive - frameChildNanos[top];
+            Hotspot hotspot = frameHotspots[top];
+            hotspot.selfNanos += self;
+            // A recursive construct's inner calls are inside its outermost one.
+            if (--hotspot.active == 0) {
+                hotspot.inclusiveNanos += inclusive;
+            }
+            frameNodes[top].selfNanos += self;
+            if (top > 0) {
+                frameChildNanos[top - 1] += inclusive;
+            }
+            frameInstructions[top] = null;
+        }
+
+        private CallNode callNode(CallNode parent, Hotspot hotspot) {
+            CallNode node = parent.children != null ? parent.children.get(hotspot) : null;
+            if (node != null) {
+                return node;
+            }
+            if (depth >= MAX_CALL_DEPTH || callNodes >= MAX_CALL_NODES) {
+                return parent;
+            }
+            if (parent.children == null) {
+                parent.children = new IdentityHashMap<>();
+            }
+            node = new CallNode(hotspot);
+            parent.children.put(hotspot, node);
+            callNodes++;
+            return node;
+        }
+
+        private void growFrames() {
+            int n = frameInstructions.length * 2;
+            frameInstructions = Arrays.copyOf(frameInstructions, n);
+            frameHotspots = Arrays.copyOf(frameHotspots, n);
+            frameNodes = Arrays.copyOf(frameNodes, n);
+            frameStarts = Arrays.copyOf(frameStarts, n);
+            frameChildNanos = Arrays.copyOf(frameChildNanos, n);
+            frameOverheadAtStart = Arrays.copyOf(frameOverheadAtStart, n);
+        }
+
+        /**
+         * Resolves and registers an instruction seen for the first time.
+         * NOT_COUNTED for one that is not counted, and for a countable one
+         * once MAX_HOTSPOTS are being counted: either way it is cached, so
+         * it is classified only once.
+         */
+        private Hotspot firstSight(Object instructionInfo) {
+            Hotspot hotspot = NOT_COUNTED;
             try {
                 // Saxon 12 leaves getConstructType() null on these objects — the
                 // same reason isVariable() falls back to class names — so the
                 // construct has to be recognised from the implementation class.
                 String kind = classifyConstruct(instructionInfo);
-                if (kind == null) {
-                    return;
-                }
-                String label = describeInstruction(instructionInfo);
-                int line = getLineNumber(instructionInfo);
-                String key = kind + "\u0001" + (label == null ? "" : label) + "\u0001" + line;
-                int[] counter = hotspots.get(key);
-                if (counter == null) {
-                    if (hotspots.size() >= MAX_HOTSPOTS) {
-                        return;
-                    }
-                    counter = new int[1];
-                    hotspots.put(key, counter);
+                if (kind != null && counted.size() < MAX_HOTSPOTS) {
+                    String label = describeInstruction(instructionInfo);
+                    hotspot = new Hotspot(kind, label == null ? "" : label, getLineNumber(instructionInfo));
+                    counted.add(hotspot);
                 }
-                counter[0]++;
             } catch (Throwable ignored) {
                 // Profiling is best-effort.
             }
+            hotspots.put(instructionInfo, hotspot);
+            return hotspot;
         }
 
         private String classifyConstruct(Object instructionInfo) {
@@ -469,47 +1014,108 @@ public class Runner {
 
         private int getLineNumber(Object instructionInfo) {
             Object value = invokeQuietly(instructionInfo, "getLineNumber");
+            if (!(value instanceof Number) && instructionInfo instanceof Locatable) {
+                // Expressions (a local xsl:variable is a let) only have a Location.
+                Location location = ((Locatable) instructionInfo).getLocation();
+                value = location != null ? location.getLineNumber() : null;
+            }
             return value instanceof Number ? ((Number) value).intValue() : -1;
         }
 
         private Object invokeQuietly(Object target, String methodName) {
-            if (target == null) {
-                return null;
-            }
-            try {
-                Method m = target.getClass().getMethod(methodName);
-                m.setAccessible(true);
-                return m.invoke(target);
-            } catch (Throwable ignored) {
-                return null;
-            }
+            return Reflection.call(target, methodName);
         }
 
         /**
-         * Emitted once, after the transform, so these lines can never land
-         * between a TRACE_VAR_START/TRACE_VAR_END pair and corrupt a value.
+         * Reported once, after the transform. Instructions Saxon copied
+         * (inlined templates, functions) share a kind, label and line, and
+         * are reported as one. Hot spots give count, inclusive and self time
+         * (microseconds) per construct, the most self time first; flame
+         * records give the call tree as collapsed stacks, "frame;frame;frame"
+         * and the self time spent there. Before them come the sampled values,
+         * the truncation if the trace reached its limit, the expression
+         * profile and the time tracing itself took.
          */
         private void emitHotspots() {
+            if (reported) {
+                return;
+            }
+            reported = true;
+            emitSamples();
+            if (budget.exhausted()) {
+                sink.truncated(budget.maxBytes(), budget.skipped());
+            }
+            expressions.emit(sink);
+            sink.timing("traceOverhead", overheadNanos / 1000);
             try {
-                if (hotspots.isEmpty()) {
+                long now = System.nanoTime();
+                while (depth > 0) {
+                    popFrame(now);
+                }
+                if (counted.isEmpty()) {
                     return;
                 }
-                List<Map.Entry<String, int[]>> entries = new ArrayList<>(hotspots.entrySet());
-                entries.sort((a, b) -> Integer.compare(b.getValue()[0], a.getValue()[0]));
+                Map<String, Hotspot> merged = new LinkedHashMap<>();
+                for (Hotspot h : counted) {
+                    String key = h.kind + "\u0001" + h.label + "\u0001" + h.line;
+                    Hotspot total = merged.get(key);
+                    if (total == null) {
+                        total = new Hotspot(h.kind, h.label, h.line, 0);
+                        merged.put(key, total);
+                    }
+                    total.count += h.count;
+                    total.inclusiveNanos += h.inclusiveNanos;
+                    total.selfNanos += h.selfNanos;
+                }
+                List<Hotspot> entries = new ArrayList<>(merged.values());
+                entries.sort((a, b) -> a.selfNanos != b.selfNanos
+                        ? Long.compare(b.selfNanos, a.selfNanos)
+                        : Integer.compare(b.count, a.count));
                 int limit = Math.min(entries.size(), 25);
                 for (int i = 0; i < limit; i++) {
-                    Map.Entry<String, int[]> e = entries.get(i);
-                    String[] parts = e.getKey().split("\u0001", -1);
-                    String kind = parts.length > 0 ? parts[0] : "";
-                    String label = parts.length > 1 ? parts[1] : "";
-                    String line = parts.length > 2 ? parts[2] : "-1";
-                    out.println("TRACE_HOT|" + e.getValue()[0] + "|" + kind + "|"
-                            + sanitizeField(label) + "|" + line);
+                    Hotspot h = entries.get(i);
+                    sink.hotspot(h.count, h.kind, h.label, h.line,
+                            Math.max(0, h.inclusiveNanos / 1000), Math.max(0, h.selfNanos / 1000));
+                }
+                Map<String, Long> stacks = new LinkedHashMap<>();
+                collapseCallTree(callTree, "", stacks);
+                for (Map.Entry<String, Long> stack : stacks.entrySet()) {
+                    long micros = stack.getValue() / 1000;
+                    if (micros > 0) {
+                        sink.flame(stack.getKey(), micros);
+                    }
                 }
-                hotspots.clear();
             } catch (Throwable ignored) {
                 // Never let profiling break the run.
+            } finally {
+                hotspots.clear();
+                counted.clear();
+                callTree.children = null;
+                callNodes = 0;
+            }
+        }
+
+        /** Copies of one construct sum into the same stack. */
+        private void collapseCallTree(CallNode node, String path, Map<String, Long> stacks) {
+            if (node.hotspot != null) {
+                stacks.merge(path, node.selfNanos, Long::sum);
+            }
+            if (node.children == null) {
+                return;
             }
+            for (CallNode child : node.children.values()) {
+                String frame = flameFrame(child.hotspot);
+                collapseCallTree(child, path.isEmpty() ? frame : path + ";" + frame, stacks);
+            }
+        }
+
+        private String flameFrame(Hotspot hotspot) {
+            String frame = hotspot.label == null || hotspot.label.isEmpty()
+                    ? hotspot.kind : hotspot.kind + " " + hotspot.label;
+            if (hotspot.line > 0) {
+                frame += " (line " + hotspot.line + ")";
+            }
+            return sanitizeField(frame).replace(';', ',');
         }
 
         private String sanitizeField(String value) {
@@ -520,7 +1126,11 @@ public class Runner {
         }
 
         private void handleEnter(Object instructionInfo, Object properties, Object context) {
-            if (!isVariable(instructionInfo)) {
+            if (!captures(instructionInfo)) {
+                return;
+            }
+            if (budget.exhausted()) {
+                budget.skip();
                 return;
             }
             Frame frame = new Frame();
@@ -533,7 +1143,7 @@ public class Runner {
         }
 
         private void handleLeave(Object instructionInfo, Object properties, Object context) {
-            if (!isVariable(instructionInfo)) {
+            if (!captures(instructionInfo) || budget.exhausted()) {
                 return;
             }
             Frame frame = stack.isEmpty() ? null : stack.pop();
@@ -564,23 +1174,149 @@ public class Runner {
                 return;
             }
 
-            TraceCapture capture = extractTraceValue(instructionInfo, context, effectiveProperties, name);
-            String displayValue = capture.sequence != null ? formatSequence(capture.sequence) : null;
-            if ((displayValue == null || displayValue.isEmpty()) && capture.fallback != null) {
-                displayValue = capture.fallback;
+            if (sampling != null) {
+                sample(instructionInfo, context, effectiveProperties, name);
+            } else {
+                emitValue(name.getDisplayName(), getLineNumber(instructionInfo), null,
+                        extractTraceValue(instructionInfo, context, effectiveProperties, name));
+            }
+            printDebug("leave", name);
+        }
+
+        /** One value of a variable, with the sampling label if there is one. */
+        private void emitValue(String name, int line, String label, TraceCapture capture) {
+            budget.spend(name);
+            if (label != null) {
+                budget.spend(label);
+            }
+            // Straight into the trace: nothing past the value's limit is
+            // serialized, or even read from a lazily evaluated sequence.
+            TraceBudget.ValueWriter value = budget.startValue(sink.startVariable(name, line, label));
+            if (capture.sequence != null) {
+                formatSequence(capture.sequence, value);
+            }
+            if (value.isEmpty() && capture.fallback != null) {
+                try {
+                    value.write(capture.fallback);
+                } catch (IOException full) {
+                    // Cut off at the limit.
+                }
+            }
+            sink.endVariable(value.truncated());
+            Runner.diag("emit variable " + name + " truncated=" + value.truncated());
+        }
+
+        /**
+         * One in N evaluations is written out as it happens. A random sample
+         * is kept per variable (reservoir sampling over the evaluations after
+         * the first, which is kept apart) and written out at the end, with
+         * the first and the last.
+         */
+        private void sample(Object instructionInfo, Object context, Object properties, StructuredQName name) {
+            String displayName = name.getDisplayName();
+            Samples variable = samples.computeIfAbsent(displayName, Samples::new);
+            long index = ++variable.seen;
+            int rate = sampling.rate;
+            if (!sampling.random) {
+                if ((index - 1) % rate == 0) {
+                    emitValue(displayName, getLineNumber(instructionInfo), "#" + index + " (1 in " + rate + ")",
+                            extractTraceValue(instructionInfo, context, properties, name));
+                    variable.last = null;
+                } else {
+                    variable.last = new Sample(index, getLineNumber(instructionInfo),
+                            lastValue(instructionInfo, context, properties, name));
+                }
+                return;
+            }
+            if (index == 1) {
+                variable.first = new Sample(index, getLineNumber(instructionInfo),
+                        extractTraceValue(instructionInfo, context, properties, name));
+                variable.last = variable.first;
+                return;
+            }
+            int slot;
+            if (variable.reservoir.size() < rate) {
+                slot = variable.reservoir.size();
+                variable.reservoir.add(null);
+            } else {
+                long pick = (long) (random.nextDouble() * (index - 1));
+                slot = pick < rate ? (int) pick : -1;
+            }
+            if (slot >= 0) {
+                Sample taken = new Sample(index, getLineNumber(instructionInfo),
+                        extractTraceValue(instructionInfo, context, properties, name));
+                variable.reservoir.set(slot, taken);
+                variable.last = taken;
+            } else {
+                variable.last = new Sample(index, getLineNumber(instructionInfo),
+                        lastValue(instructionInfo, context, properties, name));
+            }
+        }
+
+        /**
+         * The value of an evaluation that was not sampled, in case it turns
+         * out to be the last: for a local variable or parameter the value in
+         * its slot, by reference, and only formatted if it is. A LazySequence
+         * there can be read once only, and has been by the stylesheet.
+         */
+        private TraceCapture lastValue(Object instructionInfo, Object context, Object properties, StructuredQName name) {
+            int slot = localSlots.computeIfAbsent(instructionInfo, this::localSlot);
+            if (slot >= 0 && context != null) {
+                Sequence value = toSequence(invoke(context, "evaluateLocalVariable", slot));
+                if (value != null && !value.getClass().getSimpleName().equals("LazySequence")) {
+                    TraceCapture capture = new TraceCapture();
+                    capture.sequence = value;
+                    return capture;
+                }
             }
-            if (displayValue == null) {
-                displayValue = "";
+            return extractTraceValue(instructionInfo, context, properties, name);
+        }
+
+        private int localSlot(Object instructionInfo) {
+            Integer slot = extractSlot(instructionInfo);
+            if (slot == null) {
+                Object local = Reflection.call(instructionInfo, "getLocalSlotNumber");
+                slot = local instanceof Number ? ((Number) local).intValue() : null;
             }
+            return slot != null ? slot : -1;
+        }
 
-            Runner.diag("emit variable " + name.getDisplayName() + " value length=" + displayValue.length());
+        /** The random samples, first and last values; each variable's in evaluation order. */
+        private void emitSamples() {
+            if (sampling == null) {
+                return;
+            }
+            for (Samples variable : samples.values()) {
+                List<Sample> taken = new ArrayList<>();
+                if (variable.first != null) {
+                    taken.add(variable.first);
+                }
+                taken.addAll(variable.reservoir);
+                if (variable.last != null && !taken.contains(variable.last)) {
+                    taken.add(variable.last);
+                }
+                taken.sort((a, b) -> Long.compare(a.index, b.index));
+                for (Sample sample : taken) {
+                    if (budget.exhausted()) {
+                        budget.skip();
+                        continue;
+                    }
+                    emitValue(variable.name, sample.line, sampleLabel(sample, variable), sample.capture);
+                }
+            }
+            samples.clear();
+        }
 
-            out.println("TRACE_VAR_START|" + name.getDisplayName());
-            if (!displayValue.isEmpty()) {
-                out.println(displayValue);
+        private String sampleLabel(Sample sample, Samples variable) {
+            String how;
+            if (sample == variable.first) {
+                how = "first";
+            } else if (sample == variable.last) {
+                how = sampling.random ? "last" : "last; 1 in " + sampling.rate;
+            } else {
+                how = sampling.rate + " at random";
             }
-            out.println("TRACE_VAR_END");
-            printDebug("leave", name);
+            return "#" + sample.index + " of " + variable.seen + " (" + how + ")";
         }
 
         private TraceCapture extractTraceValue(Object instructionInfo, Object context, Object properties, StructuredQName name) {
@@ -591,7 +1327,7 @@ public class Runner {
                 TraceCapture candidateCapture = captureFromResult(candidate, context);
                 if (candidateCapture.sequence != null) {
                     Runner.diag("firstCandidate sequence for " + displayName + " via " + candidate.getClass().getName());
-                    capture.sequence = materialize(candidateCapture.sequence);
+                    capture.sequence = candidateCapture.sequence;
                     return capture;
                 }
                 if (candidateCapture.fallback != null) {
@@ -605,7 +1341,7 @@ public class Runner {
                 Sequence seq = evaluateSlot(context, slot.intValue());
                 if (seq != null) {
                     Runner.diag("evaluateSlot(" + slot + ") sequence for " + displayName);
-                    capture.sequence = materialize(seq);
+                    capture.sequence = seq;
                     return capture;
                 } else {
                     Runner.diag("evaluateSlot(" + slot + ") returned null for " + displayName);
@@ -616,7 +1352,7 @@ public class Runner {
                 TraceCapture paramCapture = captureParameterValue(name);
                 if (paramCapture.sequence != null) {
                     Runner.diag("transformer parameter hit for " + name.getDisplayName());
-                    capture.sequence = materialize(paramCapture.sequence);
+                    capture.sequence = paramCapture.sequence;
                     return capture;
                 }
                 if (capture.fallback == null && paramCapture.fallback != null) {
@@ -626,7 +1362,7 @@ public class Runner {
                 TraceCapture byName = evaluateByName(context, properties, name);
                 if (byName.sequence != null) {
                     Runner.diag("evaluateByName sequence for " + displayName);
-                    capture.sequence = materialize(byName.sequence);
+                    capture.sequence = byName.sequence;
                     return capture;
                 }
                 if (capture.fallback == null && byName.fallback != null) {
@@ -636,7 +1372,7 @@ public class Runner {
                 TraceCapture controllerCapture = evaluateFromController(name, context);
                 if (controllerCapture.sequence != null) {
                     Runner.diag("controller lookup sequence for " + displayName);
-                    capture.sequence = materialize(controllerCapture.sequence);
+                    capture.sequence = controllerCapture.sequence;
                     return capture;
                 }
                 if (capture.fallback == null && controllerCapture.fallback != null) {
@@ -650,7 +1386,7 @@ public class Runner {
                 TraceCapture fromBinding = evaluateBinding(context, binding, newIdentitySet());
                 if (fromBinding.sequence != null) {
                     Runner.diag("evaluateBinding sequence for " + displayName + " using " + binding.getClass().getName());
-                    capture.sequence = materialize(fromBinding.sequence);
+                    capture.sequence = fromBinding.sequence;
                     return capture;
                 }
                 if (fromBinding.fallback != null) {
@@ -662,7 +1398,7 @@ public class Runner {
             TraceCapture direct = evaluateDirect(instructionInfo, context);
             if (direct.sequence != null) {
                 Runner.diag("evaluateDirect sequence for " + displayName);
-                capture.sequence = materialize(direct.sequence);
+                capture.sequence = direct.sequence;
                 return capture;
             }
             if (capture.fallback == null && direct.fallback != null) {
@@ -1829,103 +2565,24 @@ public class Runner {
             if (value == null || className == null) {
                 return false;
             }
-            try {
-                Class<?> cls = Class.forName(className);
-                return cls.isInstance(value);
-            } catch (Exception ignored) {
-                return false;
-            }
+            Class<?> cls = Reflection.classNamed(className);
+            return cls != null && cls.isInstance(value);
         }
 
         private Object invoke(Object target, String methodName, Object... params) {
             if (target == null) {
                 return null;
             }
-            try {
-                Class<?>[] types = new Class<?>[params.length];
-                for (int i = 0; i < params.length; i++) {
-                    Object p = params[i];
-                    types[i] = p != null && p.getClass() == Integer.class ? int.class : (p == null ? Object.class : p.getClass());
-                }
-                Method m = findMethod(target.getClass(), methodName, types);
-                if (m == null && params.length == 1 && params[0] instanceof Integer) {
-                    m = findMethod(target.getClass(), methodName, new Class<?>[]{int.class});
-                }
-                if (m == null) {
-                    return null;
-                }
-                m.setAccessible(true);
-                return m.invoke(target, params);
-            } catch (Exception e) {
-                return null;
-            }
-        }
-
-        private Method findMethod(Class<?> type, String name, Class<?>[] parameterTypes) {
-            try {
-                return type.getMethod(name, parameterTypes);
-            } catch (Exception ignored) {
-                // fall through to compatibility search
-            }
-            Method[] methods = type.getMethods();
-            for (Method m : methods) {
-                if (!m.getName().equals(name) || m.getParameterCount() != parameterTypes.length) {
-                    continue;
-                }
-                Class<?>[] targetParams = m.getParameterTypes();
-                boolean compatible = true;
-                for (int i = 0; i < targetParams.length; i++) {
-                    Class<?> requested = parameterTypes[i];
-                    if (!isAssignable(targetParams[i], requested)) {
-                        compatible = false;
-                        break;
-                    }
-                }
-                if (compatible) {
-                    return m;
-                }
-            }
-            return null;
-        }
-
-        private boolean isAssignable(Class<?> targetType, Class<?> requestedType) {
-            if (targetType == null) {
-                return false;
-            }
-            if (requestedType == null || requestedType == Object.class) {
-                return true;
-            }
-            if (targetType.isPrimitive()) {
-                targetType = primitiveToWrapper(targetType);
-            }
-            if (requestedType.isPrimitive()) {
-                requestedType = primitiveToWrapper(requestedType);
+            Class<?>[] types = new Class<?>[params.length];
+            for (int i = 0; i < params.length; i++) {
+                Object p = params[i];
+                types[i] = p != null && p.getClass() == Integer.class ? int.class : (p == null ? Object.class : p.getClass());
             }
-            if (targetType == null) {
-                return false;
-            }
-            if (requestedType == null) {
-                return true;
-            }
-            return targetType.isAssignableFrom(requestedType);
-        }
-
-        private Class<?> primitiveToWrapper(Class<?> primitive) {
-            if (primitive == null) {
-                return null;
-            }
-            if (!primitive.isPrimitive()) {
-                return primitive;
+            MethodHandle m = Reflection.method(target.getClass(), methodName, types);
+            if (m == null && params.length == 1 && params[0] instanceof Integer) {
+                m = Reflection.method(target.getClass(), methodName, int.class);
             }
-            if (primitive == boolean.class) return Boolean.class;
-            if (primitive == byte.class) return Byte.class;
-            if (primitive == short.class) return Short.class;
-            if (primitive == char.class) return Character.class;
-            if (primitive == int.class) return Integer.class;
-            if (primitive == long.class) return Long.class;
-            if (primitive == float.class) return Float.class;
-            if (primitive == double.class) return Double.class;
-            return primitive;
+            return Reflection.call(m, target, params);
         }
 
         private Object firstCandidate(Object instructionInfo) {
@@ -1947,14 +2604,9 @@ public class Runner {
                     return ((Number) val).intValue();
                 }
             }
-            try {
-                Method m = instructionInfo.getClass().getMethod("getSlotNumber");
-                Object result = m.invoke(instructionInfo);
-                if (result instanceof Number) {
-                    return ((Number) result).intValue();
-                }
-            } catch (Exception ignored) {
-                // ignore
+            Object result = Reflection.call(instructionInfo, "getSlotNumber");
+            if (result instanceof Number) {
+                return ((Number) result).intValue();
             }
             return null;
         }
@@ -1963,12 +2615,8 @@ public class Runner {
             if (instructionInfo == null) {
                 return null;
             }
-            try {
-                Method m = instructionInfo.getClass().getMethod("getProperty", String.class);
-                return m.invoke(instructionInfo, key);
-            } catch (Exception ignored) {
-                return null;
-            }
+            MethodHandle m = Reflection.method(instructionInfo.getClass(), "getProperty", String.class);
+            return Reflection.call(m, instructionInfo, key);
         }
 
         private boolean isVariable(Object instructionInfo) {
@@ -2004,14 +2652,9 @@ public class Runner {
             if (instructionInfo == null) {
                 return null;
             }
-            try {
-                Method m = instructionInfo.getClass().getMethod("getConstructType");
-                Object val = m.invoke(instructionInfo);
-                if (val instanceof Number) {
-                    return ((Number) val).intValue();
-                }
-            } catch (Exception ignored) {
-                // ignore
+            Object val = Reflection.call(instructionInfo, "getConstructType");
+            if (val instanceof Number) {
+                return ((Number) val).intValue();
             }
             return null;
         }
@@ -2020,35 +2663,20 @@ public class Runner {
             if (instructionInfo == null) {
                 return null;
             }
-            try {
-                Method m = instructionInfo.getClass().getMethod("getObjectName");
-                Object result = m.invoke(instructionInfo);
-                if (result instanceof StructuredQName) {
-                    return (StructuredQName) result;
-                }
-            } catch (Exception ignored) {
-                // ignore
+            Object result = Reflection.call(instructionInfo, "getObjectName");
+            if (result instanceof StructuredQName) {
+                return (StructuredQName) result;
             }
-            try {
-                Method m = instructionInfo.getClass().getMethod("getVariableQName");
-                Object result = m.invoke(instructionInfo);
-                if (result instanceof StructuredQName) {
-                    return (StructuredQName) result;
-                }
-            } catch (Exception ignored) {
-                // ignore
+            result = Reflection.call(instructionInfo, "getVariableQName");
+            if (result instanceof StructuredQName) {
+                return (StructuredQName) result;
             }
-            try {
-                Method m = instructionInfo.getClass().getMethod("getVariableName");
-                Object result = m.invoke(instructionInfo);
-                if (result instanceof StructuredQName) {
-                    return (StructuredQName) result;
-                }
-                if (result instanceof String) {
-                    return new StructuredQName("", "", (String) result);
-                }
-            } catch (Exception ignored) {
-                // ignore
+            result = Reflection.call(instructionInfo, "getVariableName");
+            if (result instanceof StructuredQName) {
+                return (StructuredQName) result;
+            }
+            if (result instanceof String) {
+                return new StructuredQName("", "", (String) result);
             }
             Object prop = getProperty(instructionInfo, "name");
             if (prop instanceof StructuredQName) {
@@ -2077,17 +2705,12 @@ public class Runner {
             if (sequence instanceof GroundedValue) {
                 return sequence;
             }
-            try {
-                Method m = sequence.getClass().getMethod("materialize");
-                Object result = m.invoke(sequence);
-                if (result instanceof Sequence) {
-                    return (Sequence) result;
-                }
-                if (result instanceof GroundedValue) {
-                    return (GroundedValue) result;
-                }
-            } catch (Exception ignored) {
-                // ignore
+            Object result = Reflection.call(sequence, "materialize");
+            if (result instanceof Sequence) {
+                return (Sequence) result;
+            }
+            if (result instanceof GroundedValue) {
+                return (GroundedValue) result;
             }
             return sequence;
         }
@@ -2125,56 +2748,61 @@ public class Runner {
             if (sequence instanceof GroundedValue) {
                 return (GroundedValue) sequence;
             }
-            try {
-                Class<?> tool = Class.forName("net.sf.saxon.om.SequenceTool");
-                Method m = tool.getMethod("toGroundedValue", Sequence.class);
-                Object result = m.invoke(null, sequence);
-                if (result instanceof GroundedValue) {
-                    return (GroundedValue) result;
-                }
-            } catch (Exception ignored) {
-                // ignore
+            Object result = Reflection.call(TO_GROUNDED_VALUE, null, sequence);
+            if (result instanceof GroundedValue) {
+                return (GroundedValue) result;
             }
             return null;
         }
 
+        /** A value nested in another's capture, under the same per-value limit. */
         private String formatSequence(Sequence sequence) {
-            if (sequence == null) {
-                return "";
+            StringBuilder sb = new StringBuilder();
+            formatSequence(sequence, budget.startValue(sb));
+            return sb.toString();
+        }
+
+        /**
+         * Writes the items one per line, nodes serialized. The sequence is
+         * read item by item rather than grounded first, and reading stops as
+         * soon as the writer is full.
+         */
+        private void formatSequence(Sequence sequence, TraceBudget.ValueWriter value) {
+            if (sequence == null || sequence == EmptySequence.getInstance()) {
+                return;
             }
+            SequenceIterator items = null;
             try {
-                Sequence materialized = materialize(sequence);
-                GroundedValue grounded = toGroundedValue(materialized);
-                if (grounded == null) {
-                    return materialized.toString();
-                }
-                if (grounded == EmptySequence.getInstance()) {
-                    return "";
-                }
-                XdmValue xdmValue = XdmValue.wrap(grounded);
-                if (!xdmValue.iterator().hasNext()) {
-                    return "";
-                }
-                StringBuilder sb = new StringBuilder();
+                items = sequence.iterate();
                 boolean first = true;
-                for (XdmItem item : xdmValue) {
+                for (Item item = items.next(); item != null; item = items.next()) {
                     if (!first) {
-                        sb.append('\n');
+                        value.write('\n');
                     }
                     first = false;
-                    if (item instanceof XdmNode) {
-                        StringWriter buffer = new StringWriter();
-                        Serializer serializer = processor.newSerializer(buffer);
-                        serializer.serializeNode((XdmNode) item);
+                    XdmItem xdmItem = (XdmItem) XdmValue.wrap(item);
+                    if (xdmItem instanceof XdmNode) {
+                        Serializer serializer = processor.newSerializer(value);
+                        serializer.serializeNode((XdmNode) xdmItem);
                         serializer.close();
-                        sb.append(buffer.toString());
                     } else {
-                        sb.append(safeItemString(item));
+                        value.write(safeItemString(xdmItem));
                     }
                 }
-                return sb.toString();
-            } catch (SaxonApiException e) {
-                return "(error: " + e.getMessage() + ")";
+            } catch (IOException | SaxonApiException | RuntimeException e) {
+                // The serializer wraps the writer's Full; anything else is a
+                // value that could not be read.
+                if (!value.truncated()) {
+                    try {
+                        value.write("(error: " + e.getMessage() + ")");
+                    } catch (IOException full) {
+                        // Cut off at the limit.
+                    }
+                }
+            } finally {
+                if (items != null) {
+                    items.close();
+                }
             }
         }
 
@@ -2196,7 +2824,7 @@ public class Runner {
             if (!TRACE_DEBUG || name == null) {
                 return;
             }
-            out.println("TRACE_DEBUG phase=" + phase + " variable=" + name.getDisplayName());
+            sink.message("TRACE_DEBUG phase=" + phase + " variable=" + name.getDisplayName());
         }
 
         private void debugEvent(String phase, Object instructionInfo) {
@@ -2208,7 +2836,7 @@ public class Runner {
             }
             StructuredQName name = getVariableName(instructionInfo);
             Integer construct = getConstructType(instructionInfo);
-            out.println("TRACE_DEBUG raw_event phase=" + phase + " construct=" + construct + " name=" + (name != null ? name.getDisplayName() : "null") + " class=" + (instructionInfo != null ? instructionInfo.getClass().getName() : "null"));
+            sink.message("TRACE_DEBUG raw_event phase=" + phase + " construct=" + construct + " name=" + (name != null ? name.getDisplayName() : "null") + " class=" + (instructionInfo != null ? instructionInfo.getClass().getName() : "null"));
         }
 
         private String formatItem(Item item) {
@@ -2229,6 +2857,39 @@ public class Runner {
             return item.getStringValue();
         }
 
+        private static final class Hotspot {
+            final String kind;
+            final String label;
+            final int line;
+            int count;
+            long inclusiveNanos;
+            long selfNanos;
+            /** Frames of this construct on the shadow stack, for recursion. */
+            int active;
+
+            Hotspot(String kind, String label, int line) {
+                this(kind, label, line, 0);
+            }
+
+            Hotspot(String kind, String label, int line, int count) {
+                this.kind = kind;
+                this.label = label;
+                this.line = line;
+                this.count = count;
+            }
+        }
+
+        /** A construct at one place in the call tree, and the self time spent there. */
+        private static final class CallNode {
+            final Hotspot hotspot;
+            IdentityHashMap<Hotspot, CallNode> children;
+            long selfNanos;
+
+            CallNode(Hotspot hotspot) {
+                this.hotspot = hotspot;
+            }
+        }
+
         private static final class Frame {
             StructuredQName name;
             Object instruction;
@@ -2240,5 +2901,30 @@ public class Runner {
             Sequence sequence;
             String fallback;
         }
+
+        /** What has been sampled of one variable. */
+        private static final class Samples {
+            final String name;
+            long seen;
+            Sample first;
+            Sample last;
+            final List<Sample> reservoir = new ArrayList<>();
+
+            Samples(String name) {
+                this.name = name;
+            }
+        }
+
+        private static final class Sample {
+            final long index;
+            final int line;
+            final TraceCapture capture;
+
+            Sample(long index, int line, TraceCapture capture) {
+                this.index = index;
+                this.line = line;
+                this.capture = capture;
+            }
+        }
     }
 }
@@ -1,8 +1,14 @@
 package com.xsltplayground;
 
-import com.google.gson.*;
-import com.sun.net.httpserver.*;
+import com.google.gson.JsonObject;
 import com.xsltplayground.ext.CustomFunctions;
+import com.xsltplayground.server.AsyncTraceSink;
+import com.xsltplayground.server.BinaryTraceSink;
+import com.xsltplayground.server.TraceSink;
+import com.xsltplayground.server.CompiledCache;
+import com.xsltplayground.server.Pool;
+import com.xsltplayground.server.Timings;
+import com.xsltplayground.server.TransformServer;
 import net.sf.saxon.s9api.*;
 
 import javax.xml.transform.ErrorListener;
@@ -10,179 +16,235 @@ import javax.xml.transform.Result;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
+import net.sf.saxon.lib.FeatureKeys;
+import net.sf.saxon.om.TreeModel;
 import net.sf.saxon.lib.OutputURIResolver;
 import java.io.*;
-import java.net.InetSocketAddress;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.*;
 
 /**
  * XSLT 2.0 daemon using Saxon HE 9.6 — the last Saxon release focused on
  * XSLT 2.0. Compiled and run with Saxon 9.6 JARs only (no Runner dependency
- * since ErrorReporter / XmlProcessingError don't exist in Saxon 9.6).
+ * since ErrorReporter / XmlProcessingError don't exist in Saxon 9.6); traced
+ * runs report through {@link Saxon2TraceListener} instead.
  * Runs on port 8083.
  */
 public class Saxon2Daemon {
 
+    // Two processors: normal (optimized) and trace (no optimization, and 9.6
+    // only traces templates when the whole configuration compiles with tracing)
     static final Processor PROCESSOR;
-    private static final Gson GSON = new Gson();
+    static final Processor TRACE_PROCESSOR;
 
     static {
         PROCESSOR = new Processor(false);
         CustomFunctions.registerAll(PROCESSOR);
 
-        // Warm up
-        String warmupXslt =
-            "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>" +
-            "<xsl:template match='/'><out/></xsl:template></xsl:stylesheet>";
-        try {
-            XsltCompiler c = PROCESSOR.newXsltCompiler();
-            XsltExecutable exec = c.compile(new StreamSource(new StringReader(warmupXslt)));
-            XsltTransformer t = exec.load();
-            XdmNode doc = PROCESSOR.newDocumentBuilder()
-                    .build(new StreamSource(new StringReader("<root/>")));
-            t.setInitialContextNode(doc);
-            Serializer ser = PROCESSOR.newSerializer(new StringWriter());
-            t.setDestination(ser);
-            t.transform();
-        } catch (Exception e) {
-            System.err.println("Saxon2Daemon warm-up warning: " + e.getMessage());
-        }
-        System.out.println("Saxon2Daemon: warm-up complete.");
+        TRACE_PROCESSOR = new Processor(false);
+        TRACE_PROCESSOR.setConfigurationProperty(FeatureKeys.OPTIMIZATION_LEVEL, "0");
+        TRACE_PROCESSOR.getUnderlyingConfiguration().setCompileWithTracing(true);
+        CustomFunctions.registerAll(TRACE_PROCESSOR);
     }
 
+    public static final String[] WARMUP_VERSIONS = {"2.0"};
+
     public static void main(String[] args) throws Exception {
-        int port = 8083;
-        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 32);
-        server.createContext("/transform", new TransformHandler());
-        server.createContext("/health", exchange -> {
-            byte[] resp = "ok".getBytes(StandardCharsets.UTF_8);
-            exchange.getResponseHeaders().set("Content-Type", "text/plain");
-            exchange.sendResponseHeaders(200, resp.length);
-            try (OutputStream os = exchange.getResponseBody()) { os.write(resp); }
-        });
-        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
-        server.setExecutor(Executors.newFixedThreadPool(threads));
-        server.start();
-        System.out.println("Saxon2Daemon ready on :" + port + " (threads=" + threads + ")");
+        new TransformServer("Saxon2Daemon", 8083, Saxon2Daemon::transform, WARMUP_VERSIONS).start();
     }
 
-    static class TransformHandler implements HttpHandler {
-        @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
-                exchange.sendResponseHeaders(405, -1);
-                exchange.close();
-                return;
-            }
+    /** Compiled stylesheets for plain runs, with the compile warnings every response for them reports. */
+    static final CompiledCache<Compiled> EXECUTABLES = CompiledCache.fromProperties(compiled -> compiled.idle);
+
+    static final class Compiled {
+        final XsltExecutable exec;
+        final String warnings;
+        final Pool<Loaded> idle = new Pool<>();
 
-            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
-            JsonObject response = new JsonObject();
-            int status = 200;
+        Compiled(XsltExecutable exec, String warnings) {
+            this.exec = exec;
+            this.warnings = warnings;
+        }
+    }
 
-            try {
-                JsonObject req = GSON.fromJson(body, JsonObject.class);
+    /** A transformer with its serializer, result buffer and result-document resolver set up once. */
+    static final class Loaded {
+        /** Result buffers that grew past this are dropped rather than kept alive in the pool. */
+        private static final int MAX_RETAINED_CHARS = 1 << 16;
+
+        final XsltTransformer transformer;
+        final Serializer serializer;
+        final Map<String, StringWriter> secondaryWriters = new LinkedHashMap<>();
+        StringWriter resultWriter = new StringWriter();
+
+        Loaded(Processor proc, XsltExecutable exec) {
+            transformer = exec.load();
+            serializer = proc.newSerializer(resultWriter);
+            transformer.setDestination(serializer);
+            // Capture secondary documents produced by xsl:result-document (Saxon 9.6 API)
+            transformer.getUnderlyingController().setOutputURIResolver(new OutputURIResolver() {
+                @Override
+                public OutputURIResolver newInstance() { return this; }
+                @Override
+                public Result resolve(String href, String base) throws TransformerException {
+                    String key = href != null ? href : "secondary-" + secondaryWriters.size();
+                    StringWriter sw = new StringWriter();
+                    secondaryWriters.put(key, sw);
+                    StreamResult sr = new StreamResult(sw);
+                    sr.setSystemId(key);
+                    return sr;
+                }
+                @Override
+                public void close(Result result) throws TransformerException {}
+            });
+        }
 
-                String xslt   = req.has("xslt")   ? req.get("xslt").getAsString()   : "";
-                String source = req.has("source")  ? req.get("source").getAsString() : "";
+        /** Forgets the last run's input and output so the next one starts clean and they can be collected. */
+        void reset() {
+            transformer.clearParameters();
+            transformer.setInitialContextNode(null);
+            secondaryWriters.clear();
+            if (resultWriter.getBuffer().capacity() > MAX_RETAINED_CHARS) {
+                resultWriter = new StringWriter();
+            } else {
+                resultWriter.getBuffer().setLength(0);
+            }
+            // Drops the run's guarded writer and tree model, and the request with them.
+            serializer.setOutputWriter(resultWriter);
+            transformer.getUnderlyingController().setModel(TreeModel.TINY_TREE);
+        }
+    }
 
-                Map<String, String> params     = jsonObjectToMap(req, "parameters");
-                Map<String, String> fileParams = jsonObjectToMap(req, "fileParameters");
+    public static TransformServer.Response transform(TransformServer.Request req) {
+        JsonObject response = new JsonObject();
+        int status = 200;
+        Timings timings = req.timings;
+        AsyncTraceSink asyncSink = null;
 
-                // Saxon 9.6 uses JAXP ErrorListener (no ErrorReporter API)
-                StringBuilder warnings = new StringBuilder();
-                ErrorListener errorListener = new ErrorListener() {
-                    @Override public void warning(TransformerException e) {
-                        warnings.append("Warning: ").append(e.getMessage()).append("\n");
-                    }
-                    @Override public void error(TransformerException e) throws TransformerException { throw e; }
-                    @Override public void fatalError(TransformerException e) throws TransformerException { throw e; }
-                };
+        try {
+            String xslt   = req.xslt;
+            String source = req.source;
+            boolean trace = req.trace;
+
+            Map<String, String> params     = req.parameters;
+            Map<String, String> fileParams = req.fileParameters;
+
+            Processor proc = trace ? TRACE_PROCESSOR : PROCESSOR;
+
+            // Traced compiles are instrumented and never reused.
+            long t = timings.mark();
+            Compiled compiled;
+            Loaded loaded;
+            if (trace) {
+                compiled = compile(proc, xslt);
+                loaded = new Loaded(proc, compiled.exec);
+            } else {
+                compiled = EXECUTABLES.get(req.stylesheetHash, () -> compile(proc, xslt));
+                loaded = compiled.idle.poll();
+                if (loaded == null) {
+                    loaded = new Loaded(proc, compiled.exec);
+                }
+            }
+            timings.add(Timings.Phase.COMPILE, t);
+            XsltTransformer transformer = loaded.transformer;
 
-                XsltCompiler compiler = PROCESSOR.newXsltCompiler();
-                compiler.setErrorListener(errorListener);
+            // With xslt.trace.async a writer thread encodes the records.
+            BinaryTraceSink traceSink = new BinaryTraceSink();
+            if (trace && AsyncTraceSink.IN_DAEMONS) {
+                asyncSink = new AsyncTraceSink(traceSink, () -> { });
+            }
+            TraceSink sink = asyncSink != null ? asyncSink : traceSink;
+            Saxon2TraceListener listener = null;
+            if (trace) {
+                listener = new Saxon2TraceListener(proc, sink, req.watch, req.sampling);
+                transformer.getUnderlyingController().addTraceListener(listener);
+            }
 
-                XsltExecutable exec = compiler.compile(new StreamSource(new StringReader(xslt)));
-                XsltTransformer transformer = exec.load();
+            t = timings.mark();
+            if (source != null && !source.isEmpty()) {
+                XdmNode doc = proc.newDocumentBuilder()
+                        .build(new StreamSource(req.guard(new StringReader(source))));
+                transformer.setInitialContextNode(doc);
+            }
+            timings.add(Timings.Phase.PARSE, t);
 
-                if (source != null && !source.isEmpty()) {
-                    XdmNode doc = PROCESSOR.newDocumentBuilder()
-                            .build(new StreamSource(new StringReader(source)));
-                    transformer.setInitialContextNode(doc);
-                }
+            t = timings.mark();
+            for (Map.Entry<String, String> e : params.entrySet()) {
+                transformer.setParameter(new QName(e.getKey()), new XdmAtomicValue(e.getValue()));
+            }
 
-                for (Map.Entry<String, String> e : params.entrySet()) {
-                    transformer.setParameter(new QName(e.getKey()), new XdmAtomicValue(e.getValue()));
+            for (Map.Entry<String, String> e : fileParams.entrySet()) {
+                String val = e.getValue().trim();
+                if (val.startsWith("<")) {
+                    XdmNode node = proc.newDocumentBuilder()
+                            .build(new StreamSource(new StringReader(val)));
+                    transformer.setParameter(new QName(e.getKey()), node);
+                } else {
+                    transformer.setParameter(new QName(e.getKey()), new XdmAtomicValue(val));
                 }
+            }
+            timings.add(Timings.Phase.PARAMS, t);
 
-                for (Map.Entry<String, String> e : fileParams.entrySet()) {
-                    String val = e.getValue().trim();
-                    if (val.startsWith("<")) {
-                        XdmNode node = PROCESSOR.newDocumentBuilder()
-                                .build(new StreamSource(new StringReader(val)));
-                        transformer.setParameter(new QName(e.getKey()), node);
-                    } else {
-                        transformer.setParameter(new QName(e.getKey()), new XdmAtomicValue(val));
-                    }
-                }
+            t = timings.mark();
+            loaded.serializer.setOutputWriter(req.guard(loaded.resultWriter));
+            transformer.getUnderlyingController().setModel(new GuardedTreeModel(req));
+            transformer.transform();
+            timings.add(Timings.Phase.TRANSFORM, t);
 
-                // Capture secondary documents produced by xsl:result-document (Saxon 9.6 API)
-                Map<String, StringWriter> secondaryWriters = new LinkedHashMap<>();
-                transformer.getUnderlyingController().setOutputURIResolver(new OutputURIResolver() {
-                    @Override
-                    public OutputURIResolver newInstance() { return this; }
-                    @Override
-                    public Result resolve(String href, String base) throws TransformerException {
-                        String key = href != null ? href : "secondary-" + secondaryWriters.size();
-                        StringWriter sw = new StringWriter();
-                        secondaryWriters.put(key, sw);
-                        StreamResult sr = new StreamResult(sw);
-                        sr.setSystemId(key);
-                        return sr;
-                    }
-                    @Override
-                    public void close(Result result) throws TransformerException {}
-                });
-
-                StringWriter resultWriter = new StringWriter();
-                Serializer ser = PROCESSOR.newSerializer(resultWriter);
-                transformer.setDestination(ser);
-                transformer.transform();
-
-                response.addProperty("result", resultWriter.toString());
-                response.addProperty("traceText", warnings.toString());
-
-                if (!secondaryWriters.isEmpty()) {
-                    JsonObject secondary = new JsonObject();
-                    for (Map.Entry<String, StringWriter> e : secondaryWriters.entrySet()) {
-                        secondary.addProperty(e.getKey(), e.getValue().toString());
-                    }
-                    response.add("secondaryResults", secondary);
+            if (listener != null) {
+                listener.emitHotspots();
+            }
+            if (asyncSink != null) {
+                asyncSink.close();
+            }
+            t = timings.mark();
+            response.addProperty("result", loaded.resultWriter.toString());
+            response.addProperty("traceText", compiled.warnings);
+            response.addProperty("traceEvents", trace ? traceSink.toBase64() : "");
+
+            if (!loaded.secondaryWriters.isEmpty()) {
+                JsonObject secondary = new JsonObject();
+                for (Map.Entry<String, StringWriter> e : loaded.secondaryWriters.entrySet()) {
+                    secondary.addProperty(e.getKey(), e.getValue().toString());
                 }
+                response.add("secondaryResults", secondary);
+            }
+            timings.add(Timings.Phase.SERIALIZE, t);
 
-            } catch (SaxonApiException e) {
-                response.addProperty("error", e.getMessage() != null ? e.getMessage() : e.toString());
-                status = 400;
-            } catch (Exception e) {
-                response.addProperty("error", e.toString());
-                status = 500;
+            // Only a transformer that finished cleanly goes back to the pool.
+            if (!trace) {
+                loaded.reset();
+                compiled.idle.release(loaded);
             }
 
-            byte[] respBytes = GSON.toJson(response).getBytes(StandardCharsets.UTF_8);
-            exchange.getResponseHeaders().set("Content-Type", "application/json");
-            exchange.sendResponseHeaders(status, respBytes.length);
-            try (OutputStream os = exchange.getResponseBody()) { os.write(respBytes); }
+        } catch (SaxonApiException e) {
+            response.addProperty("error", e.getMessage() != null ? e.getMessage() : e.toString());
+            status = 400;
+        } catch (Exception e) {
+            response.addProperty("error", e.toString());
+            status = 500;
+        } finally {
+            if (asyncSink != null) {
+                asyncSink.close();
+            }
         }
 
-        private Map<String, String> jsonObjectToMap(JsonObject req, String key) {
-            Map<String, String> result = new LinkedHashMap<>();
-            if (req.has(key) && req.get(key).isJsonObject()) {
-                for (Map.Entry<String, JsonElement> e : req.getAsJsonObject(key).entrySet()) {
-                    result.put(e.getKey(), e.getValue().getAsString());
-                }
+        return new TransformServer.Response(status, response);
+    }
+
+    private static Compiled compile(Processor proc, String xslt) throws SaxonApiException {
+        // Saxon 9.6 uses JAXP ErrorListener (no ErrorReporter API)
+        StringBuilder warnings = new StringBuilder();
+        ErrorListener errorListener = new ErrorListener() {
+            @Override public void warning(TransformerException e) {
+                warnings.append("Warning: ").append(e.getMessage()).append("\n");
             }
-            return result;
-        }
+            @Override public void error(TransformerException e) throws TransformerException { throw e; }
+            @Override public void fatalError(TransformerException e) throws TransformerException { throw e; }
+        };
+
+        XsltCompiler compiler = proc.newXsltCompiler();
+        compiler.setErrorListener(errorListener);
+        XsltExecutable exec = compiler.compile(new StreamSource(new StringReader(xslt)));
+        return new Compiled(exec, warnings.toString());
     }
 }
@@ -0,0 +1,565 @@
+package com.xsltplayground;
+
+import com.xsltplayground.server.TraceBudget;
+import com.xsltplayground.server.TraceSampling;
+import com.xsltplayground.server.TraceSink;
+import com.xsltplayground.server.TraceWatch;
+import net.sf.saxon.Controller;
+import net.sf.saxon.expr.Assignation;
+import net.sf.saxon.expr.Expression;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.expr.instruct.CallTemplate;
+import net.sf.saxon.expr.instruct.LocalParamSetter;
+import net.sf.saxon.expr.instruct.TraceExpression;
+import net.sf.saxon.lib.Logger;
+import net.sf.saxon.lib.TraceListener;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.Sequence;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.om.StandardNames;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.trace.InstructionInfo;
+import net.sf.saxon.trace.Location;
+import net.sf.saxon.trans.XPathException;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The trace of a traced 2.0 run, from Saxon 9.6's own TraceListener: what
+ * Runner's listener reports for Saxon 12, for the constructs 9.6 traces.
+ * The stylesheet has to be compiled by a processor whose configuration
+ * compiles with tracing (9.6 only wraps templates in trace events then).
+ *
+ * <ul>
+ *   <li>Variables: a local xsl:variable (a let) and an xsl:param, read from
+ *       their slot in the stack frame once evaluated, as the request's watch,
+ *       sampling and the trace budget allow.</li>
+ *   <li>Hot spots: templates, functions, apply-templates, call-template,
+ *       for-each and for-each-group, counted with their inclusive and self
+ *       time. There is no expression profile or flame graph.</li>
+ * </ul>
+ *
+ * One listener per traced run, called on the transform's thread; the caller
+ * runs {@link #emitHotspots} when the transform is done.
+ */
+final class Saxon2TraceListener implements TraceListener {
+
+    private static final int MAX_HOTSPOTS = 500;
+    private static final Hotspot NOT_COUNTED = new Hotspot(null, null, -1);
+
+    private final Processor processor;
+    private final TraceSink sink;
+    private final TraceWatch watch;
+    private final TraceSampling sampling;
+    private final TraceBudget budget = new TraceBudget();
+    private boolean reported;
+
+    // Variables being evaluated, innermost first, with the context their
+    // value is bound in. With templates watched, `scopes` are the templates
+    // and functions now running; as in Runner, a variable watched only by
+    // its template is captured while the innermost of them is watched.
+    private final Deque<Binding> bindings = new ArrayDeque<>();
+    private final Deque<InstructionInfo> scopes = new ArrayDeque<>();
+    private final Map<InstructionInfo, Byte> decisions = new IdentityHashMap<>();
+    private static final byte IGNORED = 0;
+    private static final byte CAPTURED = 1;
+    private static final byte CAPTURED_IN_WATCHED_TEMPLATE = 2;
+    private static final byte WATCHED_TEMPLATE = 3;
+    private static final byte SCOPE = 4;
+
+    private final Map<String, Samples> samples = new LinkedHashMap<>();
+    private final Random random = new Random(0x5eedL);
+
+    // Counts and times per construct, as in Runner: a shadow stack of the
+    // counted constructs now running, in parallel arrays, less the time
+    // spent capturing values. Copies of one construct share a Hotspot.
+    private final Map<InstructionInfo, Hotspot> hotspots = new IdentityHashMap<>();
+    private final Map<String, Hotspot> byKey = new LinkedHashMap<>();
+    private InstructionInfo[] frameInstructions = new InstructionInfo[64];
+    private Hotspot[] frameHotspots = new Hotspot[64];
+    private long[] frameStarts = new long[64];
+    private long[] frameChildNanos = new long[64];
+    private long[] frameOverheadAtStart = new long[64];
+    private int depth;
+    private long overheadNanos;
+
+    Saxon2TraceListener(Processor processor, TraceSink sink, TraceWatch watch, TraceSampling sampling) {
+        this.processor = processor;
+        this.sink = sink;
+        this.watch = watch;
+        this.sampling = sampling;
+    }
+
+    @Override
+    public void setOutputDestination(Logger stream) {
+    }
+
+    @Override
+    public void open(Controller controller) {
+    }
+
+    @Override
+    public void close() {
+        emitHotspots();
+    }
+
+    @Override
+    public void enter(InstructionInfo info, XPathContext context) {
+        byte decision = decision(info);
+        if (decision == WATCHED_TEMPLATE || decision == SCOPE) {
+            scopes.push(info);
+        }
+        if (captures(decision)) {
+            if (budget.exhausted()) {
+                budget.skip();
+            } else {
+                bindings.push(new Binding(info, context));
+            }
+        }
+        enterHotspot(info);
+    }
+
+    @Override
+    public void leave(InstructionInfo info) {
+        leaveHotspot(info);
+        byte decision = decision(info);
+        if (captures(decision) && !budget.exhausted()) {
+            Binding binding = popBinding(info);
+            if (binding != null) {
+                long t = System.nanoTime();
+                capture(binding);
+                overheadNanos += System.nanoTime() - t;
+            }
+        }
+        if ((decision == WATCHED_TEMPLATE || decision == SCOPE) && scopes.contains(info)) {
+            InstructionInfo closed;
+            do {
+                closed = scopes.pop();
+            } while (closed != info);
+        }
+    }
+
+    @Override
+    public void startCurrentItem(Item item) {
+    }
+
+    @Override
+    public void endCurrentItem(Item item) {
+    }
+
+    private boolean captures(byte decision) {
+        return decision == CAPTURED || (decision == CAPTURED_IN_WATCHED_TEMPLATE && !scopes.isEmpty()
+                && decision(scopes.peek()) == WATCHED_TEMPLATE);
+    }
+
+    private byte decision(InstructionInfo info) {
+        Byte decision = decisions.get(info);
+        if (decision == null) {
+            decision = decide(info);
+            decisions.put(info, decision);
+        }
+        return decision;
+    }
+
+    private byte decide(InstructionInfo info) {
+        int construct = info.getConstructType();
+        if (construct == StandardNames.XSL_TEMPLATE || construct == StandardNames.XSL_FUNCTION) {
+            if (watch == null || !watch.watchesTemplates()) {
+                return IGNORED;
+            }
+            boolean watched = construct == StandardNames.XSL_TEMPLATE && watch.watchesTemplate(describe(info));
+            return watched ? WATCHED_TEMPLATE : SCOPE;
+        }
+        if ((construct != Location.LET_EXPRESSION && construct != StandardNames.XSL_PARAM)
+                || info.getObjectName() == null || slot(info) < 0) {
+            return IGNORED;
+        }
+        if (watch == null) {
+            return CAPTURED;
+        }
+        StructuredQName name = info.getObjectName();
+        if (watch.watchesVariable(name.getLocalPart(), name.getDisplayName())
+                || watch.watchesLine(info.getLineNumber())) {
+            return CAPTURED;
+        }
+        return watch.watchesTemplates() ? CAPTURED_IN_WATCHED_TEMPLATE : IGNORED;
+    }
+
+    /** The stack frame slot the variable's value is bound to, or -1. */
+    private static int slot(InstructionInfo info) {
+        if (!(info instanceof TraceExpression)) {
+            return -1;
+        }
+        Expression child = ((TraceExpression) info).getChildExpression();
+        while (child instanceof TraceExpression) {
+            child = ((TraceExpression) child).getChildExpression();
+        }
+        if (child instanceof Assignation) {
+            return ((Assignation) child).getLocalSlotNumber();
+        }
+        if (child instanceof LocalParamSetter) {
+            return ((LocalParamSetter) child).getBinding().getLocalSlotNumber();
+        }
+        return -1;
+    }
+
+    /** Also drops the ones above it that never saw their leave (an error caught by xsl:try). */
+    private Binding popBinding(InstructionInfo info) {
+        for (Binding binding : bindings) {
+            if (binding.info == info) {
+                Binding popped;
+                do {
+                    popped = bindings.pop();
+                } while (popped != binding);
+                return binding;
+            }
+        }
+        return null;
+    }
+
+    private void capture(Binding binding) {
+        InstructionInfo info = binding.info;
+        String name = info.getObjectName().getDisplayName();
+        int line = info.getLineNumber();
+        Sequence value = binding.context.evaluateLocalVariable(slot(info));
+        if (sampling == null) {
+            emitValue(name, line, null, value);
+            return;
+        }
+        Samples variable = samples.get(name);
+        if (variable == null) {
+            variable = new Samples(name);
+            samples.put(name, variable);
+        }
+        long index = ++variable.seen;
+        int rate = sampling.rate;
+        Sample sample = new Sample(index, line, value);
+        if (!sampling.random) {
+            if ((index - 1) % rate == 0) {
+                emitValue(name, line, "#" + index + " (1 in " + rate + ")", value);
+                variable.last = null;
+            } else {
+                variable.last = sample;
+            }
+            return;
+        }
+        // Reservoir sampling over the evaluations after the first, as Runner does.
+        if (index == 1) {
+            variable.first = sample;
+        } else if (variable.reservoir.size() < rate) {
+            variable.reservoir.add(sample);
+        } else {
+            long pick = (long) (random.nextDouble() * (index - 1));
+            if (pick < rate) {
+                variable.reservoir.set((int) pick, sample);
+            }
+        }
+        variable.last = sample;
+    }
+
+    private void emitValue(String name, int line, String label, Sequence sequence) {
+        budget.spend(name);
+        if (label != null) {
+            budget.spend(label);
+        }
+        TraceBudget.ValueWriter value = budget.startValue(sink.startVariable(name, line, label));
+        formatSequence(sequence, value);
+        sink.endVariable(value.truncated());
+    }
+
+    private void formatSequence(Sequence sequence, TraceBudget.ValueWriter value) {
+        if (sequence == null) {
+            return;
+        }
+        SequenceIterator items = null;
+        try {
+            items = sequence.iterate();
+            boolean first = true;
+            for (Item item = items.next(); item != null; item = items.next()) {
+                if (!first) {
+                    value.write('\n');
+                }
+                first = false;
+                if (item instanceof NodeInfo) {
+                    Serializer serializer = processor.newSerializer(value);
+                    serializer.serializeNode((XdmNode) XdmValue.wrap(item));
+                    serializer.close();
+                } else {
+                    value.write(item.getStringValue());
+                }
+            }
+        } catch (IOException | XPathException | SaxonApiException | RuntimeException e) {
+            // The serializer wraps the writer's Full; anything else is a
+            // value that could not be read.
+            if (!value.truncated()) {
+                try {
+                    value.write("(error: " + e.getMessage() + ")");
+                } catch (IOException full) {
+                    // Cut off at the limit.
+                }
+            }
+        } finally {
+            if (items != null) {
+                items.close();
+            }
+        }
+    }
+
+    /** The random samples, first and last values; each variable's in evaluation order. */
+    private void emitSamples() {
+        if (sampling == null) {
+            return;
+        }
+        for (Samples variable : samples.values()) {
+            List<Sample> taken = new ArrayList<>();
+            if (variable.first != null) {
+                taken.add(variable.first);
+            }
+            taken.addAll(variable.reservoir);
+            if (variable.last != null && !taken.contains(variable.last)) {
+                taken.add(variable.last);
+            }
+            taken.sort((a, b) -> Long.compare(a.index, b.index));
+            for (Sample sample : taken) {
+                if (budget.exhausted()) {
+                    budget.skip();
+                    continue;
+                }
+                String how;
+                if (sample == variable.first) {
+                    how = "first";
+                } else if (sample == variable.last) {
+                    how = sampling.random ? "last" : "last; 1 in " + sampling.rate;
+                } else {
+                    how = sampling.rate + " at random";
+                }
+                emitValue(variable.name, sample.line, "#" + sample.index + " of " + variable.seen + " (" + how + ")",
+                        sample.value);
+            }
+        }
+        samples.clear();
+    }
+
+    private void enterHotspot(InstructionInfo info) {
+        Hotspot hotspot = hotspots.get(info);
+        if (hotspot == null) {
+            hotspot = firstSight(info);
+        }
+        if (hotspot == NOT_COUNTED) {
+            return;
+        }
+        hotspot.count++;
+        if (depth == frameInstructions.length) {
+            int n = depth * 2;
+            frameInstructions = Arrays.copyOf(frameInstructions, n);
+            frameHotspots = Arrays.copyOf(frameHotspots, n);
+            frameStarts = Arrays.copyOf(frameStarts, n);
+            frameChildNanos = Arrays.copyOf(frameChildNanos, n);
+            frameOverheadAtStart = Arrays.copyOf(frameOverheadAtStart, n);
+        }
+        frameInstructions[depth] = info;
+        frameHotspots[depth] = hotspot;
+        frameChildNanos[depth] = 0;
+        frameOverheadAtStart[depth] = overheadNanos;
+        hotspot.active++;
+        frameStarts[depth++] = System.nanoTime();
+    }
+
+    private void leaveHotspot(InstructionInfo info) {
+        long now = System.nanoTime();
+        Hotspot hotspot = hotspots.get(info);
+        if (depth == 0 || hotspot == null || hotspot == NOT_COUNTED || hotspot.active == 0) {
+            return;
+        }
+        int frame = depth - 1;
+        while (frame >= 0 && frameInstructions[frame] != info) {
+            frame--;
+        }
+        while (frame >= 0 && depth > frame) {
+            popFrame(now);
+        }
+    }
+
+    private void popFrame(long now) {
+        int top = --depth;
+        long inclusive = now - frameStarts[top] - (overheadNanos - frameOverheadAtStart[top]);
+        Hotspot hotspot = frameHotspots[top];
+        hotspot.selfNanos += inclusive - frameChildNanos[top];
+        // A recursive construct's inner calls are inside its outermost one.
+        if (--hotspot.active == 0) {
+            hotspot.inclusiveNanos += inclusive;
+        }
+        if (top > 0) {
+            frameChildNanos[top - 1] += inclusive;
+        }
+        frameInstructions[top] = null;
+    }
+
+    private Hotspot firstSight(InstructionInfo info) {
+        Hotspot hotspot = NOT_COUNTED;
+        String kind = kind(info.getConstructType());
+        if (kind != null) {
+            String label = describe(info);
+            String key = kind + "\u0001" + label + "\u0001" + info.getLineNumber();
+            hotspot = byKey.get(key);
+            if (hotspot == null && byKey.size() < MAX_HOTSPOTS) {
+                hotspot = new Hotspot(kind, label, info.getLineNumber());
+                byKey.put(key, hotspot);
+            }
+            if (hotspot == null) {
+                hotspot = NOT_COUNTED;
+            }
+            // 9.6 wraps a function body in two trace events of the same
+            // construct, one inside the other; the inner one is not a call.
+            if (info instanceof TraceExpression) {
+                Expression child = ((TraceExpression) info).getChildExpression();
+                if (child instanceof TraceExpression
+                        && ((TraceExpression) child).getConstructType() == info.getConstructType()) {
+                    hotspots.put((TraceExpression) child, NOT_COUNTED);
+                }
+            }
+        }
+        hotspots.put(info, hotspot);
+        return hotspot;
+    }
+
+    private static String kind(int construct) {
+        switch (construct) {
+            case StandardNames.XSL_TEMPLATE:
+                return "xsl:template";
+            case StandardNames.XSL_APPLY_TEMPLATES:
+                return "xsl:apply-templates";
+            case StandardNames.XSL_FOR_EACH:
+                return "xsl:for-each";
+            case StandardNames.XSL_FOR_EACH_GROUP:
+                return "xsl:for-each-group";
+            case StandardNames.XSL_CALL_TEMPLATE:
+                return "xsl:call-template";
+            case StandardNames.XSL_FUNCTION:
+                return "xsl:function";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * A template's match pattern, else the construct's name; "" if neither.
+     * 9.6 names no xsl:call-template, so that is the template it calls.
+     */
+    private static String describe(InstructionInfo info) {
+        Object match = info.getProperty("match");
+        if (match != null && !match.toString().isEmpty()) {
+            return match.toString();
+        }
+        StructuredQName name = info.getObjectName();
+        if (name == null && info instanceof TraceExpression) {
+            Expression child = ((TraceExpression) info).getChildExpression();
+            if (child instanceof CallTemplate && ((CallTemplate) child).getTargetTemplate() != null) {
+                name = ((CallTemplate) child).getTargetTemplate().getTemplateName();
+            }
+        }
+        return name != null ? name.getDisplayName() : "";
+    }
+
+    /**
+     * Reported once, after the transform: the sampled values, the truncation
+     * if the trace reached its limit, the time tracing took, then the 25
+     * constructs with the most self time.
+     */
+    void emitHotspots() {
+        if (reported) {
+            return;
+        }
+        reported = true;
+        emitSamples();
+        if (budget.exhausted()) {
+            sink.truncated(budget.maxBytes(), budget.skipped());
+        }
+        sink.timing("traceOverhead", overheadNanos / 1000);
+        long now = System.nanoTime();
+        while (depth > 0) {
+            popFrame(now);
+        }
+        List<Hotspot> entries = new ArrayList<>();
+        for (Hotspot h : byKey.values()) {
+            if (h.count > 0) {
+                entries.add(h);
+            }
+        }
+        entries.sort((a, b) -> a.selfNanos != b.selfNanos
+                ? Long.compare(b.selfNanos, a.selfNanos)
+                : Long.compare(b.count, a.count));
+        for (Hotspot h : entries.subList(0, Math.min(entries.size(), 25))) {
+            sink.hotspot(h.count, h.kind, h.label, h.line,
+                    Math.max(0, h.inclusiveNanos / 1000), Math.max(0, h.selfNanos / 1000));
+        }
+        hotspots.clear();
+        byKey.clear();
+    }
+
+    private static final class Binding {
+        final InstructionInfo info;
+        final XPathContext context;
+
+        Binding(InstructionInfo info, XPathContext context) {
+            this.info = info;
+            this.context = context;
+        }
+    }
+
+    private static final class Hotspot {
+        final String kind;
+        final String label;
+        final int line;
+        long count;
+        int active;
+        long inclusiveNanos;
+        long selfNanos;
+
+        Hotspot(String kind, String label, int line) {
+            this.kind = kind;
+            this.label = label;
+            this.line = line;
+        }
+    }
+
+    private static final class Samples {
+        final String name;
+        long seen;
+        Sample first;
+        Sample last;
+        final List<Sample> reservoir = new ArrayList<>();
+
+        Samples(String name) {
+            this.name = name;
+        }
+    }
+
+    /** A value kept by reference: what the variable's slot held. */
+    private static final class Sample {
+        final long index;
+        final int line;
+        final Sequence value;
+
+        Sample(long index, int line, Sequence value) {
+            this.index = index;
+            this.line = line;
+            this.value = value;
+        }
+    }
+}
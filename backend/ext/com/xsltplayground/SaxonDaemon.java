@@ -1,25 +1,28 @@
 package com.xsltplayground;
 
-import com.google.gson.*;
-import com.sun.net.httpserver.*;
+import com.google.gson.JsonObject;
 import com.xsltplayground.ext.CustomFunctions;
+import com.xsltplayground.server.AsyncTraceSink;
+import com.xsltplayground.server.BinaryTraceSink;
+import com.xsltplayground.server.TraceSink;
+import com.xsltplayground.server.CompiledCache;
+import com.xsltplayground.server.Pool;
+import com.xsltplayground.server.Timings;
+import com.xsltplayground.server.TransformServer;
 import net.sf.saxon.lib.ErrorReporter;
 import net.sf.saxon.lib.FeatureKeys;
+import net.sf.saxon.om.TreeModel;
 import net.sf.saxon.s9api.*;
 
 import javax.xml.transform.stream.StreamSource;
 import java.io.*;
-import java.net.InetSocketAddress;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.*;
 
 public class SaxonDaemon {
 
     // Two processors: normal (optimized) and trace (no optimization, needed for variable tracing)
     static final Processor PROCESSOR;
     static final Processor TRACE_PROCESSOR;
-    private static final Gson GSON = new Gson();
 
     static {
         PROCESSOR = new Processor(false);
@@ -28,217 +31,253 @@ public class SaxonDaemon {
         TRACE_PROCESSOR = new Processor(false);
         TRACE_PROCESSOR.setConfigurationProperty(FeatureKeys.OPTIMIZATION_LEVEL, "0");
         CustomFunctions.registerAll(TRACE_PROCESSOR);
-
-        // Warm up both processors so the first real request pays no JVM class-loading cost
-        String warmupXslt =
-            "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>" +
-            "<xsl:template match='/'><out/></xsl:template></xsl:stylesheet>";
-        String warmupXml = "<root/>";
-        for (Processor proc : new Processor[]{PROCESSOR, TRACE_PROCESSOR}) {
-            try {
-                XsltCompiler c = proc.newXsltCompiler();
-                XsltExecutable exec = c.compile(new StreamSource(new StringReader(warmupXslt)));
-                XsltTransformer t = exec.load();
-                XdmNode doc = proc.newDocumentBuilder()
-                        .build(new StreamSource(new StringReader(warmupXml)));
-                t.setInitialContextNode(doc);
-                Serializer ser = proc.newSerializer(new StringWriter());
-                t.setDestination(ser);
-                t.transform();
-            } catch (Exception e) {
-                System.err.println("Warm-up warning: " + e.getMessage());
-            }
-        }
-        System.out.println("SaxonDaemon: warm-up complete.");
     }
 
+    public static final String[] WARMUP_VERSIONS = {"3.0"};
+
     public static void main(String[] args) throws Exception {
-        int port = 8081;
-        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 32);
-        server.createContext("/transform", new TransformHandler());
-        server.createContext("/health", exchange -> {
-            byte[] resp = "ok".getBytes(StandardCharsets.UTF_8);
-            exchange.getResponseHeaders().set("Content-Type", "text/plain");
-            exchange.sendResponseHeaders(200, resp.length);
-            try (OutputStream os = exchange.getResponseBody()) { os.write(resp); }
-        });
-        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
-        server.setExecutor(Executors.newFixedThreadPool(threads));
-        server.start();
-        System.out.println("SaxonDaemon ready on :" + port + " (threads=" + threads + ")");
+        new TransformServer("SaxonDaemon", 8081, SaxonDaemon::transform, WARMUP_VERSIONS).start();
     }
 
-    static class TransformHandler implements HttpHandler {
-        @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
-                exchange.sendResponseHeaders(405, -1);
-                exchange.close();
-                return;
+    /** Compiled stylesheets for plain runs; traced runs compile with instrumentation every time. */
+    static final CompiledCache<Compiled> EXECUTABLES = CompiledCache.fromProperties(compiled -> compiled.idle);
+
+    /** A compiled stylesheet and the idle transformers loaded from it. */
+    static final class Compiled {
+        final XsltExecutable exec;
+        final Pool<Loaded> idle = new Pool<>();
+
+        Compiled(XsltExecutable exec) {
+            this.exec = exec;
+        }
+    }
+
+    /**
+     * A transformer with its output plumbing — serializer, result buffer and
+     * xsl:result-document handler — set up once, so a pooled run allocates
+     * little beyond its documents and result.
+     */
+    static final class Loaded {
+        /** Result buffers that grew past this are dropped rather than kept alive in the pool. */
+        private static final int MAX_RETAINED_CHARS = 1 << 16;
+
+        final XsltTransformer transformer;
+        final Serializer serializer;
+        final Map<String, StringWriter> secondaryWriters = new LinkedHashMap<>();
+        StringWriter resultWriter = new StringWriter();
+
+        Loaded(Processor proc, XsltExecutable exec) {
+            transformer = exec.load();
+            serializer = proc.newSerializer(resultWriter);
+            transformer.setDestination(serializer);
+            // Capture secondary documents produced by xsl:result-document
+            transformer.setResultDocumentHandler(uri -> {
+                String key = uri != null ? uri.toString() : "secondary-" + secondaryWriters.size();
+                StringWriter sw = new StringWriter();
+                secondaryWriters.put(key, sw);
+                return proc.newSerializer(sw);
+            });
+        }
+
+        /** Forgets the last run's input and output so the next one starts clean and they can be collected. */
+        void reset() {
+            transformer.clearParameters();
+            transformer.setInitialContextNode(null);
+            secondaryWriters.clear();
+            if (resultWriter.getBuffer().capacity() > MAX_RETAINED_CHARS) {
+                resultWriter = new StringWriter();
+            } else {
+                resultWriter.getBuffer().setLength(0);
             }
+            // Drops the run's guarded writer and tree model, and the request with them.
+            serializer.setOutputWriter(resultWriter);
+            transformer.getUnderlyingController().setModel(TreeModel.TINY_TREE);
+        }
+    }
 
-            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
-            JsonObject response = new JsonObject();
-            int status = 200;
-            // Declared before the try so the catch block can read them.
-            String source = "";
-            final List<String> compileErrors = new ArrayList<>();
-
-            try {
-                JsonObject req = GSON.fromJson(body, JsonObject.class);
-
-                String xslt   = req.has("xslt")   ? req.get("xslt").getAsString()   : "";
-                source = req.has("source")  ? req.get("source").getAsString() : "";
-                boolean trace = req.has("trace") && req.get("trace").getAsBoolean();
-
-                Map<String, String> params     = jsonObjectToMap(req, "parameters");
-                Map<String, String> fileParams = jsonObjectToMap(req, "fileParameters");
-
-                Processor proc = trace ? TRACE_PROCESSOR : PROCESSOR;
-
-                // Per-request trace sink — each request writes to its own buffer (thread-safe)
-                ByteArrayOutputStream traceBuf = new ByteArrayOutputStream();
-                PrintStream traceSink = new PrintStream(traceBuf, true, StandardCharsets.UTF_8);
-
-                // Collect detailed compile diagnostics (code + message + line) so the
-                // user sees the real error instead of Saxon's generic summary
-                // ("Errors were reported during stylesheet compilation").
-                final ErrorReporter collector = new ErrorReporter() {
-                    private final Set<String> seen = new LinkedHashSet<>();
-                    @Override public void report(XmlProcessingError error) {
-                        if (error == null || error.isWarning()) return;
-                        StringBuilder sb = new StringBuilder();
-                        QName code = error.getErrorCode();
-                        if (code != null) sb.append(code.getLocalName()).append(": ");
-                        String msg = error.getMessage();
-                        sb.append(msg != null ? msg : "static error");
-                        int line = (error.getLocation() != null) ? error.getLocation().getLineNumber() : -1;
-                        if (line > 0) sb.append(" (line ").append(line).append(")");
-                        String formatted = sb.toString();
-                        if (seen.add(formatted)) compileErrors.add(formatted);
-                    }
-                };
-
-                XsltCompiler compiler = proc.newXsltCompiler();
-                compiler.setErrorReporter(new Runner.DeduplicatingErrorReporter(collector));
+    public static TransformServer.Response transform(TransformServer.Request req) {
+        JsonObject response = new JsonObject();
+        int status = 200;
+        String source = req.source;
+        // Declared before the try so the catch block can read it.
+        final List<String> compileErrors = new ArrayList<>();
+        Timings timings = req.timings;
+        AsyncTraceSink asyncSink = null;
 
-                boolean instrumentationEnabled = false;
-                if (trace) {
-                    instrumentationEnabled = Runner.enableCompileWithTracing(compiler);
-                }
+        try {
+            String xslt   = req.xslt;
+            boolean trace = req.trace;
 
-                XsltExecutable exec;
-                try {
-                    exec = compiler.compile(new StreamSource(new StringReader(xslt)));
-                } catch (SaxonApiException e) {
-                    if (trace && instrumentationEnabled) {
-                        // Retry without instrumentation
-                        compileErrors.clear();
-                        compiler = proc.newXsltCompiler();
-                        compiler.setErrorReporter(new Runner.DeduplicatingErrorReporter(collector));
-                        exec = compiler.compile(new StreamSource(new StringReader(xslt)));
-                    } else {
-                        throw e;
-                    }
-                }
+            Map<String, String> params     = req.parameters;
+            Map<String, String> fileParams = req.fileParameters;
 
-                XsltTransformer transformer = exec.load();
+            Processor proc = trace ? TRACE_PROCESSOR : PROCESSOR;
 
-                Runnable flushProfile = null;
-                if (trace) {
-                    flushProfile = Runner.attachTraceListener(proc, transformer, traceSink);
-                }
+            // Per-request trace sink — each request writes to its own buffer (thread-safe).
+            // With xslt.trace.async a writer thread encodes the records.
+            BinaryTraceSink traceSink = new BinaryTraceSink();
+            if (trace && AsyncTraceSink.IN_DAEMONS) {
+                asyncSink = new AsyncTraceSink(traceSink, () -> { });
+            }
+            TraceSink sink = asyncSink != null ? asyncSink : traceSink;
 
-                // Source document — omit when empty so Saxon can invoke xsl:initial-template
-                if (source != null && !source.isEmpty()) {
-                    XdmNode doc = proc.newDocumentBuilder()
-                            .build(new StreamSource(new StringReader(source)));
-                    transformer.setInitialContextNode(doc);
+            long t = timings.mark();
+            Compiled compiled = null;
+            Loaded loaded = null;
+            if (trace) {
+                loaded = new Loaded(proc, compile(proc, xslt, true, compileErrors));
+            } else {
+                compiled = EXECUTABLES.get(req.stylesheetHash,
+                        () -> new Compiled(compile(proc, xslt, false, compileErrors)));
+                loaded = compiled.idle.poll();
+                if (loaded == null) {
+                    loaded = new Loaded(proc, compiled.exec);
                 }
+            }
+            timings.add(Timings.Phase.COMPILE, t);
 
-                // String parameters
-                for (Map.Entry<String, String> e : params.entrySet()) {
-                    transformer.setParameter(new QName(e.getKey()), new XdmAtomicValue(e.getValue()));
-                }
+            XsltTransformer transformer = loaded.transformer;
 
-                // File/XML parameters passed inline
-                for (Map.Entry<String, String> e : fileParams.entrySet()) {
-                    String val = e.getValue().trim();
-                    if (val.startsWith("<")) {
-                        XdmNode node = proc.newDocumentBuilder()
-                                .build(new StreamSource(new StringReader(val)));
-                        transformer.setParameter(new QName(e.getKey()), node);
-                    } else {
-                        transformer.setParameter(new QName(e.getKey()), new XdmAtomicValue(val));
-                    }
-                }
+            Runnable flushProfile = null;
+            if (trace) {
+                flushProfile = Runner.attachTraceListener(proc, transformer, sink, req.watch, req.sampling);
+            }
 
-                // Capture secondary documents produced by xsl:result-document
-                Map<String, StringWriter> secondaryWriters = new LinkedHashMap<>();
-                transformer.setResultDocumentHandler(uri -> {
-                    String key = uri != null ? uri.toString() : "secondary-" + secondaryWriters.size();
-                    StringWriter sw = new StringWriter();
-                    secondaryWriters.put(key, sw);
-                    return proc.newSerializer(sw);
-                });
-
-                StringWriter resultWriter = new StringWriter();
-                Serializer ser = proc.newSerializer(resultWriter);
-                transformer.setDestination(ser);
-                transformer.transform();
-
-                if (flushProfile != null) {
-                    flushProfile.run();
-                }
-                traceSink.flush();
-                response.addProperty("result", resultWriter.toString());
-                response.addProperty("traceText", trace ? traceBuf.toString(StandardCharsets.UTF_8) : "");
-
-                if (!secondaryWriters.isEmpty()) {
-                    JsonObject secondary = new JsonObject();
-                    for (Map.Entry<String, StringWriter> e : secondaryWriters.entrySet()) {
-                        secondary.addProperty(e.getKey(), e.getValue().toString());
-                    }
-                    response.add("secondaryResults", secondary);
+            // Source document — omit when empty so Saxon can invoke xsl:initial-template
+            t = timings.mark();
+            if (source != null && !source.isEmpty()) {
+                XdmNode doc = proc.newDocumentBuilder()
+                        .build(new StreamSource(req.guard(new StringReader(source))));
+                transformer.setInitialContextNode(doc);
+            }
+            timings.add(Timings.Phase.PARSE, t);
+
+            // String parameters
+            t = timings.mark();
+            for (Map.Entry<String, String> e : params.entrySet()) {
+                transformer.setParameter(new QName(e.getKey()), new XdmAtomicValue(e.getValue()));
+            }
+
+            // File/XML parameters passed inline
+            for (Map.Entry<String, String> e : fileParams.entrySet()) {
+                String val = e.getValue().trim();
+                if (val.startsWith("<")) {
+                    XdmNode node = proc.newDocumentBuilder()
+                            .build(new StreamSource(new StringReader(val)));
+                    transformer.setParameter(new QName(e.getKey()), node);
+                } else {
+                    transformer.setParameter(new QName(e.getKey()), new XdmAtomicValue(val));
                 }
+            }
+            timings.add(Timings.Phase.PARAMS, t);
+
+            t = timings.mark();
+            loaded.serializer.setOutputWriter(req.guard(loaded.resultWriter));
+            transformer.getUnderlyingController().setModel(new GuardedTreeModel(req));
+            transformer.transform();
+            timings.add(Timings.Phase.TRANSFORM, t);
+
+            if (flushProfile != null) {
+                flushProfile.run();
+            }
+            if (asyncSink != null) {
+                asyncSink.close();
+            }
+            t = timings.mark();
+            response.addProperty("result", loaded.resultWriter.toString());
+            response.addProperty("traceEvents", trace ? traceSink.toBase64() : "");
 
-            } catch (SaxonApiException e) {
-                // Prefer the detailed diagnostics captured by the ErrorReporter over
-                // Saxon's generic top-level summary.
-                String detail = !compileErrors.isEmpty()
-                        ? String.join("\n", compileErrors)
-                        : (e.getMessage() != null ? e.getMessage() : e.toString());
-                // Friendly guidance for the common "forgot the input XML" case: with no
-                // source document Saxon invokes the default xsl:initial-template, which
-                // most stylesheets do not define.
-                if ((source == null || source.isEmpty()) && detail != null
-                        && detail.contains("initial-template")) {
-                    detail = "No input XML was provided, so Saxon tried to invoke the default "
-                            + "xsl:initial-template — which this stylesheet does not define. "
-                            + "Add an input XML document, or define "
-                            + "<xsl:template name=\"xsl:initial-template\"> as the entry point.";
+            if (!loaded.secondaryWriters.isEmpty()) {
+                JsonObject secondary = new JsonObject();
+                for (Map.Entry<String, StringWriter> e : loaded.secondaryWriters.entrySet()) {
+                    secondary.addProperty(e.getKey(), e.getValue().toString());
                 }
-                response.addProperty("error", detail);
-                status = 400;
-            } catch (Exception e) {
-                response.addProperty("error", e.toString());
-                status = 500;
+                response.add("secondaryResults", secondary);
+            }
+            timings.add(Timings.Phase.SERIALIZE, t);
+
+            // Only a transformer that finished cleanly goes back; one that
+            // failed part-way is simply dropped.
+            if (compiled != null) {
+                loaded.reset();
+                compiled.idle.release(loaded);
             }
 
-            byte[] respBytes = GSON.toJson(response).getBytes(StandardCharsets.UTF_8);
-            exchange.getResponseHeaders().set("Content-Type", "application/json");
-            exchange.sendResponseHeaders(status, respBytes.length);
-            try (OutputStream os = exchange.getResponseBody()) { os.write(respBytes); }
+        } catch (SaxonApiException e) {
+            // Prefer the detailed diagnostics captured by the ErrorReporter over
+            // Saxon's generic top-level summary.
+            String detail = !compileErrors.isEmpty()
+                    ? String.join("\n", compileErrors)
+                    : (e.getMessage() != null ? e.getMessage() : e.toString());
+            // Friendly guidance for the common "forgot the input XML" case: with no
+            // source document Saxon invokes the default xsl:initial-template, which
+            // most stylesheets do not define.
+            if ((source == null || source.isEmpty()) && detail != null
+                    && detail.contains("initial-template")) {
+                detail = "No input XML was provided, so Saxon tried to invoke the default "
+                        + "xsl:initial-template — which this stylesheet does not define. "
+                        + "Add an input XML document, or define "
+                        + "<xsl:template name=\"xsl:initial-template\"> as the entry point.";
+            }
+            response.addProperty("error", detail);
+            status = 400;
+        } catch (Exception e) {
+            response.addProperty("error", e.toString());
+            status = 500;
+        } finally {
+            if (asyncSink != null) {
+                asyncSink.close();
+            }
         }
 
-        private Map<String, String> jsonObjectToMap(JsonObject req, String key) {
-            Map<String, String> result = new LinkedHashMap<>();
-            if (req.has(key) && req.get(key).isJsonObject()) {
-                for (Map.Entry<String, JsonElement> e : req.getAsJsonObject(key).entrySet()) {
-                    result.put(e.getKey(), e.getValue().getAsString());
-                }
+        return new TransformServer.Response(status, response);
+    }
+
+    /**
+     * Compiles with detailed diagnostics collected into {@code compileErrors}.
+     * Traced compiles are instrumented, falling back to a plain compile for
+     * stylesheets the instrumentation cannot handle.
+     */
+    private static XsltExecutable compile(Processor proc, String xslt, boolean trace,
+                                          List<String> compileErrors) throws SaxonApiException {
+        // Collect detailed compile diagnostics (code + message + line) so the
+        // user sees the real error instead of Saxon's generic summary
+        // ("Errors were reported during stylesheet compilation").
+        final ErrorReporter collector = new ErrorReporter() {
+            private final Set<String> seen = new LinkedHashSet<>();
+            @Override public void report(XmlProcessingError error) {
+                if (error == null || error.isWarning()) return;
+                StringBuilder sb = new StringBuilder();
+                QName code = error.getErrorCode();
+                if (code != null) sb.append(code.getLocalName()).append(": ");
+                String msg = error.getMessage();
+                sb.append(msg != null ? msg : "static error");
+                int line = (error.getLocation() != null) ? error.getLocation().getLineNumber() : -1;
+                if (line > 0) sb.append(" (line ").append(line).append(")");
+                String formatted = sb.toString();
+                if (seen.add(formatted)) compileErrors.add(formatted);
+            }
+        };
+
+        XsltCompiler compiler = proc.newXsltCompiler();
+        compiler.setErrorReporter(new Runner.DeduplicatingErrorReporter(collector));
+
+        boolean instrumentationEnabled = false;
+        if (trace) {
+            instrumentationEnabled = Runner.enableCompileWithTracing(compiler);
+        }
+
+        try {
+            return compiler.compile(new StreamSource(new StringReader(xslt)));
+        } catch (SaxonApiException e) {
+            if (trace && instrumentationEnabled) {
+                // Retry without instrumentation
+                compileErrors.clear();
+                compiler = proc.newXsltCompiler();
+                compiler.setErrorReporter(new Runner.DeduplicatingErrorReporter(collector));
+                return compiler.compile(new StreamSource(new StringReader(xslt)));
             }
-            return result;
+            throw e;
         }
     }
 }
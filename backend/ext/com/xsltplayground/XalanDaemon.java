@@ -1,30 +1,43 @@
 package com.xsltplayground;
 
-import com.google.gson.*;
-import com.sun.net.httpserver.*;
+import com.google.gson.JsonObject;
+import com.xsltplayground.server.CompiledCache;
+import com.xsltplayground.server.Pool;
+import com.xsltplayground.server.Timings;
+import com.xsltplayground.server.TransformServer;
 
 import javax.xml.transform.*;
 import javax.xml.transform.stream.*;
 import java.io.*;
-import java.net.InetSocketAddress;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.*;
 
 /**
  * XSLT 1.0 daemon using the JDK's built-in XSLT processor (XSLTC / Xalan-J).
  * Runs on port 8082. No Saxon dependency.
+ *
+ * It also builds as a GraalVM native image (Dockerfile.xalan-native), which
+ * starts in milliseconds but cannot run XSLTC: XSLTC compiles every
+ * stylesheet to bytecode and loads it as a class, and a native image has no
+ * class loading at run time. There the daemon uses Apache Xalan's
+ * interpretive processor, which walks the stylesheet tree instead.
+ * {@code -Dxslt.xalan.processor=xsltc|interpretive} overrides the choice on
+ * the JVM, where the interpretive one needs xalan.jar and serializer.jar on
+ * the class path.
  */
 public class XalanDaemon {
 
-    private static final Gson GSON = new Gson();
     private static final int PORT = 8082;
 
-    static {
-        // Force JDK built-in XSLTC (not Saxon, which might be on the classpath)
-        System.setProperty("javax.xml.transform.TransformerFactory",
-                "com.sun.org.apache.xalan.internal.xsltc.trax.TransformerFactoryImpl");
+    /** Apache Xalan-J 2.7's interpretive processor, found by name so the JVM build does not need its jar. */
+    private static final String INTERPRETIVE_FACTORY = "org.apache.xalan.processor.TransformerFactoryImpl";
+
+    /** True when running as a native image (set by the image itself, not on any JVM). */
+    static final boolean NATIVE = "runtime".equals(System.getProperty("org.graalvm.nativeimage.imagecode"));
 
+    static final boolean INTERPRETIVE =
+            System.getProperty("xslt.xalan.processor", NATIVE ? "interpretive" : "xsltc").equals("interpretive");
+
+    static {
         // Secure processing caps an XPath expression at 100 operators, and real
         // enterprise stylesheets go past it — users were getting JAXP0801002
         // ("exceeds the '100' limit set by FEATURE_SECURE_PROCESSING") on
@@ -36,15 +49,8 @@ public class XalanDaemon {
         setIfAbsent("jdk.xml.xpathExprGrpLimit", "1000");
         setIfAbsent("jdk.xml.xpathTotalOpLimit", "1000000");
 
-        // Warm up
-        try {
-            TransformerFactory.newInstance().newTemplates(new StreamSource(new StringReader(
-                    "<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>" +
-                    "<xsl:template match='/'><out/></xsl:template></xsl:stylesheet>")));
-        } catch (Exception e) {
-            System.err.println("XalanDaemon warm-up warning: " + e.getMessage());
-        }
-        System.out.println("XalanDaemon: warm-up complete.");
+        // TransformServer warms the engine up from the corpus (Warmup).
+        System.out.println("XalanDaemon: " + (INTERPRETIVE ? "interpretive Xalan" : "XSLTC") + ".");
     }
 
     /** Leaves any value supplied on the command line (-D...) untouched. */
@@ -54,107 +60,162 @@ public class XalanDaemon {
         }
     }
 
+    public static final String[] WARMUP_VERSIONS = {"1.0"};
+
     public static void main(String[] args) throws Exception {
-        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", PORT), 32);
-        server.createContext("/transform", new TransformHandler());
-        server.createContext("/health", exchange -> {
-            byte[] resp = "ok".getBytes(StandardCharsets.UTF_8);
-            exchange.getResponseHeaders().set("Content-Type", "text/plain");
-            exchange.sendResponseHeaders(200, resp.length);
-            try (OutputStream os = exchange.getResponseBody()) { os.write(resp); }
-        });
-        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
-        server.setExecutor(Executors.newFixedThreadPool(threads));
-        server.start();
-        System.out.println("XalanDaemon ready on :" + PORT + " (threads=" + threads + ")");
+        new TransformServer("XalanDaemon", PORT, XalanDaemon::transform, WARMUP_VERSIONS).start();
     }
 
-    static class TransformHandler implements HttpHandler {
-        @Override
-        public void handle(HttpExchange exchange) throws IOException {
-            if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
-                exchange.sendResponseHeaders(405, -1);
-                exchange.close();
-                return;
-            }
+    /** Compiled stylesheets, with the compile warnings every response for them reports. */
+    static final CompiledCache<Compiled> TEMPLATES = CompiledCache.fromProperties(compiled -> compiled.idle);
+
+    static final class Compiled {
+        final Templates templates;
+        final String warnings;
+        final Pool<Loaded> idle = new Pool<>();
+
+        Compiled(Templates templates, String warnings) {
+            this.templates = templates;
+            this.warnings = warnings;
+        }
+    }
+
+    /** A transformer plus the buffers its runs write into, reused across requests. */
+    static final class Loaded {
+        /** Result buffers that grew past this are dropped rather than kept alive in the pool. */
+        private static final int MAX_RETAINED_CHARS = 1 << 16;
 
-            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
-            JsonObject response = new JsonObject();
-            int status = 200;
-
-            try {
-                JsonObject req = GSON.fromJson(body, JsonObject.class);
-
-                String xslt   = req.has("xslt")   ? req.get("xslt").getAsString()   : "";
-                String source = req.has("source")  ? req.get("source").getAsString() : "";
-
-                Map<String, String> params     = jsonObjectToMap(req, "parameters");
-                Map<String, String> fileParams = jsonObjectToMap(req, "fileParameters");
-
-                // Collect warnings
-                StringBuilder warnings = new StringBuilder();
-                ErrorListener errorListener = new ErrorListener() {
-                    @Override public void warning(TransformerException e) {
-                        warnings.append("Warning: ").append(e.getMessage()).append("\n");
-                    }
-                    @Override public void error(TransformerException e) throws TransformerException { throw e; }
-                    @Override public void fatalError(TransformerException e) throws TransformerException { throw e; }
-                };
-
-                TransformerFactory factory = TransformerFactory.newInstance();
-                factory.setErrorListener(errorListener);
-                Templates templates = factory.newTemplates(new StreamSource(new StringReader(xslt)));
-                Transformer transformer = templates.newTransformer();
-                transformer.setErrorListener(errorListener);
-
-                for (Map.Entry<String, String> e : params.entrySet()) {
-                    transformer.setParameter(e.getKey(), e.getValue());
-                }
-                // File params: XSLT 1.0 doesn't support node-typed params natively — pass as string
-                for (Map.Entry<String, String> e : fileParams.entrySet()) {
-                    transformer.setParameter(e.getKey(), e.getValue());
-                }
-
-                // XSLT 1.0 always requires a source document (no xsl:initial-template)
-                String src = (source != null && !source.isEmpty()) ? source : "<root/>";
-                StringWriter resultWriter = new StringWriter();
-                transformer.transform(new StreamSource(new StringReader(src)), new StreamResult(resultWriter));
-
-                response.addProperty("result", resultWriter.toString());
-                response.addProperty("traceText", warnings.toString());
-
-            } catch (TransformerException e) {
-                response.addProperty("error", formatError(e));
-                status = 400;
-            } catch (Exception e) {
-                response.addProperty("error", e.getMessage() != null ? e.getMessage() : e.toString());
-                status = 500;
+        final Transformer transformer;
+        final StringBuilder warnings = new StringBuilder();
+        final ErrorListener errorListener = new ErrorListener() {
+            @Override public void warning(TransformerException e) {
+                warnings.append("Warning: ").append(e.getMessage()).append("\n");
             }
+            @Override public void error(TransformerException e) throws TransformerException { throw e; }
+            @Override public void fatalError(TransformerException e) throws TransformerException { throw e; }
+        };
+        StringWriter resultWriter = new StringWriter();
+
+        Loaded(Templates templates) throws TransformerConfigurationException {
+            transformer = templates.newTransformer();
+            transformer.setErrorListener(errorListener);
+        }
 
-            byte[] respBytes = GSON.toJson(response).getBytes(StandardCharsets.UTF_8);
-            exchange.getResponseHeaders().set("Content-Type", "application/json");
-            exchange.sendResponseHeaders(status, respBytes.length);
-            try (OutputStream os = exchange.getResponseBody()) { os.write(respBytes); }
+        /** Forgets the last run's parameters and output so the next one starts clean. */
+        void reset() {
+            // XSLTC's reset() leaves the translet's own parameter values in
+            // place, so they are cleared explicitly. It also puts back the
+            // default error listener.
+            transformer.clearParameters();
+            transformer.reset();
+            transformer.setErrorListener(errorListener);
+            warnings.setLength(0);
+            if (resultWriter.getBuffer().capacity() > MAX_RETAINED_CHARS) {
+                resultWriter = new StringWriter();
+            } else {
+                resultWriter.getBuffer().setLength(0);
+            }
         }
+    }
+
+    public static TransformServer.Response transform(TransformServer.Request req) {
+        JsonObject response = new JsonObject();
+        int status = 200;
+        Timings timings = req.timings;
+
+        try {
+            String xslt   = req.xslt;
+            String source = req.source;
 
-        private static String formatError(TransformerException e) {
-            SourceLocator loc = e.getLocator();
-            String msg = e.getMessage() != null ? e.getMessage() : e.toString();
-            if (loc != null && loc.getLineNumber() > 0) {
-                return "Error at line " + loc.getLineNumber() +
-                       ", column " + loc.getColumnNumber() + ": " + msg;
+            Map<String, String> params     = req.parameters;
+            Map<String, String> fileParams = req.fileParameters;
+
+            long t = timings.mark();
+            Compiled compiled = TEMPLATES.get(req.stylesheetHash, () -> compile(xslt));
+            Loaded loaded = compiled.idle.poll();
+            if (loaded == null) {
+                loaded = new Loaded(compiled.templates);
+            }
+            timings.add(Timings.Phase.COMPILE, t);
+            Transformer transformer = loaded.transformer;
+
+            t = timings.mark();
+            for (Map.Entry<String, String> e : params.entrySet()) {
+                transformer.setParameter(e.getKey(), e.getValue());
+            }
+            // File params: XSLT 1.0 doesn't support node-typed params natively — pass as string
+            for (Map.Entry<String, String> e : fileParams.entrySet()) {
+                transformer.setParameter(e.getKey(), e.getValue());
             }
-            return msg;
+            timings.add(Timings.Phase.PARAMS, t);
+
+            // XSLT 1.0 always requires a source document (no xsl:initial-template).
+            // XSLTC parses the source inside transform(), so parse and transform
+            // are reported together under TRANSFORM.
+            String src = (source != null && !source.isEmpty()) ? source : "<root/>";
+            t = timings.mark();
+            transformer.transform(new StreamSource(req.guard(new StringReader(src))),
+                    new StreamResult(req.guard(loaded.resultWriter)));
+            timings.add(Timings.Phase.TRANSFORM, t);
+
+            t = timings.mark();
+            response.addProperty("result", loaded.resultWriter.toString());
+            response.addProperty("traceText", compiled.warnings + loaded.warnings);
+            timings.add(Timings.Phase.SERIALIZE, t);
+
+            // Only a transformer that finished cleanly goes back to the pool.
+            loaded.reset();
+            compiled.idle.release(loaded);
+
+        } catch (TransformerException e) {
+            response.addProperty("error", formatError(e));
+            status = 400;
+        } catch (Exception e) {
+            response.addProperty("error", e.getMessage() != null ? e.getMessage() : e.toString());
+            status = 500;
         }
 
-        private Map<String, String> jsonObjectToMap(JsonObject req, String key) {
-            Map<String, String> result = new LinkedHashMap<>();
-            if (req.has(key) && req.get(key).isJsonObject()) {
-                for (Map.Entry<String, JsonElement> e : req.getAsJsonObject(key).entrySet()) {
-                    result.put(e.getKey(), e.getValue().getAsString());
-                }
+        return new TransformServer.Response(status, response);
+    }
+
+    private static Compiled compile(String xslt) throws TransformerConfigurationException {
+        // Collect warnings
+        StringBuilder warnings = new StringBuilder();
+        ErrorListener errorListener = new ErrorListener() {
+            @Override public void warning(TransformerException e) {
+                warnings.append("Warning: ").append(e.getMessage()).append("\n");
             }
-            return result;
+            @Override public void error(TransformerException e) throws TransformerException { throw e; }
+            @Override public void fatalError(TransformerException e) throws TransformerException { throw e; }
+        };
+
+        TransformerFactory factory = newFactory();
+        factory.setErrorListener(errorListener);
+        Templates templates = factory.newTemplates(new StreamSource(new StringReader(xslt)));
+        return new Compiled(templates, warnings.toString());
+    }
+
+    /**
+     * The JDK's built-in XSLTC, never Saxon, even if one is on the class
+     * path, or Xalan's interpretive processor (see above). Both are asked for
+     * directly rather than through the javax.xml.transform.TransformerFactory
+     * system property, which would also switch every other engine in the same
+     * JVM (see EngineHost).
+     */
+    private static TransformerFactory newFactory() {
+        if (INTERPRETIVE) {
+            return TransformerFactory.newInstance(INTERPRETIVE_FACTORY, XalanDaemon.class.getClassLoader());
+        }
+        return TransformerFactory.newDefaultInstance();
+    }
+
+    private static String formatError(TransformerException e) {
+        SourceLocator loc = e.getLocator();
+        String msg = e.getMessage() != null ? e.getMessage() : e.toString();
+        if (loc != null && loc.getLineNumber() > 0) {
+            return "Error at line " + loc.getLineNumber() +
+                   ", column " + loc.getColumnNumber() + ": " + msg;
         }
+        return msg;
     }
 }
@@ -0,0 +1,300 @@
+package com.xsltplayground.server;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A trace sink that keeps the writing off the transform's thread. Every call
+ * becomes one record in a bounded ring, and a background writer replays the
+ * records onto the sink that encodes them, flushing its output whenever it
+ * has caught up; the transform only ever builds a record and enqueues it.
+ *
+ * <ul>
+ *   <li>{@code xslt.trace.queue} records fit in the ring (default 8192,
+ *       rounded up to a power of two). A variable's value is one record.</li>
+ *   <li>{@code xslt.trace.overflow} says what happens when the writer falls
+ *       that far behind: {@code block} (the default) waits for room,
+ *       {@code drop-oldest} discards the record that has waited longest,
+ *       {@code drop-newest} the one being added. How many were dropped is
+ *       reported as a message at the end of the trace.</li>
+ *   <li>{@code xslt.trace.async=true} puts it in front of the daemons'
+ *       {@link BinaryTraceSink} too. Off by default: encoding a record into
+ *       the response buffer costs less than handing it to another thread,
+ *       so on one CPU (the chart's backend limit) traced runs got slower
+ *       with it; it pays only where the writer has a core of its own.</li>
+ * </ul>
+ *
+ * The ring is the bounded queue of Vyukov: a sequence number per slot says
+ * whether the slot is free for the producer at a position or holds a record
+ * for the consumer at it, so neither side takes a lock. Dropping the oldest
+ * record makes the producer a consumer too, which the queue allows. Values
+ * are collected on the transform's thread, which is the only one that may
+ * write a variable at a time; {@link #close} drains the ring and waits for
+ * the writer.
+ */
+public final class AsyncTraceSink implements TraceSink, AutoCloseable {
+
+    public enum Overflow {
+        BLOCK, DROP_OLDEST, DROP_NEWEST;
+
+        /** "block", "drop-oldest" or "drop-newest"; anything else blocks. */
+        static Overflow parse(String value) {
+            if (value != null) {
+                for (Overflow policy : values()) {
+                    if (policy.key().equalsIgnoreCase(value.trim())) {
+                        return policy;
+                    }
+                }
+            }
+            return BLOCK;
+        }
+
+        String key() {
+            return name().toLowerCase(Locale.ROOT).replace('_', '-');
+        }
+    }
+
+    /** One sink call, replayed on the writer's thread. */
+    private interface Event {
+        void writeTo(TraceSink sink) throws IOException;
+    }
+
+    /** Whether the daemons trace through this sink; see {@code xslt.trace.async} above. */
+    public static final boolean IN_DAEMONS = Boolean.getBoolean("xslt.trace.async");
+
+    private static final long IDLE_PARK_NANOS = 10_000_000;
+    private static final long FULL_PARK_NANOS = 50_000;
+
+    private final TraceSink target;
+    private final Flushable out;
+    private final Overflow overflow;
+
+    private final Event[] ring;
+    private final AtomicLongArray sequence;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final Thread writer;
+    private volatile boolean writerParked;
+    private volatile boolean closed;
+
+    private final StringBuilder value = new StringBuilder();
+    private String variableName;
+    private int variableLine;
+    private String variableSample;
+
+    /** Configured by the system properties above. */
+    public AsyncTraceSink(TraceSink target, Flushable out) {
+        this(target, out, (int) Math.min(1 << 24, TransformServer.longProperty("xslt.trace.queue", 8192)),
+                Overflow.parse(System.getProperty("xslt.trace.overflow")));
+    }
+
+    public AsyncTraceSink(TraceSink target, Flushable out, int capacity, Overflow overflow) {
+        this.target = target;
+        this.out = out;
+        this.overflow = overflow;
+        int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        this.ring = new Event[size];
+        this.sequence = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequence.set(i, i);
+        }
+        this.mask = size - 1;
+        this.writer = new Thread(this::drain, "trace-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public long dropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public Appendable startVariable(String name, int line, String sample) {
+        variableName = name;
+        variableLine = line;
+        variableSample = sample;
+        value.setLength(0);
+        return value;
+    }
+
+    @Override
+    public void endVariable(boolean truncated) {
+        String name = variableName;
+        int line = variableLine;
+        String sample = variableSample;
+        String text = value.toString();
+        enqueue(sink -> {
+            sink.startVariable(name, line, sample).append(text);
+            sink.endVariable(truncated);
+        });
+        value.setLength(0);
+    }
+
+    @Override
+    public void hotspot(long count, String kind, String label, int line, long inclusiveMicros, long selfMicros) {
+        enqueue(sink -> sink.hotspot(count, kind, label, line, inclusiveMicros, selfMicros));
+    }
+
+    @Override
+    public void expression(long count, long totalMicros, int line, int column, String where, String text) {
+        enqueue(sink -> sink.expression(count, totalMicros, line, column, where, text));
+    }
+
+    @Override
+    public void flame(String stack, long selfMicros) {
+        enqueue(sink -> sink.flame(stack, selfMicros));
+    }
+
+    @Override
+    public void truncated(long maxBytes, int skipped) {
+        enqueue(sink -> sink.truncated(maxBytes, skipped));
+    }
+
+    @Override
+    public void timing(String name, long micros) {
+        enqueue(sink -> sink.timing(name, micros));
+    }
+
+    @Override
+    public void message(String text) {
+        enqueue(sink -> sink.message(text));
+    }
+
+    /** Drains what is queued, writes and flushes it, and stops the writer. */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void enqueue(Event event) {
+        while (!offer(event)) {
+            if (closed || overflow == Overflow.DROP_NEWEST) {
+                dropped.incrementAndGet();
+                return;
+            }
+            if (overflow == Overflow.DROP_OLDEST) {
+                if (poll() != null) {
+                    dropped.incrementAndGet();
+                }
+            } else {
+                wakeWriter();
+                LockSupport.parkNanos(this, FULL_PARK_NANOS);
+            }
+        }
+        wakeWriter();
+    }
+
+    private void wakeWriter() {
+        if (writerParked) {
+            writerParked = false;
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private boolean offer(Event event) {
+        long pos = tail.get();
+        while (true) {
+            int slot = (int) (pos & mask);
+            long diff = sequence.get(slot) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    ring[slot] = event;
+                    // Publishes the record: the consumer reads the sequence first.
+                    sequence.set(slot, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    private Event poll() {
+        long pos = head.get();
+        while (true) {
+            int slot = (int) (pos & mask);
+            long diff = sequence.get(slot) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    Event event = ring[slot];
+                    ring[slot] = null;
+                    sequence.set(slot, pos + mask + 1);
+                    return event;
+                }
+                pos = head.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    private void drain() {
+        boolean pending = false;
+        while (true) {
+            Event event = poll();
+            if (event != null) {
+                write(event);
+                pending = true;
+                continue;
+            }
+            if (pending) {
+                flush();
+                pending = false;
+            }
+            if (closed) {
+                // A last look: the producer may have enqueued just before closing.
+                if ((event = poll()) != null) {
+                    write(event);
+                    pending = true;
+                    continue;
+                }
+                break;
+            }
+            writerParked = true;
+            if (head.get() == tail.get() && !closed) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            writerParked = false;
+        }
+        long lost = dropped.get();
+        if (lost > 0) {
+            target.message("Trace: " + lost + " records dropped, the trace writer fell behind (xslt.trace.overflow="
+                    + overflow.key() + ")");
+        }
+        flush();
+    }
+
+    private void write(Event event) {
+        try {
+            event.writeTo(target);
+        } catch (Throwable ignored) {
+            // One record that cannot be written must not stop the rest.
+        }
+    }
+
+    private void flush() {
+        try {
+            out.flush();
+        } catch (IOException ignored) {
+            // Nowhere left to report it.
+        }
+    }
+}
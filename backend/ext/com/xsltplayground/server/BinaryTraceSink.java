@@ -0,0 +1,272 @@
+package com.xsltplayground.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * The trace as framed binary records, which the proxy decodes one at a time
+ * (backend/src/traceevents.go). Every record is
+ *
+ * <pre>
+ *   kind      1 byte
+ *   length    4 bytes, big-endian: the payload's
+ *   payload   the kind's fields, in this order
+ * </pre>
+ *
+ * where a string is a uvarint byte count and its UTF-8, an unsigned number a
+ * uvarint, and a signed one (lines, columns; -1 for unknown) a zig-zag
+ * varint, as Go's encoding/binary writes them. The last string of a record
+ * may instead be "the rest": its length is what the record leaves for it.
+ *
+ * <pre>
+ *   1 variable    flags (1 byte, 1 = truncated), line, name, sample, value (the rest)
+ *   2 hotspot     count, kind, label, line, inclusive µs, self µs
+ *   3 expression  count, total µs, line, column, where, text
+ *   4 flame       self µs, stack (the rest)
+ *   5 truncated   max bytes, skipped
+ *   6 timing      µs, name (the rest)
+ *   7 message     text (the rest)
+ * </pre>
+ *
+ * A reader skips kinds it does not know by their length. Being framed,
+ * nothing is escaped and no value can be mistaken for a record, whatever it
+ * contains; and a value is encoded as the serializer writes it, with its
+ * length filled in at its end. One sink per traced run, used from the
+ * transform's thread.
+ */
+public final class BinaryTraceSink implements TraceSink {
+
+    static final byte VARIABLE = 1;
+    static final byte HOTSPOT = 2;
+    static final byte EXPRESSION = 3;
+    static final byte FLAME = 4;
+    static final byte TRUNCATED = 5;
+    static final byte TIMING = 6;
+    static final byte MESSAGE = 7;
+
+    private byte[] buf = new byte[4096];
+    private int size;
+    /** Where the open variable record starts, or -1. */
+    private int variableStart = -1;
+    private final Value value = new Value();
+
+    /** The records so far, as the base64 the daemons' JSON responses carry. */
+    public String toBase64() {
+        return Base64.getEncoder().encodeToString(Arrays.copyOf(buf, size));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Appendable startVariable(String name, int line, String sample) {
+        if (variableStart >= 0) {
+            endVariable(false);
+        }
+        variableStart = begin(VARIABLE);
+        putByte(0);
+        putSigned(line);
+        putString(name);
+        putString(sample != null ? sample : "");
+        value.pendingHigh = 0;
+        return value;
+    }
+
+    @Override
+    public void endVariable(boolean truncated) {
+        if (variableStart < 0) {
+            return;
+        }
+        if (value.pendingHigh != 0) {
+            putChar('\uFFFD');
+            value.pendingHigh = 0;
+        }
+        buf[variableStart + 5] = (byte) (truncated ? 1 : 0);
+        end(variableStart);
+        variableStart = -1;
+    }
+
+    @Override
+    public void hotspot(long count, String kind, String label, int line, long inclusiveMicros, long selfMicros) {
+        int start = begin(HOTSPOT);
+        putUnsigned(count);
+        putString(kind);
+        putString(label);
+        putSigned(line);
+        putUnsigned(inclusiveMicros);
+        putUnsigned(selfMicros);
+        end(start);
+    }
+
+    @Override
+    public void expression(long count, long totalMicros, int line, int column, String where, String text) {
+        int start = begin(EXPRESSION);
+        putUnsigned(count);
+        putUnsigned(totalMicros);
+        putSigned(line);
+        putSigned(column);
+        putString(where);
+        putString(text);
+        end(start);
+    }
+
+    @Override
+    public void flame(String stack, long selfMicros) {
+        int start = begin(FLAME);
+        putUnsigned(selfMicros);
+        putRest(stack);
+        end(start);
+    }
+
+    @Override
+    public void truncated(long maxBytes, int skipped) {
+        int start = begin(TRUNCATED);
+        putUnsigned(maxBytes);
+        putUnsigned(skipped);
+        end(start);
+    }
+
+    @Override
+    public void timing(String name, long micros) {
+        int start = begin(TIMING);
+        putUnsigned(micros);
+        putRest(name);
+        end(start);
+    }
+
+    @Override
+    public void message(String text) {
+        int start = begin(MESSAGE);
+        putRest(text);
+        end(start);
+    }
+
+    private int begin(byte kind) {
+        int start = size;
+        ensure(5);
+        buf[size++] = kind;
+        size += 4;
+        return start;
+    }
+
+    private void end(int start) {
+        int length = size - start - 5;
+        buf[start + 1] = (byte) (length >>> 24);
+        buf[start + 2] = (byte) (length >>> 16);
+        buf[start + 3] = (byte) (length >>> 8);
+        buf[start + 4] = (byte) length;
+    }
+
+    private void ensure(int more) {
+        if (size + more > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + more));
+        }
+    }
+
+    private void putByte(int b) {
+        ensure(1);
+        buf[size++] = (byte) b;
+    }
+
+    private void putUnsigned(long n) {
+        ensure(10);
+        long v = Math.max(0, n);
+        while ((v & ~0x7FL) != 0) {
+            buf[size++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        buf[size++] = (byte) v;
+    }
+
+    private void putSigned(long n) {
+        long zigzag = (n << 1) ^ (n >> 63);
+        ensure(10);
+        while ((zigzag & ~0x7FL) != 0) {
+            buf[size++] = (byte) ((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        buf[size++] = (byte) zigzag;
+    }
+
+    private void putString(String text) {
+        byte[] bytes = (text != null ? text : "").getBytes(StandardCharsets.UTF_8);
+        putUnsigned(bytes.length);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, size, bytes.length);
+        size += bytes.length;
+    }
+
+    private void putRest(String text) {
+        byte[] bytes = (text != null ? text : "").getBytes(StandardCharsets.UTF_8);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, size, bytes.length);
+        size += bytes.length;
+    }
+
+    /** One UTF-16 unit that is not half of a surrogate pair. */
+    private void putChar(int c) {
+        ensure(3);
+        if (c < 0x80) {
+            buf[size++] = (byte) c;
+        } else if (c < 0x800) {
+            buf[size++] = (byte) (0xC0 | (c >> 6));
+            buf[size++] = (byte) (0x80 | (c & 0x3F));
+        } else {
+            buf[size++] = (byte) (0xE0 | (c >> 12));
+            buf[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buf[size++] = (byte) (0x80 | (c & 0x3F));
+        }
+    }
+
+    private void putCodePoint(int cp) {
+        ensure(4);
+        buf[size++] = (byte) (0xF0 | (cp >> 18));
+        buf[size++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+        buf[size++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+        buf[size++] = (byte) (0x80 | (cp & 0x3F));
+    }
+
+    /**
+     * Encodes the open value's text as it is appended. A surrogate pair may
+     * arrive split over two calls; a lone half becomes U+FFFD.
+     */
+    private final class Value implements Appendable {
+        char pendingHigh;
+
+        @Override
+        public Appendable append(CharSequence csq) {
+            return append(csq, 0, csq.length());
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) {
+            for (int i = start; i < end; i++) {
+                append(csq.charAt(i));
+            }
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) {
+            if (pendingHigh != 0) {
+                char high = pendingHigh;
+                pendingHigh = 0;
+                if (Character.isLowSurrogate(c)) {
+                    putCodePoint(Character.toCodePoint(high, c));
+                    return this;
+                }
+                putChar('\uFFFD');
+            }
+            if (Character.isHighSurrogate(c)) {
+                pendingHigh = c;
+            } else if (Character.isLowSurrogate(c)) {
+                putChar('\uFFFD');
+            } else {
+                putChar(c);
+            }
+            return this;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.xsltplayground.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Compiled stylesheets by stylesheet hash, least recently used evicted first.
+ * Users re-run the same stylesheet against different inputs far more often
+ * than they edit it, and compiling is usually the most expensive phase.
+ *
+ * A failed compile throws out of {@link #get} and is not cached. Two workers
+ * missing on the same stylesheet at once both compile it; the first to finish
+ * wins and the other's result is dropped. Identical requests never get that
+ * far (see {@link TransformServer}), so this only happens for the same
+ * stylesheet with different inputs.
+ *
+ * When the daemon goes idle, {@link IdlePolicy} trims every cache down to its
+ * most recently used entries and empties their pools of idle transformers,
+ * so the stylesheets a user comes back to are still compiled.
+ */
+public final class CompiledCache<V> {
+
+    public interface Loader<V, X extends Exception> {
+        V load() throws X;
+    }
+
+    /** Every cache in this JVM, for {@link #trimAll}; under EngineHost, every engine's. */
+    private static final List<CompiledCache<?>> ALL = new CopyOnWriteArrayList<>();
+    /** Lookups over all caches, for /metrics. */
+    static final LongAdder HITS = new LongAdder();
+    static final LongAdder MISSES = new LongAdder();
+
+    private final Map<String, V> entries;
+    /** The pool of idle objects each entry keeps, or null if it keeps none. */
+    private final Function<? super V, ? extends Pool<?>> pools;
+
+    public CompiledCache(int maxEntries, Function<? super V, ? extends Pool<?>> pools) {
+        this.pools = pools;
+        this.entries = new LinkedHashMap<String, V>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        ALL.add(this);
+    }
+
+    /**
+     * Sized by {@code -Dxslt.cache.executables} (default 32).
+     *
+     * @param pools the pool of idle objects (transformers, controllers) an
+     *              entry keeps, emptied when the daemon goes idle
+     */
+    public static <V> CompiledCache<V> fromProperties(Function<? super V, ? extends Pool<?>> pools) {
+        return new CompiledCache<>((int) TransformServer.longProperty("xslt.cache.executables", 32), pools);
+    }
+
+    /** Trims every cache to {@code keep} entries; returns how many were dropped in all. */
+    static int trimAll(int keep) {
+        int dropped = 0;
+        for (CompiledCache<?> cache : ALL) {
+            dropped += cache.trim(keep);
+        }
+        return dropped;
+    }
+
+    /** Entries held by all caches. */
+    static int entries() {
+        int entries = 0;
+        for (CompiledCache<?> cache : ALL) {
+            synchronized (cache) {
+                entries += cache.entries.size();
+            }
+        }
+        return entries;
+    }
+
+    private synchronized int trim(int keep) {
+        int dropped = 0;
+        Iterator<V> eldest = entries.values().iterator();
+        while (entries.size() > keep && eldest.hasNext()) {
+            eldest.next();
+            eldest.remove();
+            dropped++;
+        }
+        if (pools != null) {
+            for (V kept : entries.values()) {
+                pools.apply(kept).clear();
+            }
+        }
+        return dropped;
+    }
+
+    public <X extends Exception> V get(String stylesheetHash, Loader<V, X> loader) throws X {
+        synchronized (this) {
+            V cached = entries.get(stylesheetHash);
+            if (cached != null) {
+                HITS.increment();
+                return cached;
+            }
+        }
+        MISSES.increment();
+        V loaded = loader.load();
+        synchronized (this) {
+            V raced = entries.putIfAbsent(stylesheetHash, loaded);
+            return raced != null ? raced : loaded;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.xsltplayground.server;
+
+import java.util.regex.Pattern;
+
+/**
+ * Decides whether a stylesheet's output depends only on its inputs, so a
+ * result can be served again to the next identical request.
+ *
+ * This is a text scan, not an analysis of the compiled stylesheet: it runs
+ * before the engine sees the request and has to work the same for all three
+ * processors. It errs on the side of "not deterministic" — a user function
+ * that happens to be called {@code my:random} or a comment mentioning
+ * {@code document(} only costs a cache miss.
+ */
+final class Determinism {
+
+    /** Functions whose result changes from one run to the next. */
+    private static final Pattern VOLATILE_CALL = Pattern.compile(
+            "\\b(?:current-dateTime|current-date|current-time"
+                    // Node identity is allocated per run, and so are the ids.
+                    + "|generate-id|random-number-generator"
+                    // tib: extensions from CustomFunctions (and EXSLT math:random).
+                    + "|uuid|random|timestamp|current-date-time-timezone|currentDateTimeTimezone"
+                    // Anything read from outside the request.
+                    + "|doc|document|doc-available|collection|uri-collection|json-doc"
+                    + "|unparsed-text|unparsed-text-lines|unparsed-text-available"
+                    + "|environment-variable|available-environment-variables"
+                    // fn:transform runs another stylesheet, fetched by URI or not.
+                    + "|transform)\\s*\\(");
+
+    /**
+     * Instructions that read documents or schemas by URI, imported modules
+     * (whatever the order of their attributes, and whatever the prefix) and
+     * Java extension bindings: all can change under the same stylesheet text.
+     */
+    private static final Pattern EXTERNAL_CODE = Pattern.compile(
+            "<(?:[\\w.-]+:)?(?:include|import)\\b[^>]*\\bhref\\s*="
+                    + "|<(?:[\\w.-]+:)?(?:source-document|merge-source|for-each-source|import-schema)\\b"
+                    + "|xalan://|\"java:|'java:|Q\\{java:");
+
+    private Determinism() {
+    }
+
+    static boolean isDeterministic(String xslt) {
+        return !VOLATILE_CALL.matcher(xslt).find() && !EXTERNAL_CODE.matcher(xslt).find();
+    }
+}
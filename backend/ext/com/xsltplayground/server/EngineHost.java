@@ -0,0 +1,92 @@
+package com.xsltplayground.server;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs all three XSLT engines in one JVM, behind one listener and one
+ * scheduler, instead of one daemon process each. The engines cannot share a
+ * class path — Saxon 12 and Saxon 9.6 are the same packages at different
+ * versions, and each has its own build of CustomFunctions — so each one is
+ * loaded from its own directory of jars by a child class loader.
+ *
+ * The children delegate to this loader first, so the classes in this package
+ * (and gson) are loaded once, from the host jar, and shared: a
+ * {@link TransformServer.Request} built here is the same class the engine's
+ * {@code transform} method takes. Everything else — Saxon, the daemon class,
+ * CustomFunctions — is found only in the engine's own jars.
+ *
+ * Engines are served as {@code /<name>/transform} and {@code /<name>/health}
+ * on port 8090 ({@code -Dxslt.port}). Each engine directory defaults to its
+ * location in the image and can be moved with {@code -Dxslt.host.<name>.dir}.
+ */
+public final class EngineHost {
+
+    /** Path prefix, daemon class and default jar directory of each engine. */
+    private static final String[][] ENGINES = {
+        {"saxon12", "com.xsltplayground.SaxonDaemon", "/opt/saxon12"},
+        {"xalan", "com.xsltplayground.XalanDaemon", "/opt/xalan"},
+        {"saxon9", "com.xsltplayground.Saxon2Daemon", "/opt/saxon9"},
+    };
+
+    private EngineHost() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        TransformServer server = new TransformServer("EngineHost", 8090);
+        for (String[] engine : ENGINES) {
+            String name = engine[0];
+            File dir = new File(System.getProperty("xslt.host." + name + ".dir", engine[2]));
+            ClassLoader loader = engineLoader(name, dir);
+            Class<?> daemon = initialize(engine[1], loader);
+            server.addEngine("/" + name, adapt(daemon), loader,
+                    (String[]) daemon.getField("WARMUP_VERSIONS").get(null));
+        }
+        server.start();
+    }
+
+    private static ClassLoader engineLoader(String name, File dir) throws MalformedURLException {
+        File[] jars = dir.listFiles((d, file) -> file.endsWith(".jar"));
+        if (jars == null || jars.length == 0) {
+            throw new IllegalStateException(name + ": no jars in " + dir);
+        }
+        Arrays.sort(jars);
+        List<URL> urls = new ArrayList<>();
+        for (File jar : jars) {
+            urls.add(jar.toURI().toURL());
+        }
+        return new URLClassLoader(name, urls.toArray(new URL[0]), EngineHost.class.getClassLoader());
+    }
+
+    /** Loads the daemon class and runs its static block, which registers CustomFunctions. */
+    private static Class<?> initialize(String className, ClassLoader loader) throws ClassNotFoundException {
+        Thread main = Thread.currentThread();
+        ClassLoader previous = main.getContextClassLoader();
+        main.setContextClassLoader(loader);
+        try {
+            return Class.forName(className, true, loader);
+        } finally {
+            main.setContextClassLoader(previous);
+        }
+    }
+
+    /** The daemon's static {@code transform} method as an engine. */
+    private static TransformServer.Engine adapt(Class<?> daemon) throws NoSuchMethodException {
+        Method transform = daemon.getMethod("transform", TransformServer.Request.class);
+        return req -> {
+            try {
+                return (TransformServer.Response) transform.invoke(null, req);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : e;
+            }
+        };
+    }
+}
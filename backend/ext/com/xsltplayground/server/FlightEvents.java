@@ -0,0 +1,78 @@
+package com.xsltplayground.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder events for the daemon's own work, so that a recording
+ * (see {@link FlightRecordings}) lines slow requests up against the GC
+ * pauses, lock contention and method samples JFR records next to them.
+ * Every run gives one {@link Transform} event and one {@link Phase} event per
+ * phase an engine brackets with {@link Timings#mark()} / {@link Timings#add};
+ * both carry the engine, the stylesheet hash, the input size and how the
+ * run ended.
+ *
+ * Outside a recording the events are disabled, and all a run pays is a few
+ * {@link Event#isEnabled()} checks.
+ */
+final class FlightEvents {
+
+    private FlightEvents() {
+    }
+
+    @Name("xsltplayground.Transform")
+    @Label("Transform")
+    @Category("XSLT Playground")
+    @Description("One transform run, from leaving the scheduler's queue to its encoded response")
+    @StackTrace(false)
+    static final class Transform extends Event {
+        @Label("Engine")
+        String engine;
+
+        @Label("Stylesheet")
+        @Description("Hash of the stylesheet text (the first 16 bytes of its SHA-256)")
+        String stylesheet;
+
+        @Label("Input Size")
+        @Description("Characters of source document and XML parameters")
+        long inputSize;
+
+        @Label("Outcome")
+        @Description("ok, error or aborted")
+        String outcome;
+
+        @Label("Queue Wait")
+        @Timespan
+        long queueWait;
+    }
+
+    @Name("xsltplayground.Phase")
+    @Label("Transform Phase")
+    @Category("XSLT Playground")
+    @Description("One phase of a transform run; \"unfinished\" is the phase a failed run stopped in")
+    @StackTrace(false)
+    static final class Phase extends Event {
+        @Label("Engine")
+        String engine;
+
+        @Label("Stylesheet")
+        @Description("Hash of the stylesheet text (the first 16 bytes of its SHA-256)")
+        String stylesheet;
+
+        @Label("Input Size")
+        @Description("Characters of source document and XML parameters")
+        long inputSize;
+
+        @Label("Phase")
+        String phase;
+
+        @Label("Outcome")
+        @Description("How the run the phase belongs to ended: ok, error or aborted")
+        String outcome;
+    }
+}
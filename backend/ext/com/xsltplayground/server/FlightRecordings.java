@@ -0,0 +1,179 @@
+package com.xsltplayground.server;
+
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import jdk.jfr.Configuration;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@code POST /admin/jfr}: records the running daemon with JDK Flight
+ * Recorder for a while and answers with the .jfr file, for when latency
+ * spikes in production and a restart would lose what caused it. The daemons
+ * listen on localhost only, so it is reached from inside the pod:
+ *
+ * <pre>
+ *   kubectl exec deploy/backend -- curl -s -X POST \
+ *     'http://127.0.0.1:8081/admin/jfr?seconds=30' &gt; saxon12.jfr
+ * </pre>
+ *
+ * The recording uses the JDK's {@code profile} settings (method samples, lock
+ * contention, allocation, GC) plus the daemon's {@link FlightEvents}; pass
+ * {@code settings=default} for the lighter set (any other name is a 400). It
+ * is bounded both ways: {@code seconds} (default 30) is capped by
+ * {@code xslt.jfr.maxSeconds} (300), and {@code maxMB} by
+ * {@code xslt.jfr.maxMB} (100), beyond which JFR drops the oldest data. One
+ * recording runs at a time; another request gets a 409 meanwhile. Where
+ * there is no JFR (the native-image Xalan daemon) the answer is a 501.
+ *
+ * The intake thread only starts the recording: a thread of its own waits it
+ * out and writes the file, so transforms keep being accepted meanwhile.
+ */
+final class FlightRecordings {
+
+    private final String name;
+    private final long maxSeconds = TransformServer.longProperty("xslt.jfr.maxSeconds", 300);
+    private final long maxMB = TransformServer.longProperty("xslt.jfr.maxMB", 100);
+    private final AtomicBoolean recording = new AtomicBoolean();
+
+    FlightRecordings(String name) {
+        this.name = name;
+    }
+
+    void handle(HttpExchange exchange) {
+        if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+            reply(exchange, 405, "POST to start a recording");
+            return;
+        }
+        if (!FlightRecorder.isAvailable()) {
+            reply(exchange, 501, "JFR is not available in this build");
+            return;
+        }
+        Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+        long seconds = Math.max(1, Math.min(number(query.get("seconds"), 30), maxSeconds));
+        long mb = Math.max(1, Math.min(number(query.get("maxMB"), maxMB), maxMB));
+        // Only the JDK's own two: getConfiguration takes any name, so a path
+        // would read (and echo errors about) whatever file it points at.
+        String settingsName = query.getOrDefault("settings", "profile");
+        if (!settingsName.equals("profile") && !settingsName.equals("default")) {
+            reply(exchange, 400, "unknown JFR settings (profile or default): " + settingsName);
+            return;
+        }
+        Configuration settings;
+        try {
+            settings = Configuration.getConfiguration(settingsName);
+        } catch (IOException | ParseException e) {
+            reply(exchange, 500, "cannot read JFR settings: " + e.getMessage());
+            return;
+        }
+        if (!recording.compareAndSet(false, true)) {
+            reply(exchange, 409, "a recording is already running");
+            return;
+        }
+
+        Recording jfr;
+        try {
+            jfr = new Recording(settings);
+            jfr.setName(name + " /admin/jfr");
+            jfr.setToDisk(true);
+            jfr.setMaxSize(mb << 20);
+            jfr.start();
+        } catch (RuntimeException e) {
+            recording.set(false);
+            reply(exchange, 500, "cannot start recording: " + e);
+            return;
+        }
+        System.out.println(name + ": JFR recording for " + seconds + "s, at most " + mb + "MB");
+        Thread finisher = new Thread(() -> finish(exchange, jfr, seconds), name + "-jfr");
+        finisher.setDaemon(true);
+        finisher.start();
+    }
+
+    private void finish(HttpExchange exchange, Recording jfr, long seconds) {
+        Path file = null;
+        try {
+            Thread.sleep(seconds * 1000);
+            jfr.stop();
+            file = Files.createTempFile(name + "-", ".jfr");
+            jfr.dump(file);
+            String filename = name + "-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"" + filename + ".jfr\"");
+            exchange.sendResponseHeaders(200, Files.size(file));
+            try (OutputStream os = exchange.getResponseBody()) {
+                Files.copy(file, os);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            reply(exchange, 503, "recording interrupted");
+        } catch (IOException | RuntimeException e) {
+            System.err.println(name + ": JFR recording failed: " + e);
+            reply(exchange, 500, "recording failed: " + e);
+        } finally {
+            jfr.close();
+            recording.set(false);
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ignored) {
+                    // Left in the temp directory; nothing else to do.
+                }
+            }
+        }
+    }
+
+    /** Writes a JSON error; a no-op once the file's headers have gone out. */
+    private void reply(HttpExchange exchange, int status, String message) {
+        if (exchange.getResponseCode() != -1) {
+            exchange.close();
+            return;
+        }
+        JsonObject body = new JsonObject();
+        body.addProperty("error", message);
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) { os.write(bytes); }
+        } catch (IOException e) {
+            System.err.println(name + ": cannot write response: " + e.getMessage());
+        }
+    }
+
+    private static Map<String, String> query(String raw) {
+        Map<String, String> params = new HashMap<>();
+        if (raw == null) {
+            return params;
+        }
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(pair.substring(0, eq), pair.substring(eq + 1));
+            }
+        }
+        return params;
+    }
+
+    private static long number(String value, long defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
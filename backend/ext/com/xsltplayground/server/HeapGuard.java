@@ -0,0 +1,264 @@
+package com.xsltplayground.server;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.io.FilterReader;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Acts on heap pressure before it turns into an OutOfMemoryError, which would
+ * fail whichever request happened to allocate next rather than the one that
+ * filled the heap. The JVM notifies it when the old generation — the pool
+ * that only fills with data that survived collections — crosses a threshold:
+ *
+ * <ul>
+ *   <li>Above {@code xslt.heap.softPercent} (default 80) of its maximum,
+ *       new requests with more than {@code xslt.heap.shedBytes} (256 KiB) of
+ *       input are refused with a 503 while other transforms run, until a
+ *       collection brings it back under; and if it is still that full right
+ *       after a collection, the result and compiled-stylesheet caches are
+ *       flushed. A request that would run alone is let through: it can only
+ *       run out of memory by itself, and the heap may be full of garbage no
+ *       collection has had a reason to clear.</li>
+ *   <li>Still above {@code xslt.heap.hardPercent} (92) after a collection,
+ *       the running transform that has allocated the most since it started
+ *       is aborted (with no per-thread allocation counts, the one with the
+ *       most input). The JVM cannot tell what a transform still holds; what
+ *       it allocated is the closest it reports, and the one building the
+ *       big trees tops it. The engine is stopped at the next point that
+ *       checks {@link TransformServer.Request#isAborted}, it unwinds, and
+ *       the request is answered with a 503.</li>
+ * </ul>
+ *
+ * Those points are the source reader and result writer (see
+ * {@link TransformServer.Request#guard}) in every engine, and in the Saxon
+ * engines also each element of a temporary tree (GuardedTreeModel). A
+ * transform that loops without building nodes, reading or writing is not
+ * reached; nor is an XSLTC result tree fragment, which Xalan builds with no
+ * hook to check.
+ *
+ * Each decision is counted and reported in /health. Outside of pressure the
+ * per-request cost is one volatile read. Collectors or native images whose
+ * old generation supports no thresholds run without a guard, as does a
+ * daemon started with {@code xslt.heap.softPercent=0}.
+ */
+final class HeapGuard {
+
+    /** Thrown into an aborted transform by its guarded reader or writer. */
+    static final class Aborted extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        Aborted() {
+            super("transform aborted: the daemon is low on memory");
+        }
+    }
+
+    private final String name;
+    private final Runnable flushCaches;
+    private final long shedBytes = TransformServer.longProperty("xslt.heap.shedBytes", 256 << 10);
+    private final MemoryPoolMXBean oldGen = oldGeneration();
+    private long softBytes;
+    private long hardBytes;
+    /**
+     * Requests whose transform is running, candidates for an abort, with
+     * their worker thread and what it had allocated when the run started.
+     */
+    private final Map<TransformServer.Request, long[]> running = new ConcurrentHashMap<>();
+    /** Per-thread allocation counts, or null where the JVM keeps none. */
+    private static final com.sun.management.ThreadMXBean THREADS = threads();
+    /** Set by a notification, cleared once a collection shows the pressure is gone. */
+    private volatile boolean pressure;
+    final AtomicLong shed = new AtomicLong();
+    final AtomicLong flushes = new AtomicLong();
+    final AtomicLong aborts = new AtomicLong();
+
+    HeapGuard(String name, Runnable flushCaches) {
+        this.name = name;
+        this.flushCaches = flushCaches;
+    }
+
+    /** Sets the thresholds and starts listening; a no-op without a suitable pool. */
+    void start() {
+        long max = oldGen != null ? oldGen.getUsage().getMax() : -1;
+        if (max <= 0) {
+            System.out.println(name + ": no old generation with usage thresholds, heap guard off");
+            return;
+        }
+        long softPercent = TransformServer.longProperty("xslt.heap.softPercent", 80);
+        if (softPercent <= 0) {
+            return;
+        }
+        softBytes = max * Math.min(softPercent, 100) / 100;
+        hardBytes = max * Math.min(TransformServer.longProperty("xslt.heap.hardPercent", 92), 100) / 100;
+        oldGen.setUsageThreshold(softBytes);
+        oldGen.setCollectionUsageThreshold(softBytes);
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean())
+                .addNotificationListener((notification, handback) -> onThreshold(notification), null, null);
+    }
+
+    /** Whether to refuse {@code req} rather than queue it; counts the refusal. */
+    boolean shed(TransformServer.Request req) {
+        if (!pressure || req.inputBytes <= shedBytes || running.isEmpty()) {
+            return false;
+        }
+        if (oldGen.getCollectionUsage().getUsed() < softBytes && oldGen.getUsage().getUsed() < softBytes) {
+            pressure = false;
+            return false;
+        }
+        shed.incrementAndGet();
+        return true;
+    }
+
+    /** "ok", "soft" or "hard": where the old generation stood after the last collection. */
+    String level() {
+        if (softBytes == 0) {
+            return "ok";
+        }
+        long used = oldGen.getCollectionUsage().getUsed();
+        return used >= hardBytes ? "hard" : used >= softBytes ? "soft" : "ok";
+    }
+
+    /** Called on the worker thread, just before the engine runs {@code req}. */
+    void started(TransformServer.Request req) {
+        long allocated = THREADS != null ? THREADS.getCurrentThreadAllocatedBytes() : 0;
+        running.put(req, new long[]{Thread.currentThread().getId(), allocated});
+    }
+
+    void finished(TransformServer.Request req) {
+        running.remove(req);
+    }
+
+    private void onThreshold(Notification notification) {
+        String type = notification.getType();
+        boolean afterCollection = MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(type);
+        if (!afterCollection && !MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(type)) {
+            return;
+        }
+        MemoryNotificationInfo info = MemoryNotificationInfo.from((CompositeData) notification.getUserData());
+        if (!info.getPoolName().equals(oldGen.getName())) {
+            return;
+        }
+        pressure = true;
+        if (!afterCollection) {
+            // Crossed on allocation: some of it may be garbage, so only
+            // stop taking on large requests until a collection tells.
+            return;
+        }
+        // Still this full after a collection: it is live data.
+        flushCaches.run();
+        flushes.incrementAndGet();
+        long used = info.getUsage().getUsed();
+        if (used >= hardBytes) {
+            abortLargest(used);
+        }
+    }
+
+    private void abortLargest(long used) {
+        TransformServer.Request largest = null;
+        long largestSize = -1;
+        for (Map.Entry<TransformServer.Request, long[]> e : running.entrySet()) {
+            TransformServer.Request req = e.getKey();
+            long size = size(req, e.getValue());
+            if (!req.aborted && size > largestSize) {
+                largest = req;
+                largestSize = size;
+            }
+        }
+        if (largest == null) {
+            return;
+        }
+        largest.aborted = true;
+        aborts.incrementAndGet();
+        System.err.println(name + ": old generation at " + (used >> 20) + "MB after GC, aborting the running "
+                + "transform that " + (THREADS != null ? "allocated the most (" + (largestSize >> 20) + "MB)"
+                        : "has the most input (" + largestSize + " chars)"));
+    }
+
+    /** What {@code req} has allocated since it started, or its input size where that is not known. */
+    private static long size(TransformServer.Request req, long[] start) {
+        if (THREADS == null) {
+            return req.inputBytes;
+        }
+        // -1 once the thread has gone: the run is over, nothing to abort.
+        long now = THREADS.getThreadAllocatedBytes(start[0]);
+        return now < 0 ? -1 : now - start[1];
+    }
+
+    private static com.sun.management.ThreadMXBean threads() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) threads;
+            if (sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled()) {
+                return sun;
+            }
+        }
+        return null;
+    }
+
+    /** The heap pool that supports usage thresholds: the old generation in every HotSpot collector. */
+    private static MemoryPoolMXBean oldGeneration() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()
+                    && pool.isCollectionUsageThresholdSupported()) {
+                return pool;
+            }
+        }
+        return null;
+    }
+
+    static Reader guard(TransformServer.Request req, Reader in) {
+        return new FilterReader(in) {
+            @Override
+            public int read() throws IOException {
+                check(req);
+                return super.read();
+            }
+
+            @Override
+            public int read(char[] buf, int off, int len) throws IOException {
+                check(req);
+                return super.read(buf, off, len);
+            }
+        };
+    }
+
+    static Writer guard(TransformServer.Request req, Writer out) {
+        return new FilterWriter(out) {
+            @Override
+            public void write(int c) throws IOException {
+                check(req);
+                super.write(c);
+            }
+
+            @Override
+            public void write(char[] buf, int off, int len) throws IOException {
+                check(req);
+                super.write(buf, off, len);
+            }
+
+            @Override
+            public void write(String str, int off, int len) throws IOException {
+                check(req);
+                super.write(str, off, len);
+            }
+        };
+    }
+
+    private static void check(TransformServer.Request req) throws Aborted {
+        if (req.aborted) {
+            throw new Aborted();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.xsltplayground.server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gives memory back once the daemon has served no /transform for
+ * {@code xslt.idle.seconds} (default 60; 0 turns this off). On a small
+ * container most of the day is idle, and a JVM otherwise keeps the heap, the
+ * caches and the worker threads it grew during its busiest minute.
+ *
+ * Trimming is one pass per idle period: the result cache shrinks to
+ * {@code xslt.idle.resultEntries} (16) and {@code xslt.idle.resultBytes}
+ * (1 MiB), each compiled-stylesheet cache to its {@code xslt.idle.executables}
+ * (8) most recently used entries with their pooled transformers dropped,
+ * idle workers exit, and a full collection lets the heap shrink to what is
+ * left — SerialGC uncommits down to -Xms within the free ratios start.sh
+ * sets. Nothing that keeps the next request fast is touched: JIT-compiled
+ * code, {@link RuntimeHistory}, and the stylesheets users come back to stay,
+ * and workers are started again as requests arrive.
+ */
+final class IdlePolicy {
+
+    private final String name;
+    private final ResultCache results;
+    private final JobScheduler scheduler;
+    private final long idleNanos = TransformServer.longProperty("xslt.idle.seconds", 60) * 1_000_000_000L;
+    private final int keepExecutables = (int) TransformServer.longProperty("xslt.idle.executables", 8);
+    private final int keepResults = (int) TransformServer.longProperty("xslt.idle.resultEntries", 16);
+    private final long keepResultBytes = TransformServer.longProperty("xslt.idle.resultBytes", 1L << 20);
+    private volatile long lastRequest = System.nanoTime();
+    /** Set by a trim, cleared by the next request. */
+    private volatile boolean trimmed;
+
+    IdlePolicy(String name, ResultCache results, JobScheduler scheduler) {
+        this.name = name;
+        this.results = results;
+        this.scheduler = scheduler;
+    }
+
+    /** Marks the daemon busy; called for every /transform. */
+    void touch() {
+        lastRequest = System.nanoTime();
+        if (trimmed) {
+            trimmed = false;
+        }
+    }
+
+    /** Starts watching; the idle clock starts now. */
+    void start() {
+        if (idleNanos <= 0) {
+            return;
+        }
+        touch();
+        long checkMillis = Math.max(1000, Math.min(TimeUnit.NANOSECONDS.toMillis(idleNanos) / 4, 5000));
+        Thread watcher = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(checkMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (!trimmed && System.nanoTime() - lastRequest >= idleNanos) {
+                    trimmed = true;
+                    trim();
+                }
+            }
+        }, name + "-idle");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private void trim() {
+        long rssBefore = residentBytes();
+        long committedBefore = heap().getCommitted();
+        int droppedResults = results.trim(keepResults, keepResultBytes);
+        int executables = CompiledCache.trimAll(keepExecutables);
+        scheduler.retireIdleWorkers();
+        System.gc();
+        System.out.println(name + ": idle " + TimeUnit.NANOSECONDS.toSeconds(idleNanos) + "s, dropped "
+                + executables + " compiled stylesheets and " + droppedResults + " results; heap committed "
+                + mb(committedBefore) + " -> " + mb(heap().getCommitted()) + ", RSS "
+                + mb(rssBefore) + " -> " + mb(residentBytes()));
+    }
+
+    private static MemoryUsage heap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    }
+
+    private static String mb(long bytes) {
+        return bytes < 0 ? "?" : (bytes >> 20) + "MB";
+    }
+
+    /**
+     * Resident set size of this process (VmRSS), which is what a container's
+     * memory limit counts, unlike the heap figures; -1 where /proc is missing.
+     */
+    static long residentBytes() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"), StandardCharsets.US_ASCII)) {
+                if (line.startsWith("VmRSS:")) {
+                    // "VmRSS:     81234 kB"
+                    String kb = line.substring(6).trim();
+                    return Long.parseLong(kb.substring(0, kb.indexOf(' '))) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Not Linux, or an unexpected format: report unknown.
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,255 @@
+package com.xsltplayground.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Up to a fixed number of worker threads shared fairly between clients, each
+ * client's own requests ordered shortest-job-first.
+ *
+ * Across clients this is start-time fair queuing over predicted cost: every
+ * client has a lane with a virtual finish time that advances by cost / weight
+ * each time one of its jobs is dispatched, and the next worker serves the
+ * non-empty lane that is furthest behind. A client that bursts a hundred heavy
+ * requests pushes its own lane far ahead, so a newcomer's first request is
+ * served next instead of waiting out the burst. A lane that sits idle cannot
+ * bank credit: it restarts at the current virtual time.
+ *
+ * Within a lane, a job's rank is its arrival time plus its predicted cost
+ * scaled by {@code sjfWeight}, with that deferral capped at
+ * {@code maxDeferNanos}. The rank never changes once queued, and it still
+ * ages: a job can only be overtaken by jobs that arrive less than
+ * {@code maxDeferNanos} after it, so an expensive stylesheet waits at most
+ * that long behind the same client's cheap ones instead of starving.
+ *
+ * All workers start with the scheduler. {@link #retireIdleWorkers} lets the
+ * idle ones exit, giving back their stacks and thread-local buffers while
+ * the daemon is idle (see {@link IdlePolicy}); from then on a worker is
+ * started whenever work is queued and none is waiting for it, up to the
+ * same limit.
+ */
+public final class JobScheduler {
+
+    private static final class Job implements Comparable<Job> {
+        final Runnable task;
+        final long cost;
+        final long rank;
+        final long seq;
+
+        Job(Runnable task, long cost, long rank, long seq) {
+            this.task = task;
+            this.cost = cost;
+            this.rank = rank;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            int byRank = Long.compare(rank, other.rank);
+            return byRank != 0 ? byRank : Long.compare(seq, other.seq);
+        }
+    }
+
+    private static final class Lane {
+        final PriorityQueue<Job> jobs = new PriorityQueue<>();
+        final double weight;
+        double finish;
+
+        Lane(double weight) {
+            this.weight = weight;
+        }
+    }
+
+    private final Map<String, Lane> lanes = new LinkedHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final AtomicInteger active = new AtomicInteger();
+    private final double sjfWeight;
+    private final long maxDeferNanos;
+    private final double userWeight;
+    private final String name;
+    private final int workers;
+    private double virtualTime;
+    private int queued;
+    private long seq;
+    /** Worker threads alive, and how many of them are waiting for work. */
+    private int live;
+    private int waiting;
+    private int started;
+    /** Bumped to retire idle workers; a worker exits when it finds the queue empty in a later generation. */
+    private int generation;
+
+    /**
+     * @param userWeight share given to signed-in clients ("uid:" keys)
+     *                   relative to anonymous ones, which weigh 1
+     */
+    public JobScheduler(String name, int workers, double sjfWeight, long maxDeferNanos, double userWeight) {
+        this.name = name;
+        this.workers = workers;
+        this.sjfWeight = sjfWeight;
+        this.maxDeferNanos = maxDeferNanos;
+        this.userWeight = userWeight;
+        lock.lock();
+        try {
+            for (int i = 0; i < workers; i++) {
+                startWorker();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void submit(String client, long predictedNanos, Runnable task) {
+        String key = client == null || client.isEmpty() ? "anonymous" : client;
+        long defer = (long) Math.min(predictedNanos * sjfWeight, (double) maxDeferNanos);
+        lock.lock();
+        try {
+            Lane lane = lanes.get(key);
+            if (lane == null) {
+                lane = new Lane(key.startsWith("uid:") ? userWeight : 1.0);
+                lane.finish = virtualTime;
+                lanes.put(key, lane);
+            }
+            lane.jobs.add(new Job(task, Math.max(1, predictedNanos), System.nanoTime() + defer, seq++));
+            queued++;
+            notEmpty.signal();
+            if (waiting < queued && live < workers) {
+                startWorker();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int queueDepth() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Clients with queued work, or with service still ahead of the virtual clock. */
+    public int clients() {
+        lock.lock();
+        try {
+            return lanes.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int activeWorkers() {
+        return active.get();
+    }
+
+    public int workers() {
+        return workers;
+    }
+
+    /** Worker threads currently alive: {@link #workers()}, or fewer after {@link #retireIdleWorkers}. */
+    public int liveWorkers() {
+        lock.lock();
+        try {
+            return live;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lets every worker exit as soon as it finds the queue empty, including
+     * those busy now once they finish. Later work starts new ones.
+     */
+    void retireIdleWorkers() {
+        lock.lock();
+        try {
+            generation++;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Call with the lock held. */
+    private void startWorker() {
+        int born = generation;
+        Thread t = new Thread(() -> workLoop(born), name + "-worker-" + started++);
+        live++;
+        t.start();
+    }
+
+    /** The next job, or null when the worker has been retired. */
+    private Job take(int born) throws InterruptedException {
+        lock.lock();
+        try {
+            while (queued == 0) {
+                if (born != generation) {
+                    live--;
+                    return null;
+                }
+                waiting++;
+                try {
+                    notEmpty.await();
+                } finally {
+                    waiting--;
+                }
+            }
+            Lane next = null;
+            double nextStart = 0;
+            for (Iterator<Lane> it = lanes.values().iterator(); it.hasNext(); ) {
+                Lane lane = it.next();
+                if (lane.jobs.isEmpty()) {
+                    // Forget lanes that have nothing queued and no service
+                    // ahead of the clock; the rest keep their debt.
+                    if (lane.finish <= virtualTime) {
+                        it.remove();
+                    }
+                    continue;
+                }
+                double start = Math.max(virtualTime, lane.finish);
+                if (next == null || start < nextStart) {
+                    next = lane;
+                    nextStart = start;
+                }
+            }
+            Job job = next.jobs.poll();
+            virtualTime = nextStart;
+            next.finish = nextStart + job.cost / next.weight;
+            queued--;
+            return job;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void workLoop(int born) {
+        while (true) {
+            Job job;
+            try {
+                job = take(born);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (job == null) {
+                return;
+            }
+            active.incrementAndGet();
+            try {
+                job.task.run();
+            } catch (Throwable t) {
+                // A job is responsible for answering its own exchange; all that
+                // is left to do here is keep the worker alive.
+                System.err.println(Thread.currentThread().getName() + ": job failed: " + t);
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.xsltplayground.server;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.Map;
+
+/**
+ * The JVM side of /metrics: heap, resident memory, threads, and what the
+ * collector does. GC pauses and allocation come from the collectors'
+ * end-of-collection notifications: each one carries the pause and the
+ * pools' usage before and after, and what the eden space held before a
+ * collection, less what it kept after the last one, is what was allocated
+ * in between. {@code rate(xslt_jvm_allocated_bytes_total[1m])} is the
+ * allocation rate.
+ */
+final class JvmMetrics {
+
+    private static final double[] PAUSE_BUCKETS = {0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5};
+
+    private JvmMetrics() {
+    }
+
+    static void register(Metrics metrics) {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        metrics.gauge("xslt_jvm_heap_bytes", "Heap in use, committed, and the most it may grow to.", "area")
+                .bind(() -> memory.getHeapMemoryUsage().getUsed(), "used")
+                .bind(() -> memory.getHeapMemoryUsage().getCommitted(), "committed")
+                .bind(() -> memory.getHeapMemoryUsage().getMax(), "max");
+        metrics.gauge("xslt_jvm_resident_bytes", "Resident set size of the process (VmRSS).")
+                .bind(IdlePolicy::residentBytes);
+        metrics.gauge("xslt_jvm_threads", "Live threads.")
+                .bind(() -> ManagementFactory.getThreadMXBean().getThreadCount());
+
+        Metrics.Histogram pauses = metrics.histogram("xslt_jvm_gc_pause_seconds",
+                "Duration of each garbage collection, by collector.", PAUSE_BUCKETS, "gc");
+        Metrics.Counter allocated = metrics.counter("xslt_jvm_allocated_bytes_total",
+                "Bytes allocated in the young generation, measured at each collection.");
+        long[] edenAfterLast = {0};
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (!(gc instanceof NotificationEmitter)) {
+                continue;
+            }
+            ((NotificationEmitter) gc).addNotificationListener((notification, handback) -> {
+                if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                    return;
+                }
+                GarbageCollectionNotificationInfo info =
+                        GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                pauses.observe(info.getGcInfo().getDuration() / 1000.0, info.getGcName());
+                // Notifications arrive one at a time, on one thread.
+                for (Map.Entry<String, MemoryUsage> pool : info.getGcInfo().getMemoryUsageBeforeGc().entrySet()) {
+                    if (pool.getKey().contains("Eden")) {
+                        allocated.add(Math.max(0, pool.getValue().getUsed() - edenAfterLast[0]));
+                        edenAfterLast[0] = info.getGcInfo().getMemoryUsageAfterGc().get(pool.getKey()).getUsed();
+                    }
+                }
+            }, null, null);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.xsltplayground.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Metrics served at /metrics in the Prometheus text format (version 0.0.4).
+ * The daemons ship as a handful of jars on a small heap, so this is the
+ * format written by hand rather than a client library: counters and
+ * histograms updated from request threads with adders, and callback
+ * families read when scraped from whatever already keeps the number (the
+ * scheduler, the caches, the JVM's MXBeans).
+ *
+ * Families are written in the order they were registered, each with its
+ * HELP and TYPE lines and all its samples together, which is what the Go
+ * proxy relies on when it merges the daemons' output (see
+ * daemonmetrics.go).
+ */
+final class Metrics {
+
+    /** Seconds, for request phases: 1 ms to 10 s. */
+    static final double[] PHASE_BUCKETS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    private abstract static class Family {
+        final String name;
+        final String help;
+        final String type;
+        final String[] labelNames;
+
+        Family(String name, String help, String type, String[] labelNames) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.labelNames = labelNames;
+        }
+
+        abstract void writeSamples(StringBuilder out);
+
+        /** Joins label values into a map key; NUL cannot occur in them. */
+        String key(String[] labelValues) {
+            if (labelValues.length != labelNames.length) {
+                throw new IllegalArgumentException(name + " takes " + labelNames.length + " labels");
+            }
+            return String.join("\0", labelValues);
+        }
+    }
+
+    /** A count only ever added to, per combination of label values. */
+    static final class Counter extends Family {
+        private final Map<String, Child> children = new ConcurrentHashMap<>();
+
+        private static final class Child {
+            final String[] labelValues;
+            final DoubleAdder value = new DoubleAdder();
+
+            Child(String[] labelValues) {
+                this.labelValues = labelValues;
+            }
+        }
+
+        Counter(String name, String help, String[] labelNames) {
+            super(name, help, "counter", labelNames);
+        }
+
+        void inc(String... labelValues) {
+            add(1, labelValues);
+        }
+
+        void add(double amount, String... labelValues) {
+            children.computeIfAbsent(key(labelValues), k -> new Child(labelValues)).value.add(amount);
+        }
+
+        @Override
+        void writeSamples(StringBuilder out) {
+            for (Child child : children.values()) {
+                sample(out, name, labelNames, child.labelValues, null, child.value.sum());
+            }
+        }
+    }
+
+    /** Observations counted into fixed buckets, per combination of label values. */
+    static final class Histogram extends Family {
+        private final double[] bounds;
+        private final Map<String, Child> children = new ConcurrentHashMap<>();
+
+        private final class Child {
+            final String[] labelValues;
+            /** Not cumulative: each observation lands in one bucket, the last being +Inf. */
+            final LongAdder[] buckets = new LongAdder[bounds.length + 1];
+            final DoubleAdder sum = new DoubleAdder();
+
+            Child(String[] labelValues) {
+                this.labelValues = labelValues;
+                for (int i = 0; i < buckets.length; i++) {
+                    buckets[i] = new LongAdder();
+                }
+            }
+        }
+
+        Histogram(String name, String help, double[] bounds, String[] labelNames) {
+            super(name, help, "histogram", labelNames);
+            this.bounds = bounds;
+        }
+
+        void observe(double value, String... labelValues) {
+            Child child = children.computeIfAbsent(key(labelValues), k -> new Child(labelValues));
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) {
+                i++;
+            }
+            child.buckets[i].increment();
+            child.sum.add(value);
+        }
+
+        @Override
+        void writeSamples(StringBuilder out) {
+            for (Child child : children.values()) {
+                long cumulative = 0;
+                for (int i = 0; i <= bounds.length; i++) {
+                    cumulative += child.buckets[i].sum();
+                    String le = i < bounds.length ? number(bounds[i]) : "+Inf";
+                    sample(out, name + "_bucket", labelNames, child.labelValues, le, cumulative);
+                }
+                sample(out, name + "_sum", labelNames, child.labelValues, null, child.sum.sum());
+                sample(out, name + "_count", labelNames, child.labelValues, null, cumulative);
+            }
+        }
+    }
+
+    /** Values read when scraped, one supplier per combination of label values. */
+    static final class Callback extends Family {
+        private final List<String[]> labelValues = new ArrayList<>();
+        private final List<DoubleSupplier> suppliers = new ArrayList<>();
+
+        Callback(String name, String help, String type, String[] labelNames) {
+            super(name, help, type, labelNames);
+        }
+
+        synchronized Callback bind(DoubleSupplier supplier, String... values) {
+            key(values);
+            labelValues.add(values);
+            suppliers.add(supplier);
+            return this;
+        }
+
+        @Override
+        synchronized void writeSamples(StringBuilder out) {
+            for (int i = 0; i < suppliers.size(); i++) {
+                sample(out, name, labelNames, labelValues.get(i), null, suppliers.get(i).getAsDouble());
+            }
+        }
+    }
+
+    private final List<Family> families = new ArrayList<>();
+
+    synchronized Counter counter(String name, String help, String... labelNames) {
+        return register(new Counter(name, help, labelNames));
+    }
+
+    synchronized Histogram histogram(String name, String help, double[] bounds, String... labelNames) {
+        return register(new Histogram(name, help, bounds, labelNames));
+    }
+
+    /** A gauge read when scraped; {@link Callback#bind} a supplier per label set. */
+    synchronized Callback gauge(String name, String help, String... labelNames) {
+        return register(new Callback(name, help, "gauge", labelNames));
+    }
+
+    /** A counter kept elsewhere (an adder, an MXBean), read when scraped. */
+    synchronized Callback counterOf(String name, String help, String... labelNames) {
+        return register(new Callback(name, help, "counter", labelNames));
+    }
+
+    private <F extends Family> F register(F family) {
+        families.add(family);
+        return family;
+    }
+
+    synchronized String scrape() {
+        StringBuilder out = new StringBuilder(8192);
+        for (Family family : families) {
+            out.append("# HELP ").append(family.name).append(' ')
+                    .append(family.help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            family.writeSamples(out);
+        }
+        return out.toString();
+    }
+
+    private static void sample(StringBuilder out, String name, String[] labelNames, String[] labelValues,
+                               String le, double value) {
+        out.append(name);
+        if (labelNames.length > 0 || le != null) {
+            out.append('{');
+            for (int i = 0; i < labelNames.length; i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                label(out, labelNames[i], labelValues[i]);
+            }
+            if (le != null) {
+                if (labelNames.length > 0) {
+                    out.append(',');
+                }
+                label(out, "le", le);
+            }
+            out.append('}');
+        }
+        out.append(' ').append(number(value)).append('\n');
+    }
+
+    private static void label(StringBuilder out, String name, String value) {
+        out.append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\': out.append("\\\\"); break;
+                case '"': out.append("\\\""); break;
+                case '\n': out.append("\\n"); break;
+                default: out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    /** Whole numbers without a fraction, which keeps counts readable; the rest as Java writes doubles. */
+    private static String number(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
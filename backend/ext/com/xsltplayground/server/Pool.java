@@ -0,0 +1,32 @@
+package com.xsltplayground.server;
+
+import java.util.ArrayDeque;
+
+/**
+ * Idle reusable objects, handed to one worker at a time. Holds at most as
+ * many as there are workers, since no more can be in use at once; anything
+ * released beyond that is left to the garbage collector. Emptied when the
+ * daemon goes idle (see {@link IdlePolicy}).
+ */
+public final class Pool<T> {
+
+    private final ArrayDeque<T> idle = new ArrayDeque<>();
+    private final int max = TransformServer.workerCount();
+
+    /** An idle object, or null when the caller has to make a new one. */
+    public synchronized T poll() {
+        return idle.pollFirst();
+    }
+
+    /** Returns an object the caller has already reset. */
+    public synchronized void release(T item) {
+        if (idle.size() < max) {
+            idle.addFirst(item);
+        }
+    }
+
+    /** Drops every idle object; the next callers make new ones. */
+    public synchronized void clear() {
+        idle.clear();
+    }
+}
@@ -0,0 +1,90 @@
+package com.xsltplayground.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Serialized /transform responses, least recently used evicted first, bounded
+ * both by entry count and by total body size. The daemons run with small
+ * heaps, so a single result larger than an eighth of the byte budget is not
+ * kept at all rather than flushing everything else out.
+ */
+final class ResultCache {
+
+    static final class Result {
+        final int status;
+        final byte[] body;
+
+        Result(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private final Map<String, Result> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final int maxEntries;
+    private final long maxBytes;
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    ResultCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized Result get(String key) {
+        Result result = entries.get(key);
+        if (result != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return result;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized void put(String key, Result result) {
+        if (maxEntries <= 0 || result.body.length > maxBytes / 8) {
+            return;
+        }
+        Result previous = entries.put(key, result);
+        if (previous != null) {
+            bytes -= previous.body.length;
+        }
+        bytes += result.body.length;
+        evict(maxEntries, maxBytes);
+    }
+
+    /** Keeps only the most recently used results within the given bounds; returns how many went. */
+    synchronized int trim(int keepEntries, long keepBytes) {
+        return evict(keepEntries, keepBytes);
+    }
+
+    private int evict(int limitEntries, long limitBytes) {
+        int evicted = 0;
+        Iterator<Result> eldest = entries.values().iterator();
+        while ((entries.size() > limitEntries || bytes > limitBytes) && eldest.hasNext()) {
+            bytes -= eldest.next().body.length;
+            eldest.remove();
+            evicted++;
+        }
+        return evicted;
+    }
+}
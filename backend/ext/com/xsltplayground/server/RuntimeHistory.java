@@ -0,0 +1,116 @@
+package com.xsltplayground.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Recent runtimes per (stylesheet, input-size bucket), used to predict what a
+ * queued request will cost before it runs. Compile, parse and transform are
+ * tracked separately because they scale differently: compile depends only on
+ * the stylesheet, parse only on the input, transform on both.
+ *
+ * Estimates are exponentially weighted so a stylesheet that gets edited (new
+ * hash) or a JIT that warms up does not keep paying for old samples.
+ */
+public final class RuntimeHistory {
+
+    /** Upper bounds of the input-size buckets, in bytes; the last bucket is open. */
+    private static final long[] BUCKET_LIMITS = {1L << 10, 4L << 10, 16L << 10, 64L << 10, 256L << 10, 1L << 20, 4L << 20};
+    private static final String[] BUCKET_LABELS = {"1k", "4k", "16k", "64k", "256k", "1m", "4m", "large"};
+
+    private static final double ALPHA = 0.3;
+    private static final int MAX_ENTRIES = 4096;
+
+    /** Where a prediction came from, reported next to it so misses can be told apart from bad estimates. */
+    public enum Source { HISTORY, BUCKET, DEFAULT }
+
+    public static final class Prediction {
+        public final long nanos;
+        public final Source source;
+
+        Prediction(long nanos, Source source) {
+            this.nanos = nanos;
+            this.source = source;
+        }
+    }
+
+    private static final class Estimate {
+        double compile;
+        double parse;
+        double transform;
+        long samples;
+
+        void add(long compileNanos, long parseNanos, long transformNanos) {
+            if (samples == 0) {
+                compile = compileNanos;
+                parse = parseNanos;
+                transform = transformNanos;
+            } else {
+                compile += ALPHA * (compileNanos - compile);
+                parse += ALPHA * (parseNanos - parse);
+                transform += ALPHA * (transformNanos - transform);
+            }
+            samples++;
+        }
+
+        long total() {
+            return (long) (compile + parse + transform);
+        }
+    }
+
+    private final long defaultNanos;
+    private final Map<String, Estimate> byStylesheet = new LinkedHashMap<String, Estimate>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Estimate> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private final Estimate[] byBucket = new Estimate[BUCKET_LABELS.length];
+
+    public RuntimeHistory(long defaultNanos) {
+        this.defaultNanos = defaultNanos;
+        for (int i = 0; i < byBucket.length; i++) {
+            byBucket[i] = new Estimate();
+        }
+    }
+
+    public static int bucket(long inputBytes) {
+        for (int i = 0; i < BUCKET_LIMITS.length; i++) {
+            if (inputBytes < BUCKET_LIMITS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_LIMITS.length;
+    }
+
+    public static String bucketLabel(int bucket) {
+        return BUCKET_LABELS[bucket];
+    }
+
+    /**
+     * Exact history for this stylesheet and size first; failing that, the
+     * average of everything seen in the same size bucket; failing that, a
+     * fixed default so the first request after a restart still gets a rank.
+     */
+    public synchronized Prediction predict(String stylesheetHash, int bucket) {
+        Estimate exact = byStylesheet.get(stylesheetHash + '/' + bucket);
+        if (exact != null) {
+            return new Prediction(exact.total(), Source.HISTORY);
+        }
+        Estimate sized = byBucket[bucket];
+        if (sized.samples > 0) {
+            return new Prediction(sized.total(), Source.BUCKET);
+        }
+        return new Prediction(defaultNanos, Source.DEFAULT);
+    }
+
+    public synchronized void record(String stylesheetHash, int bucket, Timings timings) {
+        long compile = timings.get(Timings.Phase.COMPILE);
+        // Binding parameters is parsing too when they are XML documents.
+        long parse = timings.get(Timings.Phase.PARSE) + timings.get(Timings.Phase.PARAMS);
+        long transform = timings.get(Timings.Phase.TRANSFORM);
+        byStylesheet.computeIfAbsent(stylesheetHash + '/' + bucket, k -> new Estimate())
+                .add(compile, parse, transform);
+        byBucket[bucket].add(compile, parse, transform);
+    }
+}
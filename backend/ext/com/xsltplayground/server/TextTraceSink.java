@@ -0,0 +1,107 @@
+package com.xsltplayground.server;
+
+import java.io.PrintStream;
+
+/**
+ * The trace as lines of text, for reading in a terminal: what the
+ * command-line Runner writes to standard error.
+ *
+ * <pre>
+ *   TRACE_VAR_START|name[|sample]
+ *   value, as many lines as it has
+ *   TRACE_VAR_END[|truncated]
+ *   TRACE_HOT|count|kind|label|line|inclusive µs|self µs
+ *   TRACE_XPATH|count|total µs|line|column|where|expression
+ *   TRACE_FLAME|frame;frame;frame|self µs
+ *   TRACE_TRUNCATED|max bytes|skipped
+ *   TRACE_TIMING|name|µs
+ *   TRACE_DEBUG ...
+ * </pre>
+ *
+ * Nothing is escaped: a value with a line that looks like one of these
+ * cannot be told from it. Programs read {@link BinaryTraceSink} instead.
+ */
+public final class TextTraceSink implements TraceSink {
+
+    private final PrintStream out;
+    private final Value value = new Value();
+
+    public TextTraceSink(PrintStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public Appendable startVariable(String name, int line, String sample) {
+        out.println("TRACE_VAR_START|" + name + (sample != null ? "|" + sample : ""));
+        value.written = false;
+        return value;
+    }
+
+    @Override
+    public void endVariable(boolean truncated) {
+        if (value.written) {
+            out.println();
+        }
+        out.println(truncated ? "TRACE_VAR_END|truncated" : "TRACE_VAR_END");
+    }
+
+    @Override
+    public void hotspot(long count, String kind, String label, int line, long inclusiveMicros, long selfMicros) {
+        out.println("TRACE_HOT|" + count + "|" + kind + "|" + field(label) + "|" + line + "|"
+                + inclusiveMicros + "|" + selfMicros);
+    }
+
+    @Override
+    public void expression(long count, long totalMicros, int line, int column, String where, String text) {
+        out.println("TRACE_XPATH|" + count + "|" + totalMicros + "|" + line + "|" + column + "|"
+                + field(where) + "|" + text);
+    }
+
+    @Override
+    public void flame(String stack, long selfMicros) {
+        out.println("TRACE_FLAME|" + stack + "|" + selfMicros);
+    }
+
+    @Override
+    public void truncated(long maxBytes, int skipped) {
+        out.println("TRACE_TRUNCATED|" + maxBytes + "|" + skipped);
+    }
+
+    @Override
+    public void timing(String name, long micros) {
+        out.println("TRACE_TIMING|" + name + "|" + micros);
+    }
+
+    @Override
+    public void message(String text) {
+        out.println(text);
+    }
+
+    private static String field(String text) {
+        return text == null ? "" : text.replace("\r", " ").replace("\n", " ").replace("|", "/");
+    }
+
+    /** The value being written; notes whether there was any, for the line break before its end. */
+    private final class Value implements Appendable {
+        boolean written;
+
+        @Override
+        public Appendable append(CharSequence csq) {
+            return append(csq, 0, csq.length());
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) {
+            written |= end > start;
+            out.append(csq, start, end);
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) {
+            written = true;
+            out.append(c);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.xsltplayground.server;
+
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Wall-clock time spent in each phase of one request, in nanoseconds.
+ * Engines bracket their work with {@link #mark()} / {@link #add}; a phase
+ * that runs more than once (e.g. several XML parameters being parsed)
+ * accumulates.
+ *
+ * {@link TransformServer} measures the queue wait and the JSON decoding of
+ * the request, and adds encoding the response to SERIALIZE, whose engine
+ * part is collecting the result from its buffers. All three engines write
+ * the result document as they go, so producing its text counts as
+ * TRANSFORM.
+ *
+ * While a JFR recording takes them, each mark/add pair is also a
+ * {@link FlightEvents.Phase} event, committed once the run's outcome is known.
+ */
+public final class Timings {
+
+    /** In the order a request goes through them. */
+    public enum Phase { QUEUE, DECODE, COMPILE, PARSE, PARAMS, TRANSFORM, SERIALIZE }
+
+    private final long[] nanos = new long[Phase.values().length];
+    /** The phase event begun by the last {@link #mark()}, until {@link #add} ends it. */
+    private FlightEvents.Phase open;
+    /** Ended phase events, waiting for the outcome; null outside a recording. */
+    private List<FlightEvents.Phase> events;
+
+    public long mark() {
+        if (open != null) {
+            // The phase marked last never got to add(): the engine failed in it.
+            end("unfinished");
+        }
+        FlightEvents.Phase event = new FlightEvents.Phase();
+        if (event.isEnabled()) {
+            event.begin();
+            open = event;
+        }
+        return System.nanoTime();
+    }
+
+    /** Adds the time elapsed since {@code since} (a value from {@link #mark()}) to a phase. */
+    public void add(Phase phase, long since) {
+        nanos[phase.ordinal()] += System.nanoTime() - since;
+        if (open != null) {
+            end(phase.name().toLowerCase());
+        }
+    }
+
+    private void end(String phase) {
+        open.end();
+        open.phase = phase;
+        if (events == null) {
+            events = new ArrayList<>(Phase.values().length);
+        }
+        events.add(open);
+        open = null;
+    }
+
+    /**
+     * Commits the phase events of a finished run. A phase left open is the
+     * one the engine failed in; it is committed as "unfinished".
+     */
+    void commitEvents(String engine, String stylesheet, long inputSize, String outcome) {
+        if (open != null) {
+            end("unfinished");
+        }
+        if (events == null) {
+            return;
+        }
+        for (FlightEvents.Phase event : events) {
+            event.engine = engine;
+            event.stylesheet = stylesheet;
+            event.inputSize = inputSize;
+            event.outcome = outcome;
+            event.commit();
+        }
+        events = null;
+    }
+
+    public long get(Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    /** Milliseconds per phase, to the microsecond, as {@code {"queueMs": 0.012, ...}}. */
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        for (Phase phase : Phase.values()) {
+            json.addProperty(phase.name().toLowerCase() + "Ms", Math.round(nanos[phase.ordinal()] / 1e3) / 1e3);
+        }
+        return json;
+    }
+
+    public long total() {
+        long sum = 0;
+        for (long n : nanos) {
+            sum += n;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,174 @@
+package com.xsltplayground.server;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+
+/**
+ * How much of a traced run's variable values makes it into the trace. A
+ * variable bound to a large node-set would otherwise be serialized in full
+ * on every iteration that binds it, and the whole trace held in memory until
+ * the response is written.
+ *
+ * <ul>
+ *   <li>Each value is cut off at {@code xslt.trace.maxValueBytes} (default
+ *       64 KiB) of UTF-8.</li>
+ *   <li>Once the values of one request, with their variables' names, add
+ *       up to {@code xslt.trace.maxBytes} (8 MiB), no further variable is
+ *       captured, let alone evaluated; the ones passed over are only
+ *       counted.</li>
+ * </ul>
+ *
+ * Values are written through {@link #startValue}, straight into the trace,
+ * and the writer refuses the first character over the limit with
+ * {@link Full}: a serializer writing a node unwinds there instead of
+ * producing the rest only for it to be thrown away. One budget per traced
+ * run, used from the transform's thread.
+ */
+public final class TraceBudget {
+
+    /** Thrown into whatever is writing a value once it has reached its limit. */
+    public static final class Full extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        Full() {
+            super("trace value limit reached");
+        }
+    }
+
+    private final long maxValueBytes = TransformServer.longProperty("xslt.trace.maxValueBytes", 64 << 10);
+    private final long maxBytes = TransformServer.longProperty("xslt.trace.maxBytes", 8L << 20);
+    private long spent;
+    private int skipped;
+
+    /** The request's whole allowance has been spent. */
+    public boolean exhausted() {
+        return spent >= maxBytes;
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    /** Counts a variable passed over because the budget was exhausted. */
+    public void skip() {
+        skipped++;
+    }
+
+    public int skipped() {
+        return skipped;
+    }
+
+    /**
+     * Charges text written to the trace outside of a value (a variable's
+     * name, its sample label), as UTF-8 bytes.
+     */
+    public void spend(CharSequence text) {
+        spent += utf8Length(text, 0, text.length());
+    }
+
+    /**
+     * A writer for one value, appending to {@code target} until the value's
+     * limit or what is left of the request's, whichever is smaller. What it
+     * took is charged to the budget as it is written.
+     */
+    public ValueWriter startValue(Appendable target) {
+        return new ValueWriter(target, Math.max(0, Math.min(maxValueBytes, maxBytes - spent)));
+    }
+
+    public final class ValueWriter extends Writer {
+        private final Appendable target;
+        private final long limit;
+        private long bytes;
+        private boolean truncated;
+
+        ValueWriter(Appendable target, long limit) {
+            this.target = target;
+            this.limit = limit;
+        }
+
+        /** Whether anything has been written. */
+        public boolean isEmpty() {
+            return bytes == 0;
+        }
+
+        /** Whether the value went over its limit and was cut off. */
+        public boolean truncated() {
+            return truncated;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            write(CharBuffer.wrap(cbuf), off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            write((CharSequence) str, off, len);
+        }
+
+        @Override
+        public Writer append(CharSequence csq) throws IOException {
+            CharSequence text = csq != null ? csq : "null";
+            write(text, 0, text.length());
+            return this;
+        }
+
+        @Override
+        public Writer append(CharSequence csq, int start, int end) throws IOException {
+            CharSequence text = csq != null ? csq : "null";
+            write(text, start, end - start);
+            return this;
+        }
+
+        private void write(CharSequence text, int off, int len) throws IOException {
+            if (truncated) {
+                throw new Full();
+            }
+            int end = off + len;
+            int fits = off;
+            long size = bytes;
+            while (fits < end) {
+                long charBytes = utf8Length(text, fits, fits + 1);
+                if (size + charBytes > limit) {
+                    break;
+                }
+                size += charBytes;
+                fits++;
+            }
+            if (fits < end && fits > off && Character.isHighSurrogate(text.charAt(fits - 1))) {
+                // Never leave half of a surrogate pair behind.
+                fits--;
+                size -= 2;
+            }
+            if (fits > off) {
+                target.append(text, off, fits);
+                spent += size - bytes;
+                bytes = size;
+            }
+            if (fits < end) {
+                truncated = true;
+                throw new Full();
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+            // The trace outlives the value; closing a serializer must not close it.
+        }
+    }
+
+    /** UTF-8 length of text[from, to); a surrogate counts two of its pair's four bytes. */
+    private static long utf8Length(CharSequence text, int from, int to) {
+        long length = 0;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            length += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,69 @@
+package com.xsltplayground.server;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * The "sample" of a traced request, for inputs that bind a variable too many
+ * times for every value to be worth capturing:
+ *
+ * <pre>
+ *   "sample": {"every": 100}     one evaluation in 100: the 1st, the 101st, ...
+ *   "sample": {"random": 20}     20 evaluations per variable, picked uniformly
+ * </pre>
+ *
+ * Either way each variable's first and last values are reported too, and
+ * every value carries a label saying which evaluation it was and how it was
+ * sampled. An absent, unknown or non-positive sample captures everything.
+ * A random sample holds on to its values until the run ends, so it may keep
+ * at most {@link #MAX_RANDOM} per variable; a larger one is rejected.
+ */
+public final class TraceSampling {
+
+    /** Values of "every" beyond this are taken as this. */
+    private static final int MAX = 1_000_000;
+    /** The most values a random sample keeps per variable; the proxy checks the same. */
+    static final int MAX_RANDOM = 500;
+
+    /** One in {@link #rate} evaluations, or {@link #rate} at random per variable. */
+    public final boolean random;
+    public final int rate;
+
+    private TraceSampling(boolean random, int rate) {
+        this.random = random;
+        this.rate = rate;
+    }
+
+    /** Null for no sampling; an IllegalArgumentException for too large a random sample. */
+    static TraceSampling parse(JsonObject request) {
+        if (!request.has("sample") || !request.get("sample").isJsonObject()) {
+            return null;
+        }
+        JsonObject json = request.getAsJsonObject("sample");
+        long every = positive(json.get("every"));
+        if (every > 1) {
+            return new TraceSampling(false, (int) Math.min(every, MAX));
+        }
+        long random = positive(json.get("random"));
+        if (random > MAX_RANDOM) {
+            throw new IllegalArgumentException("trace sample random must be at most " + MAX_RANDOM + ", got " + random);
+        }
+        if (random > 0) {
+            return new TraceSampling(true, (int) random);
+        }
+        return null;
+    }
+
+    private static long positive(JsonElement value) {
+        if (value == null || !value.isJsonPrimitive() || !value.getAsJsonPrimitive().isNumber()) {
+            return 0;
+        }
+        long n = value.getAsLong();
+        return Math.max(0, n);
+    }
+
+    /** Canonical text of the sampling, for the request key. */
+    String key() {
+        return (random ? "random:" : "every:") + rate;
+    }
+}
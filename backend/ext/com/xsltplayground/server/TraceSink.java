@@ -0,0 +1,41 @@
+package com.xsltplayground.server;
+
+/**
+ * Where a traced run's listener reports to, one typed call per record.
+ * {@link BinaryTraceSink} frames the records for the daemons' responses;
+ * {@link TextTraceSink} writes the line format of the command-line Runner.
+ *
+ * A variable's value is written between {@link #startVariable} and
+ * {@link #endVariable}, straight from the serializer into the sink, so it is
+ * never held as a string of its own.
+ */
+public interface TraceSink {
+
+    /**
+     * Starts the record of one value of a variable: its name, the line it is
+     * declared on (-1 if unknown) and, on a sampled run, which evaluation it
+     * is. The value is appended to what this returns.
+     */
+    Appendable startVariable(String name, int line, String sample);
+
+    /** Ends the value started last; {@code truncated} if it was cut off at its limit. */
+    void endVariable(boolean truncated);
+
+    /** A construct, how often it ran, and its time with and without what it called. */
+    void hotspot(long count, String kind, String label, int line, long inclusiveMicros, long selfMicros);
+
+    /** An XPath expression, how often it was evaluated and the time spent in it. */
+    void expression(long count, long totalMicros, int line, int column, String where, String text);
+
+    /** A collapsed stack, "frame;frame;frame", and the self time spent there. */
+    void flame(String stack, long selfMicros);
+
+    /** The trace reached its limit; {@code skipped} variables were not captured. */
+    void truncated(long maxBytes, int skipped);
+
+    /** Time the run spent on something other than the stylesheet, such as tracing itself. */
+    void timing(String name, long micros);
+
+    /** Free text: debug output, notes. */
+    void message(String text);
+}
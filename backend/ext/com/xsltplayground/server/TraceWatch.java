@@ -0,0 +1,130 @@
+package com.xsltplayground.server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The "watch" of a traced request: which variables to capture, when
+ * capturing all of them costs more than the transform.
+ *
+ * <pre>
+ *   "watch": {"variables": ["total", "$i"], "lines": ["12", "30-45"], "templates": ["item", "main"]}
+ * </pre>
+ *
+ * A variable is captured if any entry matches it: its name (with or without
+ * the $ and the prefix), a line range its declaration is on, or the template
+ * it is declared in, given by match pattern (as written in the stylesheet,
+ * whitespace aside) or by name. Templates it applies or calls, and functions,
+ * are not part of it; nor are global variables. Entries that do not parse
+ * are ignored; the proxy has rejected them already.
+ */
+public final class TraceWatch {
+
+    private final Set<String> variables = new TreeSet<>();
+    private final List<int[]> lines = new ArrayList<>();
+    private final Set<String> templates = new TreeSet<>();
+
+    private TraceWatch() {
+    }
+
+    /** Null for no watch, or one without entries: capture everything. */
+    static TraceWatch parse(JsonObject request) {
+        if (!request.has("watch") || !request.get("watch").isJsonObject()) {
+            return null;
+        }
+        JsonObject json = request.getAsJsonObject("watch");
+        TraceWatch watch = new TraceWatch();
+        for (String name : strings(json, "variables")) {
+            name = name.startsWith("$") ? name.substring(1) : name;
+            if (!name.isEmpty()) {
+                watch.variables.add(name);
+            }
+        }
+        for (String range : strings(json, "lines")) {
+            int[] parsed = lineRange(range);
+            if (parsed != null) {
+                watch.lines.add(parsed);
+            }
+        }
+        for (String template : strings(json, "templates")) {
+            String normalized = normalize(template);
+            if (!normalized.isEmpty()) {
+                watch.templates.add(normalized);
+            }
+        }
+        return watch.variables.isEmpty() && watch.lines.isEmpty() && watch.templates.isEmpty() ? null : watch;
+    }
+
+    private static List<String> strings(JsonObject json, String key) {
+        List<String> values = new ArrayList<>();
+        if (json.has(key) && json.get(key).isJsonArray()) {
+            JsonArray array = json.getAsJsonArray(key);
+            for (JsonElement e : array) {
+                if (e.isJsonPrimitive()) {
+                    values.add(e.getAsString().trim());
+                }
+            }
+        }
+        return values;
+    }
+
+    /** "12" or "30-45"; null if it is neither. */
+    private static int[] lineRange(String text) {
+        try {
+            int dash = text.indexOf('-');
+            if (dash < 0) {
+                int line = Integer.parseInt(text);
+                return new int[] {line, line};
+            }
+            int from = Integer.parseInt(text.substring(0, dash).trim());
+            int to = Integer.parseInt(text.substring(dash + 1).trim());
+            return from <= to ? new int[] {from, to} : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String normalize(String text) {
+        return text.trim().replaceAll("\\s+", " ");
+    }
+
+    /** A variable by its local name, or its name as written (prefix:local). */
+    public boolean watchesVariable(String localName, String displayName) {
+        return variables.contains(localName) || variables.contains(displayName);
+    }
+
+    public boolean watchesLine(int line) {
+        for (int[] range : lines) {
+            if (line >= range[0] && line <= range[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean watchesTemplates() {
+        return !templates.isEmpty();
+    }
+
+    /** A template by its match pattern or its name. */
+    public boolean watchesTemplate(String patternOrName) {
+        return patternOrName != null && templates.contains(normalize(patternOrName));
+    }
+
+    /** Canonical text of the watch, for the request key. */
+    String key() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(variables).append('\u0001');
+        for (int[] range : lines) {
+            sb.append(range[0]).append('-').append(range[1]).append(',');
+        }
+        sb.append('\u0001').append(templates);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,708 @@
+package com.xsltplayground.server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.crac.CheckpointException;
+import org.crac.Context;
+import org.crac.Core;
+import org.crac.Resource;
+import org.crac.RestoreException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The HTTP side shared by the three daemons, and by {@link EngineHost} when
+ * it runs them all in one process. Each daemon only supplies an
+ * {@link Engine} — the part of /transform that differs per XSLT processor —
+ * and this class does the rest: it reads and decodes the request on a small
+ * intake pool, predicts its cost from {@link RuntimeHistory}, and queues it on
+ * the {@link JobScheduler} so cheap requests are not stuck behind expensive
+ * ones and no single client can take over the workers. The response is written
+ * from the worker that ran the job.
+ *
+ * Shared fiddles and gallery templates send the exact same request many times,
+ * often at once. Identical requests that arrive while one is running attach to
+ * it and get its response instead of queueing their own run, and results of
+ * stylesheets {@link Determinism} considers deterministic are kept in a
+ * {@link ResultCache}. Reused responses carry an {@code X-Transform-Reuse}
+ * header ("coalesced" or "cached") so the proxy can tell them apart from runs.
+ *
+ * On a CRaC JDK the server survives a checkpoint: the listener and the
+ * intake pool are closed before it and recreated after restore, while the
+ * workers, compiled stylesheets, pools and cached results carry over warm.
+ * start.sh uses that to checkpoint a freshly warmed daemon once
+ * ({@code -Dxslt.checkpoint=true}) and restore every later start from it.
+ *
+ * Once ready, an {@link IdlePolicy} trims caches, workers and heap whenever
+ * the server sits idle for a while, and a {@link HeapGuard} sheds load when
+ * the heap is close to full. Both answer refused or aborted work with a 503
+ * and a Retry-After header.
+ *
+ * Every response carries a {@code timings} object: milliseconds spent in
+ * each {@link Timings.Phase}, from the queue wait to encoding the response.
+ * {@code /metrics} (at the root, once per process) reports the same phases,
+ * queueing, caches and the JVM in the Prometheus text format; see
+ * {@link Metrics}. Its phases are also JFR events ({@link FlightEvents}), and
+ * {@code POST /admin/jfr} takes a bounded recording of them along with the
+ * JVM's own; see {@link FlightRecordings}.
+ */
+public final class TransformServer {
+
+    /** The engine-specific part of a /transform call. */
+    public interface Engine {
+        /**
+         * Runs one request. Errors the user should see (bad stylesheet, bad
+         * input) are returned as a response with an "error" property, not
+         * thrown; anything thrown is reported as a 500.
+         */
+        Response transform(Request req) throws Exception;
+    }
+
+    public static final class Request {
+        public final JsonObject json;
+        public final String xslt;
+        public final String source;
+        public final boolean trace;
+        /** What a traced run captures; null to capture every variable. */
+        public final TraceWatch watch;
+        /** Which evaluations of a variable a traced run captures; null for all of them. */
+        public final TraceSampling sampling;
+        public final Map<String, String> parameters;
+        public final Map<String, String> fileParameters;
+        public final Timings timings = new Timings();
+        /** Identifies the stylesheet text; engines key their compiled-stylesheet caches on it. */
+        public final String stylesheetHash;
+        final long inputBytes;
+        /** History key: traced runs are far slower than plain ones, so they are predicted apart. */
+        final String costKey;
+        /** Everything the response depends on; equal keys get the same result. */
+        final String requestKey;
+        /** Set by {@link HeapGuard} to stop the run; the guarded reader and writer then fail. */
+        volatile boolean aborted;
+
+        Request(JsonObject json) {
+            this.json = json;
+            this.xslt = json.has("xslt") ? json.get("xslt").getAsString() : "";
+            this.source = json.has("source") ? json.get("source").getAsString() : "";
+            this.trace = json.has("trace") && json.get("trace").getAsBoolean();
+            this.watch = trace ? TraceWatch.parse(json) : null;
+            this.sampling = trace ? TraceSampling.parse(json) : null;
+            this.parameters = jsonObjectToMap(json, "parameters");
+            this.fileParameters = jsonObjectToMap(json, "fileParameters");
+            this.stylesheetHash = sha256(xslt);
+            long bytes = source.length();
+            for (String v : fileParameters.values()) {
+                bytes += v.length();
+            }
+            this.inputBytes = bytes;
+            this.costKey = trace ? stylesheetHash + "+trace" : stylesheetHash;
+            this.requestKey = requestKey(this);
+        }
+
+        /**
+         * Wraps the reader an engine parses the source from, so the run can
+         * be aborted under memory pressure while the tree is being built.
+         */
+        public Reader guard(Reader in) {
+            return HeapGuard.guard(this, in);
+        }
+
+        /** Wraps the writer an engine serializes the result to, likewise. */
+        public Writer guard(Writer out) {
+            return HeapGuard.guard(this, out);
+        }
+
+        /**
+         * Whether the run has been aborted, for engines to check where the
+         * guarded reader and writer do not reach, such as while building
+         * temporary trees. An engine that finds it set fails the run.
+         */
+        public boolean isAborted() {
+            return aborted;
+        }
+    }
+
+    public static final class Response {
+        public final int status;
+        public final JsonObject body;
+
+        public Response(int status, JsonObject body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private static final Gson GSON = new Gson();
+
+    /** Told to clients refused or aborted by the {@link HeapGuard}. */
+    private static final String LOW_MEMORY =
+            "the transform service is low on memory; retry shortly or with a smaller input";
+
+    /** One engine served by this server, under its own path prefix. */
+    private static final class Route {
+        final String prefix;
+        /** The engine label on its metrics. */
+        final String label;
+        final Engine engine;
+        /** Context class loader for the engine's jobs, or null to leave the worker's alone. */
+        final ClassLoader loader;
+        /** Corpus entries (by XSLT version) this engine is warmed up with. */
+        final String[] warmupVersions;
+        /** Per engine: the same stylesheet costs differently on each. */
+        final RuntimeHistory history = new RuntimeHistory(longProperty("xslt.sched.defaultCostMs", 20) * 1_000_000L);
+        /** Requests received and not yet answered, whether queued, running or attached to another run. */
+        final AtomicInteger inFlight = new AtomicInteger();
+
+        Route(String prefix, String label, Engine engine, ClassLoader loader, String[] warmupVersions) {
+            this.prefix = prefix;
+            this.label = label;
+            this.engine = engine;
+            this.loader = loader;
+            this.warmupVersions = warmupVersions;
+        }
+    }
+
+    private final String name;
+    private final int port;
+    private final List<Route> routes = new ArrayList<>();
+    /** Shared by all routes, keyed by prefix and request, so one byte budget covers every engine. */
+    private final ResultCache results;
+    private final Map<String, CompletableFuture<ResultCache.Result>> running = new ConcurrentHashMap<>();
+    private JobScheduler scheduler;
+    private IdlePolicy idle;
+    private final HeapGuard heapGuard;
+    private final Metrics metrics = new Metrics();
+    private final FlightRecordings recordings;
+    private final Metrics.Counter requests = metrics.counter("xslt_engine_requests_total",
+            "Transform requests answered, by engine, mode (plain or trace) and outcome "
+                    + "(ok, error, cached, coalesced, shed, aborted).", "engine", "mode", "outcome");
+    private final Metrics.Histogram phases = metrics.histogram("xslt_engine_phase_seconds",
+            "Time spent in each phase of a transform run, by engine and phase.",
+            Metrics.PHASE_BUCKETS, "engine", "phase");
+    private final Metrics.Histogram queueWait = metrics.histogram("xslt_engine_queue_wait_seconds",
+            "Time a transform waited in the scheduler for a worker, by engine.", Metrics.PHASE_BUCKETS, "engine");
+    /** Set once every engine has been warmed up; until then /ready answers 503. */
+    private volatile boolean ready;
+    private HttpServer http;
+    private ExecutorService intake;
+    /** Registered with CRaC, which only holds it weakly. */
+    private final Resource checkpointHook = new Resource() {
+        @Override
+        public void beforeCheckpoint(Context<? extends Resource> context) {
+            stopListening();
+        }
+
+        @Override
+        public void afterRestore(Context<? extends Resource> context) throws IOException {
+            listen();
+            System.out.println(name + " restored, listening on :" + port);
+        }
+    };
+
+    /**
+     * A server with no engines yet; see {@link #addEngine}.
+     *
+     * @param port default port; {@code -Dxslt.port} overrides it so several
+     *             instances of one engine can run side by side
+     */
+    public TransformServer(String name, int port) {
+        this.name = name;
+        this.port = (int) longProperty("xslt.port", port);
+        this.results = new ResultCache((int) longProperty("xslt.cache.resultEntries", 256),
+                longProperty("xslt.cache.resultBytes", 8L << 20));
+        this.heapGuard = new HeapGuard(name, () -> {
+            results.trim(0, 0);
+            CompiledCache.trimAll(0);
+        });
+        this.recordings = new FlightRecordings(name);
+    }
+
+    /** A single-engine daemon, serving /transform, /health and /ready. */
+    public TransformServer(String name, int port, Engine engine, String... warmupVersions) {
+        this(name, port);
+        addEngine("", engine, null, warmupVersions);
+    }
+
+    /**
+     * Serves {@code engine} at {@code prefix + "/transform"}, {@code /health}
+     * and {@code /ready}. All engines share the workers and the result cache.
+     * Call before {@link #start()}.
+     *
+     * @param loader         context class loader set around the engine's jobs,
+     *                       so JAXP and service lookups inside it resolve
+     *                       against the engine's own jars; null to leave it alone
+     * @param warmupVersions XSLT versions whose {@link Warmup} corpus entries
+     *                       the engine runs before it reports ready
+     */
+    public void addEngine(String prefix, Engine engine, ClassLoader loader, String... warmupVersions) {
+        // A daemon's only engine is labelled with the daemon's name.
+        routes.add(new Route(prefix, prefix.isEmpty() ? name : prefix.substring(1), engine, loader, warmupVersions));
+    }
+
+    public void start() throws IOException {
+        int threads = workerCount();
+        scheduler = new JobScheduler(name, threads,
+                Double.parseDouble(System.getProperty("xslt.sched.sjfWeight", "4")),
+                longProperty("xslt.sched.maxDeferMs", 2000) * 1_000_000L,
+                Double.parseDouble(System.getProperty("xslt.sched.userWeight", "1")));
+        idle = new IdlePolicy(name, results, scheduler);
+        heapGuard.start();
+        registerMetrics();
+
+        listen();
+        Core.getGlobalContext().register(checkpointHook);
+        System.out.println(name + " listening on :" + port + " (threads=" + threads
+                + (routes.size() > 1 ? ", engines=" + routes.size() : "") + ")");
+
+        // Up (and answering /health) right away, ready only after warm-up.
+        Thread warmup = new Thread(() -> {
+            Warmup corpus = Warmup.load();
+            for (Route route : routes) {
+                corpus.run(name + route.prefix, route.engine, route.loader, route.warmupVersions);
+            }
+            ready = true;
+            System.out.println(name + " ready");
+            if (Boolean.getBoolean("xslt.train")) {
+                // AppCDS training run (start.sh train-cds): exercise the
+                // request path too, then exit so the JVM dumps the archive.
+                for (Route route : routes) {
+                    corpus.replay("http://127.0.0.1:" + port + route.prefix, route.warmupVersions);
+                }
+                System.out.println(name + " training run done");
+                System.exit(0);
+            }
+            if (Boolean.getBoolean("xslt.checkpoint")) {
+                checkpoint();
+            }
+            idle.start();
+        }, name + "-warmup");
+        warmup.setDaemon(true);
+        warmup.start();
+    }
+
+    /** The families read from other parts of the server when scraped. */
+    private void registerMetrics() {
+        metrics.gauge("xslt_engine_queue_depth", "Transforms waiting for a worker, all engines together.")
+                .bind(scheduler::queueDepth);
+        metrics.gauge("xslt_engine_workers", "Worker threads: at most this many (max), alive (live), "
+                + "running a transform (active).", "state")
+                .bind(scheduler::workers, "max")
+                .bind(scheduler::liveWorkers, "live")
+                .bind(scheduler::activeWorkers, "active");
+        Metrics.Callback inFlight = metrics.gauge("xslt_engine_in_flight",
+                "Requests received and not yet answered, by engine.", "engine");
+        for (Route route : routes) {
+            inFlight.bind(route.inFlight::get, route.label);
+        }
+        metrics.gauge("xslt_engine_result_cache_entries", "Responses held in the result cache.")
+                .bind(results::size);
+        metrics.gauge("xslt_engine_result_cache_bytes", "Body bytes held in the result cache.")
+                .bind(results::bytes);
+        metrics.counterOf("xslt_engine_result_cache_lookups_total",
+                "Result cache lookups by untraced requests, by result (hit or miss).", "result")
+                .bind(results::hits, "hit")
+                .bind(results::misses, "miss");
+        metrics.gauge("xslt_engine_compiled_cache_entries", "Compiled stylesheets held, all engines together.")
+                .bind(CompiledCache::entries);
+        metrics.counterOf("xslt_engine_compiled_cache_lookups_total",
+                "Compiled-stylesheet cache lookups, all engines together, by result (hit or miss).", "result")
+                .bind(CompiledCache.HITS::sum, "hit")
+                .bind(CompiledCache.MISSES::sum, "miss");
+        metrics.counterOf("xslt_engine_heap_guard_total",
+                "Decisions taken under heap pressure, by action (shed, flush, abort).", "action")
+                .bind(heapGuard.shed::get, "shed")
+                .bind(heapGuard.flushes::get, "flush")
+                .bind(heapGuard.aborts::get, "abort");
+        JvmMetrics.register(metrics);
+    }
+
+    private void listen() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 32);
+        server.createContext("/metrics", this::handleMetrics);
+        server.createContext("/admin/jfr", recordings::handle);
+        for (Route route : routes) {
+            server.createContext(route.prefix + "/transform", exchange -> handleTransform(route, exchange));
+            server.createContext(route.prefix + "/health", exchange -> handleHealth(route, exchange));
+            server.createContext(route.prefix + "/ready", this::handleReady);
+        }
+        // Intake only reads and decodes bodies; the transforms themselves run
+        // on the scheduler's workers.
+        intake = Executors.newFixedThreadPool(2);
+        server.setExecutor(intake);
+        server.start();
+        http = server;
+    }
+
+    /**
+     * Closes the listening socket and every connection, which a checkpoint
+     * cannot contain. Exchanges still being read get a second to finish;
+     * jobs already queued run after restore and fail quietly writing to
+     * their closed connections.
+     */
+    private void stopListening() {
+        http.stop(1);
+        intake.shutdown();
+        try {
+            intake.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Checkpoint mode (start.sh checkpoint): the JVM is saved here, warmed
+     * up, and exits; every restore resumes from this call already ready.
+     * Failing to checkpoint exits with an error so no stale image is kept.
+     */
+    private void checkpoint() {
+        try {
+            Core.checkpointRestore();
+        } catch (UnsupportedOperationException e) {
+            System.err.println(name + ": this JVM cannot checkpoint; checkpoint mode needs a CRaC JDK");
+            System.exit(1);
+        } catch (CheckpointException | RestoreException e) {
+            System.err.println(name + ": " + (e instanceof CheckpointException ? "checkpoint" : "restore")
+                    + " failed: " + e);
+            for (Throwable cause : e.getSuppressed()) {
+                System.err.println("  " + cause);
+            }
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Transforms that can run at once; per-engine pools need no more idle
+     * objects than this. One per core by default; {@code -Dxslt.workers}
+     * lowers it when several instances share the machine.
+     */
+    public static int workerCount() {
+        int workers = (int) longProperty("xslt.workers", 0);
+        return workers > 0 ? workers : Math.max(2, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Load report for the proxy, which polls it to route between instances
+     * of the same engine (see daemonpool.go). Always 200 once the server is
+     * up, warmed up or not: this is the liveness check, /ready is the
+     * readiness one.
+     */
+    private void handleHealth(Route route, HttpExchange exchange) throws IOException {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        JsonObject health = new JsonObject();
+        health.addProperty("status", "ok");
+        health.addProperty("ready", ready);
+        health.addProperty("queueDepth", scheduler.queueDepth());
+        health.addProperty("inFlight", route.inFlight.get());
+        health.addProperty("activeWorkers", scheduler.activeWorkers());
+        health.addProperty("workers", scheduler.workers());
+        health.addProperty("liveWorkers", scheduler.liveWorkers());
+        health.addProperty("heapUsed", heap.getUsed());
+        health.addProperty("heapMax", heap.getMax());
+        health.addProperty("rssBytes", IdlePolicy.residentBytes());
+        health.addProperty("heapPressure", heapGuard.level());
+        health.addProperty("shedRequests", heapGuard.shed.get());
+        health.addProperty("cacheFlushes", heapGuard.flushes.get());
+        health.addProperty("abortedTransforms", heapGuard.aborts.get());
+        sendQuietly(exchange, new ResultCache.Result(200, GSON.toJson(health).getBytes(StandardCharsets.UTF_8)), null);
+    }
+
+    private void handleMetrics(HttpExchange exchange) {
+        byte[] body = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) { os.write(body); }
+        } catch (IOException e) {
+            System.err.println(name + ": cannot write metrics: " + e.getMessage());
+        }
+    }
+
+    /** 200 once warm-up is done, 503 until then. */
+    private void handleReady(HttpExchange exchange) throws IOException {
+        JsonObject body = new JsonObject();
+        body.addProperty("ready", ready);
+        sendQuietly(exchange, new ResultCache.Result(ready ? 200 : 503,
+                GSON.toJson(body).getBytes(StandardCharsets.UTF_8)), null);
+    }
+
+    private void handleTransform(Route route, HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+            exchange.sendResponseHeaders(405, -1);
+            exchange.close();
+            return;
+        }
+        idle.touch();
+
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        long decodeStart = System.nanoTime();
+        Request req;
+        try {
+            req = new Request(GSON.fromJson(body, JsonObject.class));
+        } catch (IllegalArgumentException e) {
+            // An option out of range, such as too large a trace sample.
+            sendQuietly(exchange, errorResult(400, e), null);
+            return;
+        } catch (Exception e) {
+            sendQuietly(exchange, errorResult(e), null);
+            return;
+        }
+        req.timings.add(Timings.Phase.DECODE, decodeStart);
+
+        String key = route.prefix + '/' + req.requestKey;
+        ResultCache.Result cached = req.trace ? null : results.get(key);
+        if (cached != null) {
+            requests.inc(route.label, mode(req), "cached");
+            sendQuietly(exchange, cached, "cached");
+            return;
+        }
+        if (heapGuard.shed(req)) {
+            requests.inc(route.label, mode(req), "shed");
+            JsonObject error = new JsonObject();
+            error.addProperty("error", LOW_MEMORY);
+            byte[] bytes = GSON.toJson(error).getBytes(StandardCharsets.UTF_8);
+            sendQuietly(exchange, new ResultCache.Result(503, bytes), null);
+            return;
+        }
+        route.inFlight.incrementAndGet();
+        CompletableFuture<ResultCache.Result> done = new CompletableFuture<>();
+        CompletableFuture<ResultCache.Result> other = running.putIfAbsent(key, done);
+        if (other != null) {
+            // No thread waits for the run: the response is written by whoever
+            // completes it.
+            other.whenComplete((result, failure) -> {
+                requests.inc(route.label, mode(req), "coalesced");
+                sendQuietly(exchange, result != null ? result : errorResult(failure), "coalesced");
+                route.inFlight.decrementAndGet();
+            });
+            return;
+        }
+
+        // Set by the Go proxy: "uid:<firebase uid>" or "ip:<address>".
+        String client = exchange.getRequestHeaders().getFirst("X-Client-Key");
+        int bucket = RuntimeHistory.bucket(req.inputBytes);
+        RuntimeHistory.Prediction predicted = route.history.predict(req.costKey, bucket);
+        long queuedAt = System.nanoTime();
+        scheduler.submit(client, predicted.nanos, () -> {
+            ResultCache.Result result;
+            try {
+                result = run(route, req, bucket, predicted, queuedAt);
+            } catch (RuntimeException | Error e) {
+                result = errorResult(e);
+            }
+            // Cached before the in-flight entry goes, so an identical request
+            // arriving in between finds one or the other.
+            if (result.status == 200 && !req.trace && Determinism.isDeterministic(req.xslt)) {
+                results.put(key, result);
+            }
+            running.remove(key, done);
+            sendQuietly(exchange, result, null);
+            route.inFlight.decrementAndGet();
+            done.complete(result);
+        });
+    }
+
+    private ResultCache.Result run(Route route, Request req, int bucket, RuntimeHistory.Prediction predicted, long queuedAt) {
+        req.timings.add(Timings.Phase.QUEUE, queuedAt);
+        FlightEvents.Transform event = new FlightEvents.Transform();
+        event.begin();
+        long startedAt = System.nanoTime();
+        Thread worker = Thread.currentThread();
+        ClassLoader workerLoader = worker.getContextClassLoader();
+        Response resp;
+        try {
+            if (route.loader != null) {
+                worker.setContextClassLoader(route.loader);
+            }
+            heapGuard.started(req);
+            resp = route.engine.transform(req);
+        } catch (Exception e) {
+            JsonObject error = new JsonObject();
+            error.addProperty("error", e.toString());
+            resp = new Response(500, error);
+        } finally {
+            heapGuard.finished(req);
+            worker.setContextClassLoader(workerLoader);
+        }
+        if (req.aborted) {
+            // Whatever the engine made of the failed read or write, the
+            // client should know to retry rather than fix its stylesheet.
+            JsonObject error = new JsonObject();
+            error.addProperty("error", "transform aborted: " + LOW_MEMORY);
+            resp = new Response(503, error);
+        }
+        long ranNanos = System.nanoTime() - startedAt;
+        if (resp.status == 200) {
+            route.history.record(req.costKey, bucket, req.timings);
+        }
+        String outcome = req.aborted ? "aborted" : resp.status == 200 ? "ok" : "error";
+        requests.inc(route.label, mode(req), outcome);
+
+        // Lets the proxy chart prediction error by size bucket and by
+        // whether the estimate came from this stylesheet's own history.
+        JsonObject schedule = new JsonObject();
+        schedule.addProperty("predictedMs", predicted.nanos / 1e6);
+        schedule.addProperty("actualMs", ranNanos / 1e6);
+        schedule.addProperty("queueMs", (startedAt - queuedAt) / 1e6);
+        schedule.addProperty("sizeBucket", RuntimeHistory.bucketLabel(bucket));
+        schedule.addProperty("history", predicted.source.name().toLowerCase(Locale.ROOT));
+        resp.body.add("schedule", schedule);
+        long encodeStart = req.timings.mark();
+        String json = GSON.toJson(resp.body);
+        req.timings.add(Timings.Phase.SERIALIZE, encodeStart);
+        req.timings.commitEvents(route.label, req.stylesheetHash, req.inputBytes, outcome);
+        if (event.shouldCommit()) {
+            event.engine = route.label;
+            event.stylesheet = req.stylesheetHash;
+            event.inputSize = req.inputBytes;
+            event.outcome = outcome;
+            event.queueWait = req.timings.get(Timings.Phase.QUEUE);
+            event.commit();
+        }
+
+        queueWait.observe(req.timings.get(Timings.Phase.QUEUE) / 1e9, route.label);
+        for (Timings.Phase phase : Timings.Phase.values()) {
+            long nanos = req.timings.get(phase);
+            // A phase an engine does not have, or folds into another
+            // (XSLTC parses inside TRANSFORM), is not observed as zero.
+            // The queue wait has its own histogram.
+            if (nanos > 0 && phase != Timings.Phase.QUEUE) {
+                phases.observe(nanos / 1e9, route.label, phase.name().toLowerCase(Locale.ROOT));
+            }
+        }
+        // Appended to the encoded body, so that encoding it is part of what
+        // the timings report. A cached or coalesced copy carries the timings
+        // of the run that produced it.
+        json = json.substring(0, json.length() - 1) + ",\"timings\":" + GSON.toJson(req.timings.toJson()) + "}";
+        return new ResultCache.Result(resp.status, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String mode(Request req) {
+        return req.trace ? "trace" : "plain";
+    }
+
+    private static ResultCache.Result errorResult(Throwable t) {
+        return errorResult(500, t);
+    }
+
+    private static ResultCache.Result errorResult(int status, Throwable t) {
+        JsonObject error = new JsonObject();
+        error.addProperty("error", String.valueOf(t));
+        return new ResultCache.Result(status, GSON.toJson(error).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void sendQuietly(HttpExchange exchange, ResultCache.Result result, String reuse) {
+        try {
+            if (reuse != null) {
+                exchange.getResponseHeaders().set("X-Transform-Reuse", reuse);
+            }
+            if (result.status == 503) {
+                exchange.getResponseHeaders().set("Retry-After", "5");
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(result.status, result.body.length);
+            try (OutputStream os = exchange.getResponseBody()) { os.write(result.body); }
+        } catch (IOException e) {
+            System.err.println(name + ": cannot write response: " + e.getMessage());
+        }
+    }
+
+    private static Map<String, String> jsonObjectToMap(JsonObject req, String key) {
+        Map<String, String> result = new LinkedHashMap<>();
+        if (req.has(key) && req.get(key).isJsonObject()) {
+            for (Map.Entry<String, JsonElement> e : req.getAsJsonObject(key).entrySet()) {
+                result.put(e.getKey(), e.getValue().getAsString());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Digest of stylesheet, source, trace flag, watch and sampling, and both
+     * parameter maps. Each field is length-prefixed so values cannot run
+     * into each other, and parameters are taken in name order so their JSON
+     * order does not matter.
+     */
+    private static String requestKey(Request req) {
+        MessageDigest md = sha256Digest();
+        update(md, req.xslt);
+        update(md, req.source);
+        md.update((byte) (req.trace ? 1 : 0));
+        update(md, req.watch != null ? req.watch.key() : "");
+        update(md, req.sampling != null ? req.sampling.key() : "");
+        for (Map<String, String> params : List.of(req.parameters, req.fileParameters)) {
+            update(md, params.size());
+            for (Map.Entry<String, String> e : new TreeMap<>(params).entrySet()) {
+                update(md, e.getKey());
+                update(md, e.getValue());
+            }
+        }
+        return hex(md.digest());
+    }
+
+    private static void update(MessageDigest md, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        update(md, bytes.length);
+        md.update(bytes);
+    }
+
+    private static void update(MessageDigest md, int n) {
+        md.update(new byte[] {(byte) (n >>> 24), (byte) (n >>> 16), (byte) (n >>> 8), (byte) n});
+    }
+
+    static String sha256(String text) {
+        return hex(sha256Digest().digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static MessageDigest sha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** First 16 bytes as hex: plenty to tell stylesheets and requests apart. */
+    private static String hex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(32);
+        for (int i = 0; i < 16; i++) {
+            sb.append(String.format("%02x", digest[i]));
+        }
+        return sb.toString();
+    }
+
+    static long longProperty(String key, long defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.xsltplayground.server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs a corpus of real stylesheets through an engine before it takes
+ * traffic, so the parser, pattern matching, serializer and CustomFunctions
+ * are JIT-compiled rather than interpreted for the first users after a
+ * deploy. The corpus is the frontend's template gallery, exported by
+ * scripts/export_warmup_corpus.mjs.
+ *
+ * Passes repeat until the JIT has settled — total compilation time grew by
+ * less than {@code xslt.warmup.settleMs} over two consecutive passes — or
+ * {@code xslt.warmup.iterations} passes or {@code xslt.warmup.maxSeconds}
+ * have gone by. Each pass tags the stylesheets with a comment so the compile
+ * path is exercised every time instead of hitting the engine's cache.
+ * Warm-up calls the engine directly: it neither queues, nor teaches
+ * {@link RuntimeHistory}, nor fills the result cache.
+ *
+ * The same corpus is the training run for the AppCDS archives start.sh
+ * builds ({@code -Dxslt.train=true}, see {@link #replay}).
+ */
+final class Warmup {
+
+    private static final Gson GSON = new Gson();
+
+    private final List<JsonObject> corpus;
+    private final int iterations = (int) TransformServer.longProperty("xslt.warmup.iterations", 40);
+    private final long settleMs = TransformServer.longProperty("xslt.warmup.settleMs", 20);
+    private final long maxNanos = TransformServer.longProperty("xslt.warmup.maxSeconds", 60) * 1_000_000_000L;
+
+    private Warmup(List<JsonObject> corpus) {
+        this.corpus = corpus;
+    }
+
+    /**
+     * Loads the corpus from {@code -Dxslt.warmup.corpus} (default
+     * /opt/warmup/corpus.json). A missing file means no warm-up: the engine
+     * is ready as soon as it is up, as it was before there was a corpus.
+     */
+    static Warmup load() {
+        Path path = Path.of(System.getProperty("xslt.warmup.corpus", "/opt/warmup/corpus.json"));
+        try {
+            JsonArray entries = GSON.fromJson(Files.readString(path, StandardCharsets.UTF_8), JsonArray.class);
+            List<JsonObject> corpus = new ArrayList<>();
+            for (JsonElement e : entries) {
+                corpus.add(e.getAsJsonObject());
+            }
+            return new Warmup(corpus);
+        } catch (NoSuchFileException e) {
+            System.out.println("warm-up corpus " + path + " not found, skipping warm-up");
+        } catch (IOException | RuntimeException e) {
+            System.err.println("cannot read warm-up corpus " + path + ": " + e);
+        }
+        return new Warmup(List.of());
+    }
+
+    /**
+     * Warms one engine with the corpus entries for the given XSLT versions.
+     * Failures are logged and otherwise ignored: a broken corpus entry must
+     * not keep the engine from becoming ready.
+     */
+    void run(String name, TransformServer.Engine engine, ClassLoader loader, String[] versions) {
+        List<JsonObject> entries = entries(versions);
+        if (entries.isEmpty()) {
+            return;
+        }
+        if ("runtime".equals(System.getProperty("org.graalvm.nativeimage.imagecode"))) {
+            // Compiled ahead of time: there is no JIT to warm up.
+            System.out.println(name + ": native image, no warm-up needed");
+            return;
+        }
+
+        CompilationMXBean jit = ManagementFactory.getCompilationMXBean();
+        boolean measurable = jit != null && jit.isCompilationTimeMonitoringSupported();
+        Thread thread = Thread.currentThread();
+        ClassLoader previous = thread.getContextClassLoader();
+        if (loader != null) {
+            thread.setContextClassLoader(loader);
+        }
+        long started = System.nanoTime();
+        int pass = 0;
+        int failures = 0;
+        int settled = 0;
+        try {
+            long jitBefore = measurable ? jit.getTotalCompilationTime() : 0;
+            while (pass < iterations && System.nanoTime() - started < maxNanos && settled < 2) {
+                for (JsonObject entry : entries) {
+                    JsonObject json = entry.deepCopy();
+                    json.addProperty("xslt", json.get("xslt").getAsString() + "<!-- warm-up " + pass + " -->");
+                    try {
+                        TransformServer.Response resp = engine.transform(new TransformServer.Request(json));
+                        if (resp.status != 200) {
+                            failures++;
+                        }
+                    } catch (Exception e) {
+                        failures++;
+                    }
+                }
+                pass++;
+                if (measurable) {
+                    long jitNow = jit.getTotalCompilationTime();
+                    settled = jitNow - jitBefore < settleMs ? settled + 1 : 0;
+                    jitBefore = jitNow;
+                }
+            }
+        } finally {
+            thread.setContextClassLoader(previous);
+        }
+        System.out.println(name + ": warm-up ran " + pass + " passes of " + entries.size() + " stylesheets in "
+                + (System.nanoTime() - started) / 1_000_000 + "ms" + (settled >= 2 ? " (JIT settled)" : "")
+                + (failures > 0 ? ", " + failures + " failed" : ""));
+    }
+
+    /**
+     * Sends every corpus entry for the given versions once through the
+     * server's own listener, then polls /health and /ready. Run in training
+     * mode after {@link #run}: the direct calls load the engine, these load
+     * the HTTP, JSON and scheduling path a real request takes, so the AppCDS
+     * archive dumped at exit has both.
+     */
+    void replay(String baseUrl, String[] versions) {
+        int failures = 0;
+        for (JsonObject entry : entries(versions)) {
+            if (request(baseUrl + "/transform", GSON.toJson(entry)) != 200) {
+                failures++;
+            }
+        }
+        request(baseUrl + "/health", null);
+        request(baseUrl + "/ready", null);
+        if (failures > 0) {
+            System.err.println(baseUrl + ": " + failures + " training requests failed");
+        }
+    }
+
+    private List<JsonObject> entries(String[] versions) {
+        List<JsonObject> entries = new ArrayList<>();
+        for (JsonObject entry : corpus) {
+            if (entry.has("version") && Arrays.asList(versions).contains(entry.get("version").getAsString())) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /** GET, or POST when there is a body; returns the status, or -1 if the request failed. */
+    private static int request(String url, String body) {
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+            if (body != null) {
+                conn.setRequestMethod("POST");
+                conn.setDoOutput(true);
+                conn.setRequestProperty("Content-Type", "application/json");
+                try (OutputStream out = conn.getOutputStream()) {
+                    out.write(body.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            int status = conn.getResponseCode();
+            try (InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+                if (in != null) {
+                    in.readAllBytes();
+                }
+            }
+            return status;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package main
+
+import (
+	"io"
+	"log"
+	"net/http"
+	"net/url"
+	"strings"
+	"sync"
+	"time"
+)
+
+// The XSLT daemons listen on localhost only, so Prometheus cannot scrape
+// their own /metrics. /metrics/daemons on the metrics port fetches every
+// daemon process's /metrics and serves them as one exposition, each sample
+// labelled with the daemon (host:port) it came from. EngineHost serves all
+// engines from one process and one /metrics, so daemons are told apart by
+// host:port, not by engine.
+
+// daemonMetricsHandler serves the merged daemon metrics, plus
+// xslt_daemon_metrics_up saying which daemons answered.
+func daemonMetricsHandler(pools []*daemonPool) http.HandlerFunc {
+	client := &http.Client{Timeout: 5 * time.Second}
+	return func(w http.ResponseWriter, r *http.Request) {
+		daemons, urls := daemonMetricsURLs(pools)
+		bodies := make([]string, len(urls))
+		var wg sync.WaitGroup
+		for i := range urls {
+			wg.Add(1)
+			go func(i int) {
+				defer wg.Done()
+				bodies[i] = fetchDaemonMetrics(client, urls[i])
+			}(i)
+		}
+		wg.Wait()
+		w.Header().Set("Content-Type", "text/plain; version=0.0.4; charset=utf-8")
+		io.WriteString(w, mergeDaemonMetrics(daemons, bodies))
+	}
+}
+
+// daemonMetricsURLs lists each daemon process once: its host:port and the
+// URL of its /metrics, which is at the root even when the engines are
+// served under a path (EngineHost).
+func daemonMetricsURLs(pools []*daemonPool) (daemons, urls []string) {
+	seen := make(map[string]bool)
+	for _, p := range pools {
+		for _, d := range p.instances {
+			u, err := url.Parse(d.baseURL)
+			if err != nil || seen[u.Host] {
+				continue
+			}
+			seen[u.Host] = true
+			daemons = append(daemons, u.Host)
+			urls = append(urls, u.Scheme+"://"+u.Host+"/metrics")
+		}
+	}
+	return daemons, urls
+}
+
+// fetchDaemonMetrics returns the daemon's exposition, or "" if it did not
+// answer with one.
+func fetchDaemonMetrics(client *http.Client, metricsURL string) string {
+	resp, err := client.Get(metricsURL)
+	if err != nil {
+		log.Printf("daemon metrics %s: %v", metricsURL, err)
+		return ""
+	}
+	defer resp.Body.Close()
+	body, err := io.ReadAll(resp.Body)
+	if err != nil || resp.StatusCode != http.StatusOK {
+		log.Printf("daemon metrics %s: status %d, %v", metricsURL, resp.StatusCode, err)
+		return ""
+	}
+	return string(body)
+}
+
+type metricFamily struct {
+	header     []string // HELP and TYPE lines
+	headerFrom int      // the daemon they were taken from: the first with the family
+	samples    []string
+}
+
+// mergeDaemonMetrics combines the daemons' expositions (bodies[i] from
+// daemons[i], "" for one that did not answer) into one. A family appears
+// once, with its HELP and TYPE lines and then every daemon's samples, each
+// given a daemon label. It relies on each exposition keeping a family's
+// samples together under its HELP and TYPE lines, as the daemons' writer
+// does (Metrics.java).
+func mergeDaemonMetrics(daemons, bodies []string) string {
+	families := make(map[string]*metricFamily)
+	var order []string
+	for i, body := range bodies {
+		var current *metricFamily
+		for _, line := range strings.Split(body, "\n") {
+			if line == "" {
+				continue
+			}
+			if strings.HasPrefix(line, "#") {
+				// "# HELP name text" or "# TYPE name type"; other comments
+				// carry nothing to keep.
+				fields := strings.SplitN(line, " ", 4)
+				if len(fields) < 3 || (fields[1] != "HELP" && fields[1] != "TYPE") {
+					continue
+				}
+				name := fields[2]
+				f, ok := families[name]
+				if !ok {
+					f = &metricFamily{headerFrom: i}
+					families[name] = f
+					order = append(order, name)
+				}
+				if f.headerFrom == i {
+					f.header = append(f.header, line)
+				}
+				current = f
+				continue
+			}
+			if current != nil {
+				current.samples = append(current.samples, withLabel(line, "daemon", daemons[i]))
+			}
+		}
+	}
+
+	var out strings.Builder
+	for _, name := range order {
+		f := families[name]
+		for _, l := range f.header {
+			out.WriteString(l)
+			out.WriteByte('\n')
+		}
+		for _, l := range f.samples {
+			out.WriteString(l)
+			out.WriteByte('\n')
+		}
+	}
+	out.WriteString("# HELP xslt_daemon_metrics_up Whether the daemon answered this scrape of /metrics/daemons.\n")
+	out.WriteString("# TYPE xslt_daemon_metrics_up gauge\n")
+	for i, d := range daemons {
+		up := "0"
+		if bodies[i] != "" {
+			up = "1"
+		}
+		out.WriteString(withLabel("xslt_daemon_metrics_up "+up, "daemon", d))
+		out.WriteByte('\n')
+	}
+	return out.String()
+}
+
+var labelValueEscaper = strings.NewReplacer(`\`, `\\`, `"`, `\"`, "\n", `\n`)
+
+// withLabel adds name="value" to a sample line, as its first label.
+func withLabel(sample, name, value string) string {
+	label := name + `="` + labelValueEscaper.Replace(value) + `"`
+	end := strings.IndexAny(sample, "{ ")
+	if end < 0 {
+		return sample
+	}
+	if sample[end] == '{' {
+		if strings.HasPrefix(sample[end:], "{}") {
+			return sample[:end+1] + label + sample[end+1:]
+		}
+		return sample[:end+1] + label + "," + sample[end+1:]
+	}
+	return sample[:end] + "{" + label + "}" + sample[end:]
+}
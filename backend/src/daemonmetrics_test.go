@@ -0,0 +1,50 @@
+package main
+
+import (
+	"strings"
+	"testing"
+)
+
+func TestMergeDaemonMetricsLabelsSamplesAndKeepsOneHeader(t *testing.T) {
+	body := `# HELP xslt_engine_queue_depth Transforms waiting for a worker.
+# TYPE xslt_engine_queue_depth gauge
+xslt_engine_queue_depth 2
+# HELP xslt_engine_requests_total Transform requests answered.
+# TYPE xslt_engine_requests_total counter
+xslt_engine_requests_total{engine="SaxonDaemon",mode="plain",outcome="ok"} 7
+`
+	got := mergeDaemonMetrics(
+		[]string{"127.0.0.1:8081", "127.0.0.1:8082", "127.0.0.1:8083"},
+		[]string{body, strings.ReplaceAll(body, "SaxonDaemon", "XalanDaemon"), ""})
+
+	want := `# HELP xslt_engine_queue_depth Transforms waiting for a worker.
+# TYPE xslt_engine_queue_depth gauge
+xslt_engine_queue_depth{daemon="127.0.0.1:8081"} 2
+xslt_engine_queue_depth{daemon="127.0.0.1:8082"} 2
+# HELP xslt_engine_requests_total Transform requests answered.
+# TYPE xslt_engine_requests_total counter
+xslt_engine_requests_total{daemon="127.0.0.1:8081",engine="SaxonDaemon",mode="plain",outcome="ok"} 7
+xslt_engine_requests_total{daemon="127.0.0.1:8082",engine="XalanDaemon",mode="plain",outcome="ok"} 7
+# HELP xslt_daemon_metrics_up Whether the daemon answered this scrape of /metrics/daemons.
+# TYPE xslt_daemon_metrics_up gauge
+xslt_daemon_metrics_up{daemon="127.0.0.1:8081"} 1
+xslt_daemon_metrics_up{daemon="127.0.0.1:8082"} 1
+xslt_daemon_metrics_up{daemon="127.0.0.1:8083"} 0
+`
+	if got != want {
+		t.Fatalf("merged exposition:\n%s\nwant:\n%s", got, want)
+	}
+}
+
+func TestDaemonMetricsURLsScrapesEngineHostOnce(t *testing.T) {
+	pools := []*daemonPool{
+		newDaemonPool("saxon12", []string{"http://127.0.0.1:8090/saxon12"}),
+		newDaemonPool("xalan", []string{"http://127.0.0.1:8090/xalan"}),
+		newDaemonPool("saxon9", []string{"http://127.0.0.1:8083"}),
+	}
+	daemons, urls := daemonMetricsURLs(pools)
+	if strings.Join(daemons, " ") != "127.0.0.1:8090 127.0.0.1:8083" ||
+		strings.Join(urls, " ") != "http://127.0.0.1:8090/metrics http://127.0.0.1:8083/metrics" {
+		t.Fatalf("got daemons %v, urls %v", daemons, urls)
+	}
+}
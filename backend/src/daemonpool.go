@@ -0,0 +1,262 @@
+package main
+
+import (
+	"encoding/json"
+	"hash/fnv"
+	"log"
+	"net/http"
+	"net/url"
+	"os"
+	"strings"
+	"sync/atomic"
+	"time"
+
+	"github.com/gin-gonic/gin"
+	"github.com/prometheus/client_golang/prometheus"
+)
+
+// Each XSLT engine can run as several daemon JVMs (see start.sh), each with a
+// smaller heap so its GC pauses stay short. A daemonPool holds one engine's
+// instances and picks one per request.
+//
+// Routing is the two-choice scheme with stylesheet affinity: rendezvous
+// hashing ranks the instances for each stylesheet, the top two are its
+// candidates, and the less loaded of those gets the request. A stylesheet
+// therefore lands on one of only two JVMs and their compiled-stylesheet
+// caches stay hot, while a hot stylesheet still spreads over two instances
+// and never piles onto one that is busy.
+
+// affinitySlack is how much busier (in requests) the preferred instance may be
+// than the second choice before the request goes to the second. A little
+// slack keeps a stylesheet on one cache under light, noisy load.
+const affinitySlack = 1
+
+type daemonInstance struct {
+	baseURL string
+	label   string // host:port, for metric labels
+	seed    uint64 // rendezvous hashing seed
+
+	// pending is what this proxy has sent and not had back yet: always up to
+	// date, unlike the polled numbers below.
+	pending atomic.Int64
+
+	healthy          atomic.Bool
+	reportedInFlight atomic.Int64
+
+	// polled is set once a poll has found the instance up and warmed: until
+	// then healthy is only an assumption, not something to report as ready.
+	polled atomic.Bool
+
+	// The heap-guard counts the instance last reported, so each poll can add
+	// what happened since to daemonHeapGuardTotal. Only poll touches them.
+	shedSeen, flushesSeen, abortsSeen int64
+}
+
+// load is the instance's outstanding work: whatever this proxy has sent it,
+// or what it last reported if that is more (requests from before a proxy
+// restart, warm-up work).
+func (d *daemonInstance) load() int64 {
+	pending := d.pending.Load()
+	if reported := d.reportedInFlight.Load(); reported > pending {
+		return reported
+	}
+	return pending
+}
+
+type daemonPool struct {
+	engine    string
+	instances []*daemonInstance
+}
+
+func newDaemonPool(engine string, baseURLs []string) *daemonPool {
+	p := &daemonPool{engine: engine}
+	for _, u := range baseURLs {
+		d := &daemonInstance{baseURL: strings.TrimRight(u, "/"), label: u}
+		if parsed, err := url.Parse(u); err == nil && parsed.Host != "" {
+			d.label = parsed.Host
+		}
+		d.seed = hashString(d.baseURL)
+		// Assume up until the first poll says otherwise, so requests arriving
+		// right after start are not refused.
+		d.healthy.Store(true)
+		p.instances = append(p.instances, d)
+	}
+	return p
+}
+
+// daemonURLs reads a comma-separated list of daemon base URLs from env,
+// falling back to the single local instance start.sh always runs.
+func daemonURLs(env, fallback string) []string {
+	var urls []string
+	for _, u := range strings.Split(os.Getenv(env), ",") {
+		if u = strings.TrimSpace(u); u != "" {
+			urls = append(urls, u)
+		}
+	}
+	if len(urls) == 0 {
+		urls = []string{fallback}
+	}
+	return urls
+}
+
+// pick returns the instance for a request running this stylesheet, and
+// whether it was the stylesheet's preferred one.
+func (p *daemonPool) pick(xslt string) (*daemonInstance, bool) {
+	candidates := p.instances
+	healthy := make([]*daemonInstance, 0, len(candidates))
+	for _, d := range candidates {
+		if d.healthy.Load() {
+			healthy = append(healthy, d)
+		}
+	}
+	// With nothing healthy, try anyway: the poll may be stale, and failing
+	// the request is all that is left otherwise.
+	if len(healthy) > 0 {
+		candidates = healthy
+	}
+	if len(candidates) == 1 {
+		return candidates[0], true
+	}
+
+	key := hashString(xslt)
+	var first, second *daemonInstance
+	var firstScore, secondScore uint64
+	for _, d := range candidates {
+		score := mix64(key ^ d.seed)
+		switch {
+		case first == nil || score > firstScore:
+			second, secondScore = first, firstScore
+			first, firstScore = d, score
+		case second == nil || score > secondScore:
+			second, secondScore = d, score
+		}
+	}
+	if first.load() > second.load()+affinitySlack {
+		return second, false
+	}
+	return first, true
+}
+
+type daemonHealth struct {
+	Ready      bool  `json:"ready"`
+	QueueDepth int64 `json:"queueDepth"`
+	InFlight   int64 `json:"inFlight"`
+	HeapUsed   int64 `json:"heapUsed"`
+	HeapMax    int64 `json:"heapMax"`
+	// RSS is the daemon process's resident memory; -1 when it cannot tell.
+	RSS int64 `json:"rssBytes"`
+	// Heap-guard decisions since the daemon started (see HeapGuard.java).
+	ShedRequests      int64 `json:"shedRequests"`
+	CacheFlushes      int64 `json:"cacheFlushes"`
+	AbortedTransforms int64 `json:"abortedTransforms"`
+}
+
+// poll refreshes every instance's health and exports it. An instance that is
+// up but still running its JIT warm-up counts as unhealthy, so requests go to
+// warmed instances while there are any.
+func (p *daemonPool) poll(client *http.Client) {
+	for _, d := range p.instances {
+		var h daemonHealth
+		ok := false
+		if resp, err := client.Get(d.baseURL + "/health"); err == nil {
+			ok = resp.StatusCode == http.StatusOK && json.NewDecoder(resp.Body).Decode(&h) == nil && h.Ready
+			resp.Body.Close()
+		}
+		if ok {
+			d.polled.Store(true)
+		}
+		wasHealthy := d.healthy.Swap(ok)
+		if wasHealthy != ok {
+			log.Printf("daemon %s %s healthy=%v", p.engine, d.label, ok)
+		}
+		up := 0.0
+		if ok {
+			up = 1
+			d.reportedInFlight.Store(h.InFlight)
+			daemonQueueDepth.WithLabelValues(p.engine, d.label).Set(float64(h.QueueDepth))
+			daemonInFlight.WithLabelValues(p.engine, d.label).Set(float64(h.InFlight))
+			daemonHeapUsed.WithLabelValues(p.engine, d.label).Set(float64(h.HeapUsed))
+			daemonHeapMax.WithLabelValues(p.engine, d.label).Set(float64(h.HeapMax))
+			if h.RSS > 0 {
+				daemonRSS.WithLabelValues(p.engine, d.label).Set(float64(h.RSS))
+			}
+			addReported(daemonHeapGuardTotal.WithLabelValues(p.engine, d.label, "shed"), &d.shedSeen, h.ShedRequests)
+			addReported(daemonHeapGuardTotal.WithLabelValues(p.engine, d.label, "flush"), &d.flushesSeen, h.CacheFlushes)
+			addReported(daemonHeapGuardTotal.WithLabelValues(p.engine, d.label, "abort"), &d.abortsSeen, h.AbortedTransforms)
+		}
+		daemonUp.WithLabelValues(p.engine, d.label).Set(up)
+	}
+}
+
+// addReported adds to counter how much a count the daemon reports has grown
+// since it was last seen. A count that went down belongs to a restarted
+// daemon, so all of it is new.
+func addReported(counter prometheus.Counter, seen *int64, now int64) {
+	delta := now - *seen
+	if delta < 0 {
+		delta = now
+	}
+	if delta > 0 {
+		counter.Add(float64(delta))
+	}
+	*seen = now
+}
+
+// ready reports whether at least one instance has been polled and found
+// warmed up.
+func (p *daemonPool) ready() bool {
+	for _, d := range p.instances {
+		if d.polled.Load() && d.healthy.Load() {
+			return true
+		}
+	}
+	return false
+}
+
+// readyHandler answers 200 once every engine has a warmed-up instance and 503
+// until then, for the Kubernetes readiness probe. The proxy itself is up
+// long before that; "/" is its liveness check.
+func readyHandler(pools []*daemonPool) gin.HandlerFunc {
+	return func(c *gin.Context) {
+		engines := gin.H{}
+		ready := true
+		for _, p := range pools {
+			engines[p.engine] = p.ready()
+			ready = ready && p.ready()
+		}
+		status := http.StatusOK
+		if !ready {
+			status = http.StatusServiceUnavailable
+		}
+		c.JSON(status, gin.H{"ready": ready, "engines": engines})
+	}
+}
+
+func startHealthPoller(pools []*daemonPool, interval time.Duration) {
+	client := &http.Client{Timeout: interval}
+	go func() {
+		for {
+			for _, p := range pools {
+				p.poll(client)
+			}
+			time.Sleep(interval)
+		}
+	}()
+}
+
+func hashString(s string) uint64 {
+	h := fnv.New64a()
+	h.Write([]byte(s))
+	return h.Sum64()
+}
+
+// mix64 is the splitmix64 finalizer. FNV alone leaves nearby inputs with
+// nearby hashes, which would make the rendezvous ranking lopsided.
+func mix64(x uint64) uint64 {
+	x ^= x >> 30
+	x *= 0xbf58476d1ce4e5b9
+	x ^= x >> 27
+	x *= 0x94d049bb133111eb
+	x ^= x >> 31
+	return x
+}
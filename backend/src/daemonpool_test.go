@@ -0,0 +1,182 @@
+package main
+
+import (
+	"fmt"
+	"net/http"
+	"net/http/httptest"
+	"sync/atomic"
+	"testing"
+	"time"
+
+	"github.com/gin-gonic/gin"
+	"github.com/prometheus/client_golang/prometheus/testutil"
+)
+
+func testPool(n int) *daemonPool {
+	urls := make([]string, n)
+	for i := range urls {
+		urls[i] = fmt.Sprintf("http://127.0.0.1:%d", 8081+100*i)
+	}
+	return newDaemonPool("saxon12", urls)
+}
+
+func TestDaemonURLsFallsBackToSingleInstance(t *testing.T) {
+	t.Setenv("DAEMON_URLS_TEST", "")
+	if got := daemonURLs("DAEMON_URLS_TEST", "http://127.0.0.1:8081"); len(got) != 1 || got[0] != "http://127.0.0.1:8081" {
+		t.Fatalf("daemonURLs = %v, want the fallback only", got)
+	}
+	t.Setenv("DAEMON_URLS_TEST", " http://127.0.0.1:8081, ,http://127.0.0.1:8181 ")
+	if got := daemonURLs("DAEMON_URLS_TEST", "unused"); len(got) != 2 || got[1] != "http://127.0.0.1:8181" {
+		t.Fatalf("daemonURLs = %v, want two trimmed URLs", got)
+	}
+}
+
+func TestPickIsStablePerStylesheet(t *testing.T) {
+	p := testPool(4)
+	first, preferred := p.pick("<xsl:stylesheet a/>")
+	if !preferred {
+		t.Fatal("an idle pool should always route to the preferred instance")
+	}
+	for i := 0; i < 10; i++ {
+		if d, _ := p.pick("<xsl:stylesheet a/>"); d != first {
+			t.Fatalf("same stylesheet routed to %s, then %s", first.label, d.label)
+		}
+	}
+
+	// Different stylesheets should not all prefer the same instance.
+	seen := map[*daemonInstance]bool{}
+	for i := 0; i < 64; i++ {
+		d, _ := p.pick(fmt.Sprintf("<xsl:stylesheet n=%q/>", i))
+		seen[d] = true
+	}
+	if len(seen) < 3 {
+		t.Fatalf("64 stylesheets spread over only %d of 4 instances", len(seen))
+	}
+}
+
+func TestPickSpillsToSecondChoiceWhenPreferredIsBusy(t *testing.T) {
+	p := testPool(4)
+	xslt := "<xsl:stylesheet busy/>"
+	preferredInstance, _ := p.pick(xslt)
+	preferredInstance.pending.Add(affinitySlack)
+	if d, ok := p.pick(xslt); d != preferredInstance || !ok {
+		t.Fatal("load within the affinity slack should not move the stylesheet")
+	}
+	preferredInstance.pending.Add(1)
+	second, ok := p.pick(xslt)
+	if ok || second == preferredInstance {
+		t.Fatal("a busy preferred instance should spill to the second choice")
+	}
+	// Only ever the second choice: loading it too brings the request back.
+	second.pending.Add(10)
+	if d, _ := p.pick(xslt); d != preferredInstance {
+		t.Fatalf("expected the preferred instance once the second is busier, got %s", d.label)
+	}
+}
+
+func TestPickSkipsUnhealthyInstances(t *testing.T) {
+	p := testPool(2)
+	xslt := "<xsl:stylesheet/>"
+	preferredInstance, _ := p.pick(xslt)
+	preferredInstance.healthy.Store(false)
+	if d, _ := p.pick(xslt); d == preferredInstance {
+		t.Fatal("an unhealthy instance should not be picked while another is up")
+	}
+	for _, d := range p.instances {
+		d.healthy.Store(false)
+	}
+	if d, _ := p.pick(xslt); d == nil {
+		t.Fatal("with every instance down, pick should still return one")
+	}
+}
+
+func TestPollReadsDaemonHealth(t *testing.T) {
+	srv := httptest.NewServer(http.HandlerFunc(func(w http.ResponseWriter, r *http.Request) {
+		if r.URL.Path != "/health" {
+			http.NotFound(w, r)
+			return
+		}
+		w.Write([]byte(`{"status":"ok","ready":true,"queueDepth":3,"inFlight":5,"heapUsed":10,"heapMax":20,"rssBytes":30}`))
+	}))
+	defer srv.Close()
+
+	p := newDaemonPool("xalan", []string{srv.URL, "http://127.0.0.1:1"})
+	p.poll(&http.Client{Timeout: time.Second})
+	up, down := p.instances[0], p.instances[1]
+	if !up.healthy.Load() || up.reportedInFlight.Load() != 5 || up.load() != 5 {
+		t.Fatalf("expected a healthy instance reporting 5 in flight, got healthy=%v load=%d", up.healthy.Load(), up.load())
+	}
+	if down.healthy.Load() {
+		t.Fatal("an instance that does not answer should be marked unhealthy")
+	}
+	if rss := testutil.ToFloat64(daemonRSS.WithLabelValues("xalan", up.label)); rss != 30 {
+		t.Fatalf("expected the instance's RSS to be exported, got %v", rss)
+	}
+}
+
+func TestPollAddsHeapGuardCountsSinceLastPoll(t *testing.T) {
+	var shed atomic.Int64
+	srv := httptest.NewServer(http.HandlerFunc(func(w http.ResponseWriter, r *http.Request) {
+		fmt.Fprintf(w, `{"status":"ok","ready":true,"shedRequests":%d,"cacheFlushes":1}`, shed.Load())
+	}))
+	defer srv.Close()
+
+	p := newDaemonPool("saxon9", []string{srv.URL})
+	d := p.instances[0]
+	counter := daemonHeapGuardTotal.WithLabelValues("saxon9", d.label, "shed")
+	client := &http.Client{Timeout: time.Second}
+	for _, step := range []struct {
+		reported int64
+		total    float64
+	}{
+		{3, 3},
+		{3, 3}, // unchanged: nothing new
+		{5, 5},
+		{2, 7}, // restarted daemon: its whole count is new
+	} {
+		shed.Store(step.reported)
+		p.poll(client)
+		if got := testutil.ToFloat64(counter); got != step.total {
+			t.Fatalf("after the daemon reported %d shed requests, expected the counter at %v, got %v",
+				step.reported, step.total, got)
+		}
+	}
+	if got := testutil.ToFloat64(daemonHeapGuardTotal.WithLabelValues("saxon9", d.label, "flush")); got != 1 {
+		t.Fatalf("expected one cache flush counted once, got %v", got)
+	}
+}
+
+func TestPollTreatsWarmingInstanceAsUnhealthy(t *testing.T) {
+	var ready atomic.Bool
+	srv := httptest.NewServer(http.HandlerFunc(func(w http.ResponseWriter, r *http.Request) {
+		fmt.Fprintf(w, `{"status":"ok","ready":%v,"queueDepth":0,"inFlight":0}`, ready.Load())
+	}))
+	defer srv.Close()
+
+	p := newDaemonPool("saxon12", []string{srv.URL})
+	pools := []*daemonPool{p}
+	gin.SetMode(gin.TestMode)
+	router := gin.New()
+	router.GET("/ready", readyHandler(pools))
+	probe := func() int {
+		rec := httptest.NewRecorder()
+		router.ServeHTTP(rec, httptest.NewRequest(http.MethodGet, "/ready", nil))
+		return rec.Code
+	}
+
+	if code := probe(); code != http.StatusServiceUnavailable {
+		t.Fatalf("/ready before any poll = %d, want 503", code)
+	}
+	p.poll(&http.Client{Timeout: time.Second})
+	if p.instances[0].healthy.Load() || probe() != http.StatusServiceUnavailable {
+		t.Fatal("an instance still warming up should be neither healthy nor ready")
+	}
+	ready.Store(true)
+	p.poll(&http.Client{Timeout: time.Second})
+	if !p.instances[0].healthy.Load() {
+		t.Fatal("a warmed-up instance should be healthy")
+	}
+	if code := probe(); code != http.StatusOK {
+		t.Fatalf("/ready after warm-up = %d, want 200", code)
+	}
+}
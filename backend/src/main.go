@@ -6,6 +6,7 @@ import (
 	"context"
 	"encoding/base64"
 	"encoding/json"
+	"fmt"
 	"html"
 	"io"
 	"log"
@@ -30,31 +31,80 @@ type TransformRequest struct {
 	Version    string            `json:"version"`
 	Parameters map[string]string `json:"parameters"`
 	Trace      bool              `json:"trace"`
+	Watch      *TraceWatch       `json:"watch,omitempty"`
+	Sample     *TraceSample      `json:"sample,omitempty"`
 }
 
-// Hotspot is one construct and how many times it executed, from the Saxon
-// trace. Only produced when tracing is on, since it needs the instrumented
-// compile.
+// TraceWatch narrows a traced run to the variables it names, the variables
+// declared on its lines ("12" or "30-45"), and the variables of the
+// templates it names by match pattern or name. Everything else runs
+// untraced. Without one (or with an empty one) every variable is traced.
+type TraceWatch struct {
+	Variables []string `json:"variables,omitempty"`
+	Lines     []string `json:"lines,omitempty"`
+	Templates []string `json:"templates,omitempty"`
+}
+
+// Hotspot is one construct, how many times it executed and the time spent
+// in it with (inclusive) and without (self) the constructs it called, from
+// the Saxon trace. Only produced when tracing is on, since it needs the
+// instrumented compile.
 type Hotspot struct {
-	Count int    `json:"count"`
-	Kind  string `json:"kind"`
-	Label string `json:"label"`
-	Line  int    `json:"line"`
+	Count       int     `json:"count"`
+	Kind        string  `json:"kind"`
+	Label       string  `json:"label"`
+	Line        int     `json:"line"`
+	InclusiveMs float64 `json:"inclusive_ms,omitempty"`
+	SelfMs      float64 `json:"self_ms,omitempty"`
+}
+
+// ExpressionHotspot is one XPath expression of a traced Saxon run: where it
+// is (element/@attribute, line, and column within the attribute's XPath),
+// Saxon's rendering of it, how often it was evaluated and the total time
+// spent in it, including the expressions nested in it.
+type ExpressionHotspot struct {
+	Count      int     `json:"count"`
+	TotalMs    float64 `json:"total_ms"`
+	Line       int     `json:"line"`
+	Column     int     `json:"column"`
+	Where      string  `json:"where"`
+	Expression string  `json:"expression"`
 }
 
+// TransformResponse.Timings is the daemon's milliseconds per phase
+// ("queueMs", "compileMs", ...), left out for a cached or coalesced result.
 type TransformResponse struct {
-	Result           string            `json:"result"`
-	DurationMs       int64             `json:"duration_ms"`
-	Trace            []TraceEntry      `json:"trace,omitempty"`
-	TraceEngine      string            `json:"trace_engine,omitempty"`
-	Hotspots         []Hotspot         `json:"hotspots,omitempty"`
-	TraceText        string            `json:"trace_text,omitempty"`
-	SecondaryResults map[string]string `json:"secondary_results,omitempty"`
+	Result           string              `json:"result"`
+	DurationMs       int64               `json:"duration_ms"`
+	Trace            []TraceEntry        `json:"trace,omitempty"`
+	TraceEngine      string              `json:"trace_engine,omitempty"`
+	Hotspots         []Hotspot           `json:"hotspots,omitempty"`
+	Expressions      []ExpressionHotspot `json:"expressions,omitempty"`
+	Flame            string              `json:"flame,omitempty"`
+	TraceTruncated   *TraceTruncation    `json:"trace_truncated,omitempty"`
+	TraceText        string              `json:"trace_text,omitempty"`
+	SecondaryResults map[string]string   `json:"secondary_results,omitempty"`
+	Timings          map[string]float64  `json:"timings,omitempty"`
 }
 
+// TraceEntry.Line is the line the variable is declared on, when the daemon
+// knows it. Truncated says the value was cut off at the daemon's per-value
+// limit. Sample, on a sampled run, says which evaluation of the variable the
+// value is from and how it was picked ("#101 (1 in 100)").
 type TraceEntry struct {
-	Name  string `json:"name"`
-	Value string `json:"value"`
+	Name      string `json:"name"`
+	Line      int    `json:"line,omitempty"`
+	Value     string `json:"value"`
+	Truncated bool   `json:"truncated,omitempty"`
+	Sample    string `json:"sample,omitempty"`
+}
+
+// TraceTruncation is set when a traced run reached the daemon's limit on
+// the trace as a whole: past MaxBytes, Skipped more variables were not
+// captured.
+type TraceTruncation struct {
+	MaxBytes int64 `json:"max_bytes"`
+	Skipped  int   `json:"skipped"`
 }
 
 type AppConfig struct {
@@ -62,6 +112,10 @@ type AppConfig struct {
 	SaxonClasspath      string `json:"saxon_classpath"`
 	DatabaseURL         string `json:"database_url"`
 	FirebaseCredentials string `json:"firebase_credentials"`
+	// TrustedProxies are the addresses or CIDRs (the ingress) whose
+	// X-Forwarded-For is believed. None by default: the client IP is then
+	// the connection's, which a request cannot forge.
+	TrustedProxies []string `json:"trusted_proxies"`
 }
 
 type Transformation struct {
@@ -223,21 +277,81 @@ func containsAny(s string, subs []string) bool {
 	return false
 }
 
-// parseHotspot reads "TRACE_HOT|<count>|<kind>|<label>|<line>".
-func parseHotspot(line string) (Hotspot, bool) {
-	parts := strings.SplitN(line, "|", 5)
-	if len(parts) != 5 {
-		return Hotspot{}, false
+// TraceSample makes a traced run capture one in Every evaluations of each
+// variable, or Random of them picked at random, plus the first and the last.
+// The hotspot counts and timings stay exact.
+type TraceSample struct {
+	Every  int `json:"every,omitempty"`
+	Random int `json:"random,omitempty"`
+}
+
+// maxTraceSampleRandom bounds a random sample: the daemon holds on to every
+// value in it until the run ends, documents and all. TraceSampling.java
+// rejects the same.
+const maxTraceSampleRandom = 500
+
+// validateTraceOptions checks the watch and the sample of a request.
+func validateTraceOptions(req TransformRequest) error {
+	if err := validateTraceWatch(req.Watch); err != nil {
+		return err
 	}
-	count, err := strconv.Atoi(parts[1])
-	if err != nil || count <= 0 {
-		return Hotspot{}, false
+	return validateTraceSample(req.Sample)
+}
+
+func validateTraceSample(s *TraceSample) error {
+	if s == nil {
+		return nil
 	}
-	lineNo, err := strconv.Atoi(parts[4])
-	if err != nil {
-		lineNo = -1
+	if s.Every < 0 || s.Random < 0 || (s.Every > 0 && s.Random > 0) {
+		return fmt.Errorf("invalid trace sample: give either every or random, as a positive number")
+	}
+	if s.Random > maxTraceSampleRandom {
+		return fmt.Errorf("invalid trace sample: random can keep at most %d values", maxTraceSampleRandom)
+	}
+	return nil
+}
+
+// validateTraceWatch rejects line entries the daemon would otherwise ignore,
+// which would leave the user wondering why nothing was traced.
+func validateTraceWatch(w *TraceWatch) error {
+	if w == nil {
+		return nil
+	}
+	for _, entry := range w.Lines {
+		from, to, found := strings.Cut(strings.TrimSpace(entry), "-")
+		if !found {
+			to = from
+		}
+		first, err1 := strconv.Atoi(strings.TrimSpace(from))
+		last, err2 := strconv.Atoi(strings.TrimSpace(to))
+		if err1 != nil || err2 != nil || first <= 0 || first > last {
+			return fmt.Errorf("invalid watch line %q: must be a line number or a range like 30-45", entry)
+		}
 	}
-	return Hotspot{Count: count, Kind: parts[2], Label: parts[3], Line: lineNo}, true
+	return nil
+}
+
+// timingPhases are the daemon's phases in the order a request goes through
+// them; the daemon reports each as "<phase>Ms".
+var timingPhases = []string{"queue", "decode", "compile", "parse", "params", "transform", "serialize"}
+
+// serverTiming builds a Server-Timing header from the daemon's per-phase
+// timings and the proxy's own round trip to it. A reused response (reuse is
+// "cached" or "coalesced") carries the timings of the run that produced it,
+// so only the reuse is reported.
+func serverTiming(timings map[string]float64, reuse string, roundTrip time.Duration) string {
+	var metrics []string
+	if reuse != "" {
+		metrics = append(metrics, "reuse;desc="+strconv.Quote(reuse))
+	} else {
+		for _, phase := range timingPhases {
+			if ms, ok := timings[phase+"Ms"]; ok {
+				metrics = append(metrics, phase+";dur="+strconv.FormatFloat(ms, 'f', -1, 64))
+			}
+		}
+	}
+	metrics = append(metrics, "daemon;dur="+strconv.FormatFloat(float64(roundTrip.Microseconds())/1000, 'f', -1, 64))
+	return strings.Join(metrics, ", ")
 }
 
 func logTransformError(classOverride, version, errMsg string, req TransformRequest, sourceXML, sourceKey string) {
@@ -293,9 +407,25 @@ func loadConfig(filename string) (*AppConfig, error) {
 	if v := os.Getenv("SAXON_CLASSPATH"); v != "" {
 		config.SaxonClasspath = v
 	}
+	if v := os.Getenv("TRUSTED_PROXIES"); v != "" {
+		config.TrustedProxies = nil
+		for _, p := range strings.Split(v, ",") {
+			if p = strings.TrimSpace(p); p != "" {
+				config.TrustedProxies = append(config.TrustedProxies, p)
+			}
+		}
+	}
 	return &config, nil
 }
 
+// verifyBearer checks the request's Firebase ID token. Shared by
+// authMiddleware, which requires one, and clientKey, which only uses it when
+// present.
+func verifyBearer(c *gin.Context, client *auth.Client) (*auth.Token, error) {
+	tokenStr := strings.TrimPrefix(c.GetHeader("Authorization"), "Bearer ")
+	return client.VerifyIDToken(c, tokenStr)
+}
+
 func authMiddleware(client *auth.Client) gin.HandlerFunc {
 	return func(c *gin.Context) {
 		header := c.GetHeader("Authorization")
@@ -303,8 +433,7 @@ func authMiddleware(client *auth.Client) gin.HandlerFunc {
 			c.AbortWithStatusJSON(http.StatusUnauthorized, gin.H{"error": "missing authorization"})
 			return
 		}
-		tokenStr := strings.TrimPrefix(header, "Bearer ")
-		tok, err := client.VerifyIDToken(c, tokenStr)
+		tok, err := verifyBearer(c, client)
 		if err != nil {
 			c.AbortWithStatusJSON(http.StatusUnauthorized, gin.H{"error": "invalid token"})
 			return
@@ -317,11 +446,29 @@ func authMiddleware(client *auth.Client) gin.HandlerFunc {
 	}
 }
 
+// clientKey names who a transform is for, so the daemons can share their
+// workers fairly between clients instead of first come, first served. /transform
+// is public, so a token is optional: a valid one (Pro mode only) keys by uid,
+// anything else falls back to the client IP. An invalid token is not an error
+// here, it just does not earn a uid. The IP only comes from X-Forwarded-For
+// when the connection is from a trusted proxy (AppConfig.TrustedProxies);
+// otherwise every spoofed header value would be a fresh fair-share lane.
+func clientKey(c *gin.Context, client *auth.Client) string {
+	if client != nil && c.GetHeader("Authorization") != "" {
+		if tok, err := verifyBearer(c, client); err == nil {
+			return "uid:" + tok.UID
+		}
+	}
+	return "ip:" + c.ClientIP()
+}
+
 func corsMiddleware() gin.HandlerFunc {
 	return func(c *gin.Context) {
 		c.Writer.Header().Set("Access-Control-Allow-Origin", "*")
 		c.Writer.Header().Set("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS")
 		c.Writer.Header().Set("Access-Control-Allow-Headers", "Authorization, Content-Type")
+		// Lets the browser's resource timing see the Server-Timing of /transform.
+		c.Writer.Header().Set("Timing-Allow-Origin", "*")
 		if c.Request.Method == http.MethodOptions {
 			c.AbortWithStatus(http.StatusNoContent)
 			return
@@ -381,13 +528,24 @@ func main() {
 		}
 	}
 
+	// Daemon base URLs per engine, comma-separated; start.sh sets these when
+	// it runs more than one instance of an engine.
+	saxon12Pool := newDaemonPool("saxon12", daemonURLs("DAEMON_URLS_SAXON12", "http://127.0.0.1:8081"))
+	xalanPool := newDaemonPool("xalan", daemonURLs("DAEMON_URLS_XALAN", "http://127.0.0.1:8082"))
+	saxon9Pool := newDaemonPool("saxon9", daemonURLs("DAEMON_URLS_SAXON9", "http://127.0.0.1:8083"))
+	pools := []*daemonPool{saxon12Pool, xalanPool, saxon9Pool}
+	startHealthPoller(pools, 2*time.Second)
+
 	metricsPort := os.Getenv("METRICS_PORT")
 	if metricsPort == "" {
 		metricsPort = "9100"
 	}
-	go startMetricsServer(metricsPort)
+	go startMetricsServer(metricsPort, pools)
 
 	r := gin.Default()
+	if err := r.SetTrustedProxies(config.TrustedProxies); err != nil {
+		log.Fatalf("invalid trusted_proxies: %v", err)
+	}
 	r.Use(metricsMiddleware())
 	r.Use(corsMiddleware())
 
@@ -407,6 +565,11 @@ func main() {
 			c.JSON(http.StatusBadRequest, gin.H{"error": "unsupported XSLT version: must be 1.0, 2.0 or 3.0"})
 			return
 		}
+		if err := validateTraceOptions(req); err != nil {
+			transformationsTotal.WithLabelValues(version, "bad_request").Inc()
+			c.JSON(http.StatusBadRequest, gin.H{"error": err.Error()})
+			return
+		}
 		transformationPayloadBytes.WithLabelValues(version).Observe(float64(len(req.XSLT)))
 		if req.Trace {
 			traceRequestsTotal.Inc()
@@ -445,6 +608,12 @@ func main() {
 			"fileParameters": fileParams,
 			"trace":          req.Trace,
 		}
+		if req.Trace && req.Watch != nil {
+			daemonReq["watch"] = req.Watch
+		}
+		if req.Trace && req.Sample != nil {
+			daemonReq["sample"] = req.Sample
+		}
 		daemonBody, err := json.Marshal(daemonReq)
 		if err != nil {
 			transformationsTotal.WithLabelValues(version, "error").Inc()
@@ -452,11 +621,11 @@ func main() {
 			return
 		}
 
-		daemonPort := "8081" // Saxon 12 — XSLT 3.0 (default)
+		pool := saxon12Pool // Saxon 12 — XSLT 3.0 (default)
 		traceEngine := ""
 		switch req.Version {
 		case "1.0":
-			daemonPort = "8082" // XSLTC (JDK) — true XSLT 1.0
+			pool = xalanPool // XSLTC (JDK) — true XSLT 1.0
 			if req.Trace {
 				// XSLTC has no TraceListener hook; be explicit instead of
 				// silently returning an empty trace (which is what happened
@@ -464,25 +633,37 @@ func main() {
 				traceEngine = "unavailable"
 			}
 		case "2.0":
-			daemonPort = "8083" // Saxon 9 — true XSLT 2.0
+			pool = saxon9Pool // Saxon 9 — true XSLT 2.0, traced natively too
 			if req.Trace {
-				// The trace instrumentation lives in Runner, which needs
-				// Saxon 10+ APIs and cannot load inside the Saxon 9 daemon.
-				// Rather than returning an empty trace, run the traced request
-				// on Saxon 12 in 2.0 backwards-compatible mode: a real trace
-				// with a small, documented semantic difference.
-				daemonPort = "8081"
-				traceEngine = "saxon12-compat"
+				// Saxon2TraceListener reports variables and hot spots only:
+				// no expression profile, no flame graph. Say so rather than
+				// leave those panels out without a word.
+				traceEngine = "saxon9"
 			}
 		}
 
+		daemon, preferred := pool.pick(req.XSLT)
+		if preferred {
+			daemonRoutedTotal.WithLabelValues(pool.engine, "affinity").Inc()
+		} else {
+			daemonRoutedTotal.WithLabelValues(pool.engine, "spill").Inc()
+		}
+		daemon.pending.Add(1)
+		defer daemon.pending.Add(-1)
+
+		daemonHTTPReq, err := http.NewRequest(http.MethodPost,
+			daemon.baseURL+"/transform", bytes.NewReader(daemonBody))
+		if err != nil {
+			transformationsTotal.WithLabelValues(version, "error").Inc()
+			c.JSON(http.StatusInternalServerError, gin.H{"error": "cannot build daemon request"})
+			return
+		}
+		daemonHTTPReq.Header.Set("Content-Type", "application/json")
+		daemonHTTPReq.Header.Set("X-Client-Key", clientKey(c, authClient))
+
 		start := time.Now()
 		httpClient := &http.Client{Timeout: 10 * time.Second}
-		resp, err := httpClient.Post(
-			"http://127.0.0.1:"+daemonPort+"/transform",
-			"application/json",
-			bytes.NewReader(daemonBody),
-		)
+		resp, err := httpClient.Do(daemonHTTPReq)
 		if err != nil {
 			transformationsTotal.WithLabelValues(version, "unavailable").Inc()
 			log.Printf("daemon call failed: %v", err)
@@ -504,10 +685,13 @@ func main() {
 		duration := elapsed.Milliseconds()
 
 		var daemonResp struct {
-			Result           string            `json:"result"`
-			TraceText        string            `json:"traceText"`
-			Error            string            `json:"error"`
-			SecondaryResults map[string]string `json:"secondaryResults"`
+			Result           string             `json:"result"`
+			TraceText        string             `json:"traceText"`
+			TraceEvents      string             `json:"traceEvents"`
+			Error            string             `json:"error"`
+			SecondaryResults map[string]string  `json:"secondaryResults"`
+			Schedule         *daemonSchedule    `json:"schedule"`
+			Timings          map[string]float64 `json:"timings"`
 		}
 		if err := json.Unmarshal(respBody, &daemonResp); err != nil {
 			transformationsTotal.WithLabelValues(version, "error").Inc()
@@ -515,6 +699,25 @@ func main() {
 			c.JSON(http.StatusInternalServerError, gin.H{"error": "cannot parse daemon response"})
 			return
 		}
+		reuse := resp.Header.Get("X-Transform-Reuse")
+		observeSchedule(version, reuse, daemonResp.Schedule)
+		c.Header("Server-Timing", serverTiming(daemonResp.Timings, reuse, elapsed))
+		if reuse != "" {
+			// Another request's run: its timings say nothing about this one.
+			daemonResp.Timings = nil
+		}
+
+		if resp.StatusCode == http.StatusServiceUnavailable {
+			// Refused or aborted by the daemon's heap guard: nothing wrong
+			// with the stylesheet, so pass the 503 and its Retry-After on.
+			transformationsTotal.WithLabelValues(version, "shed").Inc()
+			log.Printf("transform shed by daemon after %dms: %s", duration, daemonResp.Error)
+			if retry := resp.Header.Get("Retry-After"); retry != "" {
+				c.Header("Retry-After", retry)
+			}
+			c.JSON(http.StatusServiceUnavailable, gin.H{"error": daemonResp.Error})
+			return
+		}
 
 		if daemonResp.Error != "" {
 			transformationsTotal.WithLabelValues(version, "error").Inc()
@@ -526,57 +729,31 @@ func main() {
 
 		log.Printf("transformation done in %dms", duration)
 
-		var traceEntries []TraceEntry
-		var hotspots []Hotspot
+		// The Saxon daemons report the trace as records; Xalan only sends
+		// its warnings, as text.
+		var trace decodedTrace
 		traceText := daemonResp.TraceText
-		if req.Trace && traceText != "" {
-			log.Printf("trace size=%d bytes", len(traceText))
-			lines := strings.Split(traceText, "\n")
-			filtered := make([]string, 0, len(lines))
-			capturing := false
-			var currName string
-			var buf []string
-			for _, l := range lines {
-				if strings.HasPrefix(l, "TRACE_DEBUG") {
-					continue
-				}
-				// Handled before anything else: while `capturing` is on every
-				// line is appended to a variable's value, so a profile line
-				// slipping through would end up inside it.
-				if strings.HasPrefix(l, "TRACE_HOT|") {
-					if h, ok := parseHotspot(l); ok {
-						hotspots = append(hotspots, h)
-					}
-					continue
-				}
-				filtered = append(filtered, l)
-				if strings.HasPrefix(l, "TRACE_VAR_START|") {
-					capturing = true
-					currName = strings.TrimPrefix(l, "TRACE_VAR_START|")
-					buf = nil
-					continue
-				}
-				if strings.HasPrefix(l, "TRACE_VAR_END") {
-					if capturing {
-						traceEntries = append(traceEntries, TraceEntry{Name: currName, Value: strings.Join(buf, "\n")})
-					}
-					capturing = false
-					currName = ""
-					buf = nil
-					continue
-				}
-				if capturing {
-					buf = append(buf, l)
-					continue
+		if req.Trace && daemonResp.TraceEvents != "" {
+			log.Printf("trace size=%d bytes", len(daemonResp.TraceEvents))
+			trace, err = decodeTraceEvents(daemonResp.TraceEvents)
+			if err != nil {
+				log.Printf("trace decoding stopped: %v", err)
+			}
+			var messages []string
+			if traceText != "" {
+				messages = append(messages, traceText)
+			}
+			for _, m := range trace.Messages {
+				if !strings.HasPrefix(m, "TRACE_DEBUG") {
+					messages = append(messages, m)
 				}
-				if strings.HasPrefix(l, "TRACE_VAR|") {
-					parts := strings.SplitN(l, "|", 3)
-					if len(parts) == 3 {
-						traceEntries = append(traceEntries, TraceEntry{Name: parts[1], Value: parts[2]})
-					}
+			}
+			traceText = strings.Join(messages, "\n")
+			if daemonResp.Timings != nil {
+				for name, ms := range trace.Timings {
+					daemonResp.Timings[name+"Ms"] = ms
 				}
 			}
-			traceText = strings.Join(filtered, "\n")
 		}
 
 		transformationsTotal.WithLabelValues(version, "success").Inc()
@@ -584,11 +761,15 @@ func main() {
 		c.JSON(http.StatusOK, TransformResponse{
 			Result:           daemonResp.Result,
 			DurationMs:       duration,
-			Trace:            traceEntries,
+			Trace:            trace.Entries,
 			TraceEngine:      traceEngine,
-			Hotspots:         hotspots,
+			Hotspots:         trace.Hotspots,
+			Expressions:      trace.Expressions,
+			Flame:            trace.Flame,
+			TraceTruncated:   trace.Truncated,
 			TraceText:        traceText,
 			SecondaryResults: daemonResp.SecondaryResults,
+			Timings:          daemonResp.Timings,
 		})
 	})
 
@@ -596,6 +777,8 @@ func main() {
 		c.JSON(http.StatusOK, gin.H{"status": "ok"})
 	})
 
+	r.GET("/ready", readyHandler(pools))
+
 	if goPro {
 		authRoutes := r.Group("/history").Use(authMiddleware(authClient))
 		authRoutes.GET("", func(c *gin.Context) {
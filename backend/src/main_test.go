@@ -8,6 +8,7 @@ import (
 	"path/filepath"
 	"strings"
 	"testing"
+	"time"
 
 	"github.com/gin-gonic/gin"
 	"github.com/prometheus/client_golang/prometheus/testutil"
@@ -17,6 +18,7 @@ func TestLoadConfigAppliesEnvOverrides(t *testing.T) {
 	t.Setenv("DATABASE_URL", "postgres://env")
 	t.Setenv("GOOGLE_APPLICATION_CREDENTIALS", "/tmp/creds.json")
 	t.Setenv("SAXON_CLASSPATH", "env-classpath")
+	t.Setenv("TRUSTED_PROXIES", "10.0.0.0/8, 192.168.1.2")
 
 	dir := t.TempDir()
 	cfgPath := filepath.Join(dir, "app.config")
@@ -44,6 +46,9 @@ func TestLoadConfigAppliesEnvOverrides(t *testing.T) {
 	if cfg.SaxonClasspath != "env-classpath" {
 		t.Fatalf("expected env saxon classpath, got %s", cfg.SaxonClasspath)
 	}
+	if strings.Join(cfg.TrustedProxies, "|") != "10.0.0.0/8|192.168.1.2" {
+		t.Fatalf("expected env trusted proxies, got %v", cfg.TrustedProxies)
+	}
 }
 
 func TestCorsMiddlewareSetsHeaders(t *testing.T) {
@@ -275,25 +280,124 @@ func TestLogTransformErrorIncrementsCounter(t *testing.T) {
 	}
 }
 
-func TestParseHotspot(t *testing.T) {
-	h, ok := parseHotspot("TRACE_HOT|4312|xsl:template|match=\"item\"|12")
-	if !ok {
-		t.Fatalf("expected the line to parse")
-	}
-	if h.Count != 4312 || h.Kind != "xsl:template" || h.Label != `match="item"` || h.Line != 12 {
-		t.Fatalf("unexpected hotspot: %+v", h)
-	}
-	for _, bad := range []string{
-		"TRACE_HOT|not-a-number|xsl:template|x|1",
-		"TRACE_HOT|1|too|few",
-		"TRACE_HOT|0|xsl:template|x|1", // a zero count is not a hotspot
-	} {
-		if _, ok := parseHotspot(bad); ok {
-			t.Errorf("expected %q to be rejected", bad)
+func TestValidateTraceSample(t *testing.T) {
+	for _, ok := range []*TraceSample{nil, {Every: 100}, {Random: 20}, {Random: maxTraceSampleRandom}, {Every: 1000000}, {}} {
+		if err := validateTraceSample(ok); err != nil {
+			t.Errorf("sample %+v rejected: %v", ok, err)
+		}
+	}
+	for _, bad := range []*TraceSample{{Every: -1}, {Random: -5}, {Every: 10, Random: 10}, {Random: maxTraceSampleRandom + 1}, {Random: 1000000}} {
+		if err := validateTraceSample(bad); err == nil {
+			t.Errorf("expected sample %+v to be rejected", bad)
+		}
+	}
+}
+
+func TestValidateTraceWatch(t *testing.T) {
+	if err := validateTraceWatch(nil); err != nil {
+		t.Fatalf("no watch: %v", err)
+	}
+	ok := &TraceWatch{Variables: []string{"$total"}, Lines: []string{"12", "30-45", " 7 - 9 "}, Templates: []string{"item"}}
+	if err := validateTraceWatch(ok); err != nil {
+		t.Fatalf("valid watch rejected: %v", err)
+	}
+	for _, bad := range []string{"", "x", "45-30", "0", "3-", "-3"} {
+		if err := validateTraceWatch(&TraceWatch{Lines: []string{bad}}); err == nil {
+			t.Errorf("expected line %q to be rejected", bad)
+		}
+	}
+}
+
+func TestObserveScheduleRecordsPredictionError(t *testing.T) {
+	before := testutil.CollectAndCount(daemonPredictionErrorRatio)
+	observeSchedule("3.0", "", &daemonSchedule{PredictedMs: 20, ActualMs: 40, QueueMs: 1, SizeBucket: "tiny-test", History: "default"})
+	if got := testutil.CollectAndCount(daemonPredictionErrorRatio); got != before+1 {
+		t.Fatalf("expected a new prediction error series, got %d (was %d)", got, before)
+	}
+	// Responses without a schedule (older daemons) are simply skipped.
+	observeSchedule("3.0", "", nil)
+	// A zero prediction must not produce an infinite ratio.
+	observeSchedule("3.0", "", &daemonSchedule{PredictedMs: 0, ActualMs: 5, SizeBucket: "zero-test", History: "default"})
+	if got := testutil.CollectAndCount(daemonPredictionErrorRatio); got != before+1 {
+		t.Fatalf("zero prediction should not be observed, got %d series", got)
+	}
+}
+
+func TestObserveScheduleCountsReusedResponses(t *testing.T) {
+	before := testutil.CollectAndCount(daemonPredictionErrorRatio)
+	observeSchedule("1.0", "coalesced", &daemonSchedule{PredictedMs: 20, ActualMs: 40, SizeBucket: "reuse-test", History: "history"})
+	if got := testutil.CollectAndCount(daemonPredictionErrorRatio); got != before {
+		t.Fatalf("a reused response must not be observed as a run, got %d series (was %d)", got, before)
+	}
+	if got := testutil.ToFloat64(daemonReusedTotal.WithLabelValues("1.0", "coalesced")); got != 1 {
+		t.Fatalf("coalesced count = %v, want 1", got)
+	}
+	observeSchedule("1.0", "bogus", nil)
+	if got := testutil.ToFloat64(daemonReusedTotal.WithLabelValues("1.0", "other")); got != 1 {
+		t.Fatalf("unknown reuse kinds should be counted as other, got %v", got)
+	}
+}
+
+func TestClientKeyFallsBackToIP(t *testing.T) {
+	gin.SetMode(gin.TestMode)
+	rec := httptest.NewRecorder()
+	c, _ := gin.CreateTestContext(rec)
+	c.Request = httptest.NewRequest(http.MethodPost, "/transform", nil)
+	c.Request.RemoteAddr = "203.0.113.7:51234"
+	// Without an auth client (non-Pro) a bearer token is ignored, not verified.
+	c.Request.Header.Set("Authorization", "Bearer whatever")
+	if got := clientKey(c, nil); got != "ip:203.0.113.7" {
+		t.Fatalf("clientKey = %q, want ip:203.0.113.7", got)
+	}
+}
+
+func TestClientKeyIgnoresForwardedForFromUntrustedPeers(t *testing.T) {
+	gin.SetMode(gin.TestMode)
+	key := func(trusted []string, remote, forwarded string) string {
+		c, r := gin.CreateTestContext(httptest.NewRecorder())
+		if err := r.SetTrustedProxies(trusted); err != nil {
+			t.Fatalf("SetTrustedProxies: %v", err)
+		}
+		c.Request = httptest.NewRequest(http.MethodPost, "/transform", nil)
+		c.Request.RemoteAddr = remote
+		if forwarded != "" {
+			c.Request.Header.Set("X-Forwarded-For", forwarded)
+		}
+		return clientKey(c, nil)
+	}
+
+	// A direct caller cannot pick its own lane by forging the header.
+	plain := key(nil, "203.0.113.7:51234", "")
+	for _, spoofed := range []string{"198.51.100.1", "198.51.100.2", "10.0.0.1, 198.51.100.3"} {
+		if got := key(nil, "203.0.113.7:51234", spoofed); got != plain {
+			t.Fatalf("X-Forwarded-For %q changed the key to %q, want %q", spoofed, got, plain)
 		}
 	}
-	// A missing line number degrades instead of dropping the whole entry.
-	if h, ok := parseHotspot("TRACE_HOT|7|xsl:for-each|sel|?"); !ok || h.Line != -1 {
-		t.Errorf("expected an unparseable line number to become -1, got %+v", h)
+
+	// Behind the ingress the header is believed, but only the hop the
+	// ingress appended: what the client put before it is still ignored.
+	ingress := []string{"10.0.0.0/8"}
+	if got := key(ingress, "10.1.2.3:443", "203.0.113.7"); got != "ip:203.0.113.7" {
+		t.Fatalf("via trusted proxy: clientKey = %q, want ip:203.0.113.7", got)
+	}
+	if got := key(ingress, "10.1.2.3:443", "198.51.100.1, 203.0.113.7"); got != "ip:203.0.113.7" {
+		t.Fatalf("spoofed hop via trusted proxy: clientKey = %q, want ip:203.0.113.7", got)
+	}
+}
+
+func TestServerTimingListsPhasesInOrder(t *testing.T) {
+	timings := map[string]float64{"transformMs": 4.25, "queueMs": 0.1, "compileMs": 12, "parseMs": 0}
+	got := serverTiming(timings, "", 20500*time.Microsecond)
+	want := "queue;dur=0.1, compile;dur=12, parse;dur=0, transform;dur=4.25, daemon;dur=20.5"
+	if got != want {
+		t.Fatalf("serverTiming = %q, want %q", got, want)
+	}
+	// A cached or coalesced response reports the reuse, not another run's phases.
+	if got := serverTiming(timings, "cached", time.Millisecond); got != `reuse;desc="cached", daemon;dur=1` {
+		t.Fatalf("reused serverTiming = %q", got)
+	}
+	// Daemons that send no timings still get the round trip.
+	if got := serverTiming(nil, "", 3*time.Millisecond); got != "daemon;dur=3" {
+		t.Fatalf("serverTiming without timings = %q", got)
 	}
 }
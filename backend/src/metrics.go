@@ -59,8 +59,111 @@ var (
 		Name: "xslt_transform_errors_total",
 		Help: "Failed XSLT transformations, by class, error code and version.",
 	}, []string{"class", "error_code", "version"})
+
+	// The daemons queue shortest-predicted-job first, ranking each request by
+	// what the same stylesheet cost last time at that input size. These show
+	// how good the guesses are. The stylesheet itself is not a label (one
+	// series per hash would be unbounded); history says whether the estimate
+	// came from that stylesheet's own runs, a size-bucket average or the
+	// cold-start default.
+	daemonPredictedCost = promauto.NewHistogramVec(prometheus.HistogramOpts{
+		Name:    "xslt_daemon_predicted_cost_seconds",
+		Help:    "Cost the daemon scheduler predicted for a request, by version and input size bucket.",
+		Buckets: []float64{0.001, 0.005, 0.01, 0.05, 0.1, 0.25, 0.5, 1, 2, 5},
+	}, []string{"version", "size_bucket"})
+
+	daemonPredictionErrorRatio = promauto.NewHistogramVec(prometheus.HistogramOpts{
+		Name:    "xslt_daemon_prediction_error_ratio",
+		Help:    "Actual over predicted daemon run time, by version, input size bucket and prediction source.",
+		Buckets: prometheus.ExponentialBuckets(1.0/16, 2, 9), // 1/16 .. 16
+	}, []string{"version", "size_bucket", "history"})
+
+	daemonQueueWait = promauto.NewHistogramVec(prometheus.HistogramOpts{
+		Name:    "xslt_daemon_queue_wait_seconds",
+		Help:    "Time a request waited in the daemon scheduler queue, by version.",
+		Buckets: []float64{0.001, 0.005, 0.01, 0.05, 0.1, 0.25, 0.5, 1, 2},
+	}, []string{"version"})
+
+	daemonReusedTotal = promauto.NewCounterVec(prometheus.CounterOpts{
+		Name: "xslt_daemon_reused_responses_total",
+		Help: "Daemon responses served without a run of their own, by version and kind (coalesced, cached).",
+	}, []string{"version", "kind"})
+
+	// Per daemon instance, from the /health poll (see daemonpool.go). The
+	// instance label is a configured host:port, so it stays bounded.
+	daemonUp = promauto.NewGaugeVec(prometheus.GaugeOpts{
+		Name: "xslt_daemon_up",
+		Help: "Whether the daemon instance answered its last health poll, by engine and instance.",
+	}, []string{"engine", "instance"})
+
+	daemonQueueDepth = promauto.NewGaugeVec(prometheus.GaugeOpts{
+		Name: "xslt_daemon_queue_depth",
+		Help: "Requests waiting in the daemon instance's scheduler queue, by engine and instance.",
+	}, []string{"engine", "instance"})
+
+	daemonInFlight = promauto.NewGaugeVec(prometheus.GaugeOpts{
+		Name: "xslt_daemon_in_flight",
+		Help: "Requests the daemon instance has received and not yet answered, by engine and instance.",
+	}, []string{"engine", "instance"})
+
+	daemonHeapUsed = promauto.NewGaugeVec(prometheus.GaugeOpts{
+		Name: "xslt_daemon_heap_used_bytes",
+		Help: "JVM heap in use in the daemon instance, by engine and instance.",
+	}, []string{"engine", "instance"})
+
+	daemonHeapMax = promauto.NewGaugeVec(prometheus.GaugeOpts{
+		Name: "xslt_daemon_heap_max_bytes",
+		Help: "JVM maximum heap of the daemon instance, by engine and instance.",
+	}, []string{"engine", "instance"})
+
+	daemonRSS = promauto.NewGaugeVec(prometheus.GaugeOpts{
+		Name: "xslt_daemon_rss_bytes",
+		Help: "Resident memory of the daemon process, by engine and instance; drops when an idle daemon trims itself.",
+	}, []string{"engine", "instance"})
+
+	daemonHeapGuardTotal = promauto.NewCounterVec(prometheus.CounterOpts{
+		Name: "xslt_daemon_heap_guard_total",
+		Help: "Decisions the daemon instance took under heap pressure, by engine, instance and action (shed, flush, abort).",
+	}, []string{"engine", "instance", "action"})
+
+	daemonRoutedTotal = promauto.NewCounterVec(prometheus.CounterOpts{
+		Name: "xslt_daemon_routed_total",
+		Help: "Requests routed to a daemon instance, by engine and whether it was the stylesheet's preferred instance (affinity) or the less loaded alternative (spill).",
+	}, []string{"engine", "choice"})
 )
 
+// daemonSchedule is what a daemon reports about how it queued a request.
+type daemonSchedule struct {
+	PredictedMs float64 `json:"predictedMs"`
+	ActualMs    float64 `json:"actualMs"`
+	QueueMs     float64 `json:"queueMs"`
+	SizeBucket  string  `json:"sizeBucket"`
+	History     string  `json:"history"`
+}
+
+// observeSchedule records how a daemon run was queued. reuse is the daemon's
+// X-Transform-Reuse header: a response shared with an identical in-flight
+// request or served from the result cache repeats the schedule of the run
+// that produced it, so it is counted as reused instead of observed again.
+func observeSchedule(version, reuse string, s *daemonSchedule) {
+	if reuse != "" {
+		if reuse != "coalesced" && reuse != "cached" {
+			reuse = "other"
+		}
+		daemonReusedTotal.WithLabelValues(normalizeVersion(version), reuse).Inc()
+		return
+	}
+	if s == nil {
+		return
+	}
+	version = normalizeVersion(version)
+	daemonPredictedCost.WithLabelValues(version, s.SizeBucket).Observe(s.PredictedMs / 1000)
+	daemonQueueWait.WithLabelValues(version).Observe(s.QueueMs / 1000)
+	if s.PredictedMs > 0 {
+		daemonPredictionErrorRatio.WithLabelValues(version, s.SizeBucket, s.History).Observe(s.ActualMs / s.PredictedMs)
+	}
+}
+
 // normalizeVersion maps the requested XSLT version to a bounded set of label
 // values, keeping metric cardinality low. Empty defaults to 3.0 (the backend
 // default daemon); anything unrecognized is "invalid".
@@ -92,11 +195,13 @@ func metricsMiddleware() gin.HandlerFunc {
 	}
 }
 
-// startMetricsServer exposes /metrics on a dedicated port so it is never routed
+// startMetricsServer exposes /metrics, and the daemons' metrics at
+// /metrics/daemons, on a dedicated port so they are never routed
 // through the public ingress that fronts the main API port.
-func startMetricsServer(port string) {
+func startMetricsServer(port string, pools []*daemonPool) {
 	mux := http.NewServeMux()
 	mux.Handle("/metrics", promhttp.Handler())
+	mux.Handle("/metrics/daemons", daemonMetricsHandler(pools))
 	mux.HandleFunc("/healthz", func(w http.ResponseWriter, _ *http.Request) {
 		w.WriteHeader(http.StatusOK)
 	})
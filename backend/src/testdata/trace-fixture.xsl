@@ -0,0 +1,4 @@
+<xsl:stylesheet version="2.0" xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
+<xsl:template match="/"><r><xsl:apply-templates select="//item"/></r></xsl:template>
+<xsl:template match="item"><xsl:variable name="v" select="@n * 2"/><i><xsl:value-of select="$v"/></i></xsl:template>
+</xsl:stylesheet>
@@ -0,0 +1,233 @@
+package main
+
+import (
+	"bufio"
+	"encoding/base64"
+	"encoding/binary"
+	"errors"
+	"fmt"
+	"io"
+	"strings"
+)
+
+// A traced Saxon run reports its trace as framed records (base64 in the
+// daemon's "traceEvents"), written by BinaryTraceSink.java: a kind byte, the
+// payload's length as 4 big-endian bytes, then the payload. Strings are a
+// uvarint byte count and UTF-8, counts and times uvarints, lines and columns
+// zig-zag varints; the last string of a record may take up the rest of it.
+// Nothing in a value is escaped, and none of it can be taken for a record.
+const (
+	traceVariable   = 1 // flags (1 = truncated), line, name, sample, value (rest)
+	traceHotspot    = 2 // count, kind, label, line, inclusive µs, self µs
+	traceExpression = 3 // count, total µs, line, column, where, text
+	traceFlame      = 4 // self µs, stack (rest)
+	traceTruncated  = 5 // max bytes, skipped
+	traceTiming     = 6 // µs, name (rest)
+	traceMessage    = 7 // text (rest)
+)
+
+// maxTraceRecord bounds one record's payload, so a corrupt length cannot
+// make the decoder allocate without limit. The daemon caps a whole run's
+// values at a few MiB.
+const maxTraceRecord = 64 << 20
+
+var (
+	errTraceCut    = errors.New("trace ends inside a record")
+	errTraceRecord = errors.New("malformed trace record")
+)
+
+// traceDecoder reads the records one at a time straight from the base64, so
+// the decoded trace is never held as a whole.
+type traceDecoder struct {
+	r       *bufio.Reader
+	header  [5]byte
+	payload []byte
+}
+
+func newTraceDecoder(encoded string) *traceDecoder {
+	return &traceDecoder{
+		r: bufio.NewReader(base64.NewDecoder(base64.StdEncoding, strings.NewReader(encoded))),
+	}
+}
+
+// next returns the next record's kind and payload, and io.EOF after the
+// last. The payload is only good until the following call.
+func (d *traceDecoder) next() (byte, []byte, error) {
+	if _, err := io.ReadFull(d.r, d.header[:]); err != nil {
+		if err == io.ErrUnexpectedEOF {
+			return 0, nil, errTraceCut
+		}
+		return 0, nil, err
+	}
+	n := binary.BigEndian.Uint32(d.header[1:])
+	if n > maxTraceRecord {
+		return 0, nil, fmt.Errorf("trace record of %d bytes", n)
+	}
+	if cap(d.payload) < int(n) {
+		d.payload = make([]byte, n)
+	}
+	d.payload = d.payload[:n]
+	if _, err := io.ReadFull(d.r, d.payload); err != nil {
+		if err == io.EOF || err == io.ErrUnexpectedEOF {
+			return 0, nil, errTraceCut
+		}
+		return 0, nil, err
+	}
+	return d.header[0], d.payload, nil
+}
+
+// traceFields reads a payload's fields in order; the first field that does
+// not fit sets err, and every read after it returns a zero value.
+type traceFields struct {
+	b   []byte
+	err error
+}
+
+func (f *traceFields) flags() byte {
+	if f.err != nil {
+		return 0
+	}
+	if len(f.b) == 0 {
+		f.err = errTraceRecord
+		return 0
+	}
+	v := f.b[0]
+	f.b = f.b[1:]
+	return v
+}
+
+func (f *traceFields) uvarint() uint64 {
+	if f.err != nil {
+		return 0
+	}
+	v, n := binary.Uvarint(f.b)
+	if n <= 0 {
+		f.err = errTraceRecord
+		return 0
+	}
+	f.b = f.b[n:]
+	return v
+}
+
+func (f *traceFields) varint() int64 {
+	if f.err != nil {
+		return 0
+	}
+	v, n := binary.Varint(f.b)
+	if n <= 0 {
+		f.err = errTraceRecord
+		return 0
+	}
+	f.b = f.b[n:]
+	return v
+}
+
+func (f *traceFields) str() string {
+	n := f.uvarint()
+	if f.err != nil {
+		return ""
+	}
+	if n > uint64(len(f.b)) {
+		f.err = errTraceRecord
+		return ""
+	}
+	s := string(f.b[:n])
+	f.b = f.b[n:]
+	return s
+}
+
+func (f *traceFields) rest() string {
+	if f.err != nil {
+		return ""
+	}
+	s := string(f.b)
+	f.b = nil
+	return s
+}
+
+// decodedTrace is what a traced run reported, ready for the response.
+// Timings are milliseconds by name ("traceOverhead"); Messages are free text
+// such as the daemon's debug output.
+type decodedTrace struct {
+	Entries     []TraceEntry
+	Hotspots    []Hotspot
+	Expressions []ExpressionHotspot
+	Flame       string
+	Truncated   *TraceTruncation
+	Timings     map[string]float64
+	Messages    []string
+}
+
+// decodeTraceEvents decodes the daemon's "traceEvents". Records of kinds it
+// does not know are skipped, and so are ones that do not describe anything
+// (a hot spot that never ran). On an error it returns what came before it.
+func decodeTraceEvents(encoded string) (decodedTrace, error) {
+	var out decodedTrace
+	var flame strings.Builder
+	d := newTraceDecoder(encoded)
+	for {
+		kind, payload, err := d.next()
+		if err == io.EOF {
+			break
+		}
+		if err != nil {
+			out.Flame = flame.String()
+			return out, err
+		}
+		f := traceFields{b: payload}
+		switch kind {
+		case traceVariable:
+			truncated := f.flags()&1 != 0
+			line := int(f.varint())
+			if line < 0 {
+				line = 0
+			}
+			e := TraceEntry{Line: line, Name: f.str(), Sample: f.str(), Truncated: truncated}
+			e.Value = f.rest()
+			if f.err == nil {
+				out.Entries = append(out.Entries, e)
+			}
+		case traceHotspot:
+			h := Hotspot{Count: int(f.uvarint()), Kind: f.str(), Label: f.str(), Line: int(f.varint())}
+			h.InclusiveMs = float64(f.uvarint()) / 1000
+			h.SelfMs = float64(f.uvarint()) / 1000
+			if f.err == nil && h.Count > 0 {
+				out.Hotspots = append(out.Hotspots, h)
+			}
+		case traceExpression:
+			e := ExpressionHotspot{Count: int(f.uvarint()), TotalMs: float64(f.uvarint()) / 1000}
+			e.Line = int(f.varint())
+			e.Column = int(f.varint())
+			e.Where = f.str()
+			e.Expression = f.str()
+			if f.err == nil && e.Count > 0 {
+				out.Expressions = append(out.Expressions, e)
+			}
+		case traceFlame:
+			// The collapsed-stack format flame graph tools read: "frame;frame;... 1234".
+			micros := f.uvarint()
+			stack := f.rest()
+			if f.err == nil && micros > 0 && stack != "" {
+				fmt.Fprintf(&flame, "%s %d\n", stack, micros)
+			}
+		case traceTruncated:
+			t := &TraceTruncation{MaxBytes: int64(f.uvarint()), Skipped: int(f.uvarint())}
+			if f.err == nil {
+				out.Truncated = t
+			}
+		case traceTiming:
+			micros := f.uvarint()
+			name := f.rest()
+			if f.err == nil && name != "" {
+				if out.Timings == nil {
+					out.Timings = make(map[string]float64)
+				}
+				out.Timings[name] = float64(micros) / 1000
+			}
+		case traceMessage:
+			out.Messages = append(out.Messages, f.rest())
+		}
+	}
+	out.Flame = flame.String()
+	return out, nil
+}
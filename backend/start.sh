@@ -1,36 +1,191 @@
 #!/bin/sh
 set -e
 
-# ── Saxon 12 — XSLT 3.0 (port 8081) ─────────────────────────────────────────
-java \
-  -Xms64m -Xmx256m \
-  -XX:+UseSerialGC \
-  -cp '/opt/saxon12/*' \
-  com.xsltplayground.SaxonDaemon &
-
-# ── XSLTC / JDK — XSLT 1.0 (port 8082) ──────────────────────────────────────
-java \
-  -Xms32m -Xmx128m \
-  -XX:+UseSerialGC \
-  -cp '/opt/xalan/*' \
-  com.xsltplayground.XalanDaemon &
-
-# ── Saxon 9.6 — XSLT 2.0 (port 8083) ────────────────────────────────────────
-java \
-  -Xms32m -Xmx128m \
-  -XX:+UseSerialGC \
-  -cp '/opt/saxon9/*' \
-  com.xsltplayground.Saxon2Daemon &
-
-# ── Wait for all three daemons ────────────────────────────────────────────────
+# DAEMON_MODE=host runs all three engines in a single JVM instead (see
+# below); the default, "separate", gives each engine its own.
+#
+# Each engine can run as several daemon JVMs: set SAXON12_INSTANCES,
+# XALAN_INSTANCES or SAXON9_INSTANCES above 1 on a bigger box. The engine's
+# heap budget is split between its instances, so each one collects a smaller
+# heap and pauses for less; the Go server spreads requests over them (see
+# src/daemonpool.go). Instance i listens on the engine's port + 100 * i.
+#
+# `start.sh train-cds` is the image build's AppCDS step instead: it runs each
+# engine (and EngineHost) once over the warm-up corpus, dumps the classes it
+# loaded to $CDS_DIR/<name>.jsa and exits. Later starts map that archive
+# rather than loading and verifying Saxon, gson and the JDK XML stack from the
+# jars again. Training and serving share the launch lines below, because an
+# archive is only used with the class path it was dumped with.
+#
+# `start.sh checkpoint` goes further on a CRaC JDK (java on the PATH, and
+# CAP_CHECKPOINT_RESTORE, so not during `docker build`): each engine warms up
+# and is checkpointed to $CRAC_DIR/<name>. Later starts restore that process
+# instead of launching one, warm and listening within milliseconds. Only
+# single-instance engines are restored (an image keeps the port it was taken
+# on), and EngineHost is not checkpointed: its engine class loaders hold
+# their jars open, which a checkpoint refuses.
+CPUS=$(nproc 2>/dev/null || echo 2)
+CDS_DIR=${CDS_DIR:-/opt/cds}
+CRAC_DIR=${CRAC_DIR:-/opt/crac}
+MODE=${1:-serve}
+PIDS=""
+
+# After the full collection a daemon runs when it goes idle (IdlePolicy),
+# SerialGC shrinks the heap until at most 40% of it is free (default 70%),
+# all at once rather than over several collections, handing the rest back to
+# the container; -Xms stays the floor.
+HEAP_RATIO_OPTS="-XX:MinHeapFreeRatio=20 -XX:MaxHeapFreeRatio=40 -XX:-ShrinkHeapInSteps"
+
+# mode_opts NAME — JVM options NAME gets in this mode
+mode_opts() {
+  case "$MODE" in
+    train-cds)
+      # Two passes load every class the corpus needs; JIT settling is moot.
+      echo "-Dxslt.train=true -Dxslt.warmup.iterations=2 -XX:ArchiveClassesAtExit=$CDS_DIR/$1.jsa"
+      return ;;
+    checkpoint)
+      echo "-Dxslt.checkpoint=true -XX:CRaCCheckpointTo=$CRAC_DIR/$1" ;;
+  esac
+  if [ -f "$CDS_DIR/$1.jsa" ]; then
+    echo "-XX:SharedArchiveFile=$CDS_DIR/$1.jsa"
+  fi
+}
+
+# start_engine NAME CLASS CLASSPATH BASE_PORT INSTANCES HEAP_MB URL_VAR [NATIVE]
+# NATIVE is a native-image build of the daemon to serve with instead of the
+# JVM; training and checkpointing always use the JVM.
+start_engine() {
+  NAME=$1; CLASS=$2; CP=$3; BASE=$4; N=$5; HEAP=$6; URL_VAR=$7; NATIVE=${8:-}
+  PER_HEAP=$((HEAP / N))
+  # Instances share the cores, so each gets its share of workers too.
+  WORKERS_OPT=""
+  if [ "$N" -gt 1 ]; then
+    WORKERS_OPT="-Dxslt.workers=$(( (CPUS + N - 1) / N ))"
+  fi
+  URLS=""
+  i=0
+  while [ $i -lt "$N" ]; do
+    PORT=$((BASE + 100 * i))
+    if [ "$MODE" = serve ] && [ "$N" -eq 1 ] && [ -d "$CRAC_DIR/$NAME" ]; then
+      # Resumes the checkpointed JVM: same heap, port and class path as
+      # below, already warmed up.
+      java -XX:CRaCRestoreFrom="$CRAC_DIR/$NAME" &
+    elif [ "$MODE" = serve ] && [ -n "$NATIVE" ]; then
+      # Compiled ahead of time: no class path, archive or warm-up.
+      "$NATIVE" \
+        -Xmx${PER_HEAP}m \
+        -Dxslt.port=$PORT \
+        $WORKERS_OPT &
+    else
+      java \
+        -Xms$((PER_HEAP / 4))m -Xmx${PER_HEAP}m \
+        -XX:+UseSerialGC $HEAP_RATIO_OPTS \
+        $(mode_opts "$NAME") \
+        -Dxslt.port=$PORT \
+        $WORKERS_OPT \
+        -cp "$CP" \
+        "$CLASS" &
+    fi
+    PIDS="$PIDS $!"
+    URLS="${URLS:+$URLS,}http://127.0.0.1:$PORT"
+    i=$((i + 1))
+  done
+  export "$URL_VAR=$URLS"
+  echo "$NAME: $N instance(s), ${PER_HEAP}m heap each: $URLS"
+}
+
+start_host() {
+  # ── All three engines in one JVM (port 8090) ──────────────────────────────
+  # EngineHost loads each engine from its /opt directory in its own class
+  # loader: one JIT, one metaspace, and one heap that whichever engine is
+  # busy can use, instead of three fixed ones.
+  java \
+    -Xms96m -Xmx${HOST_HEAP_MB:-384}m \
+    -XX:+UseSerialGC $HEAP_RATIO_OPTS \
+    $(mode_opts EngineHost) \
+    -cp '/opt/host/*' \
+    com.xsltplayground.server.EngineHost &
+  PIDS="$PIDS $!"
+  export DAEMON_URLS_SAXON12=http://127.0.0.1:8090/saxon12
+  export DAEMON_URLS_XALAN=http://127.0.0.1:8090/xalan
+  export DAEMON_URLS_SAXON9=http://127.0.0.1:8090/saxon9
+  echo "EngineHost: ${HOST_HEAP_MB:-384}m heap for all engines"
+}
+
+start_separate() {
+  # ── Saxon 12 — XSLT 3.0 (port 8081) ───────────────────────────────────────
+  start_engine SaxonDaemon com.xsltplayground.SaxonDaemon '/opt/saxon12/*' \
+    8081 "${SAXON12_INSTANCES:-1}" "${SAXON12_HEAP_MB:-256}" DAEMON_URLS_SAXON12
+
+  # ── XSLTC / JDK — XSLT 1.0 (port 8082) ────────────────────────────────────
+  # XALAN_NATIVE=1 (set by Dockerfile.xalan-native) runs the native build,
+  # which uses interpretive Xalan instead of XSLTC.
+  XALAN_BIN=""
+  if [ "${XALAN_NATIVE:-0}" = 1 ]; then
+    XALAN_BIN=/opt/xalan-native/xalan-daemon
+  fi
+  start_engine XalanDaemon com.xsltplayground.XalanDaemon '/opt/xalan/*' \
+    8082 "${XALAN_INSTANCES:-1}" "${XALAN_HEAP_MB:-128}" DAEMON_URLS_XALAN "$XALAN_BIN"
+
+  # ── Saxon 9.6 — XSLT 2.0 (port 8083) ──────────────────────────────────────
+  start_engine Saxon2Daemon com.xsltplayground.Saxon2Daemon '/opt/saxon9/*' \
+    8083 "${SAXON9_INSTANCES:-1}" "${SAXON9_HEAP_MB:-128}" DAEMON_URLS_SAXON9
+}
+
+case "$MODE" in
+  train-cds)
+    # A dynamic archive sits on top of the JDK's base archive; some JDK builds
+    # ship without one.
+    java -Xshare:dump > /dev/null
+    mkdir -p "$CDS_DIR"
+    SAXON12_INSTANCES=1 XALAN_INSTANCES=1 SAXON9_INSTANCES=1
+    start_separate
+    start_host
+    # Each daemon exits by itself once it has replayed the corpus.
+    FAILED=0
+    for pid in $PIDS; do wait "$pid" || FAILED=1; done
+    ls -l "$CDS_DIR"
+    exit $FAILED ;;
+  checkpoint)
+    rm -rf "$CRAC_DIR"
+    mkdir -p "$CRAC_DIR"
+    SAXON12_INSTANCES=1 XALAN_INSTANCES=1 SAXON9_INSTANCES=1
+    start_separate
+    # A checkpointed JVM is killed once saved, so its exit status says
+    # nothing; a daemon that could not checkpoint exits before that and
+    # leaves no image.
+    for pid in $PIDS; do wait "$pid" || true; done
+    FAILED=0
+    for name in SaxonDaemon XalanDaemon Saxon2Daemon; do
+      if ls "$CRAC_DIR/$name"/*.img > /dev/null 2>&1; then
+        echo "$name: checkpointed to $CRAC_DIR/$name ($(du -sh "$CRAC_DIR/$name" | cut -f1))"
+      else
+        echo "$name: no checkpoint image" >&2
+        rm -rf "${CRAC_DIR:?}/$name"
+        FAILED=1
+      fi
+    done
+    exit $FAILED ;;
+esac
+
+if [ "${DAEMON_MODE:-separate}" = "host" ]; then
+  start_host
+else
+  start_separate
+fi
+
+# ── Wait for every daemon instance ───────────────────────────────────────────
+# /ready, not /health: a daemon answers /health as soon as it listens, but
+# only reports ready once its JIT warm-up over the template gallery is done
+# (a few seconds per engine; see server/Warmup.java).
 wait_for() {
-  PORT=$1
+  URL=$1
   NAME=$2
-  echo "Waiting for $NAME on :$PORT..."
+  echo "Waiting for $NAME at $URL..."
   TRIES=0
-  until wget -qO- "http://127.0.0.1:$PORT/health" > /dev/null 2>&1; do
+  until wget -qO- "$URL/ready" > /dev/null 2>&1; do
     TRIES=$((TRIES + 1))
-    if [ $TRIES -ge 60 ]; then
+    if [ $TRIES -ge 240 ]; then
       echo "$NAME did not start in time" >&2
       exit 1
     fi
@@ -39,9 +194,9 @@ wait_for() {
   echo "$NAME ready after ${TRIES} probes."
 }
 
-wait_for 8081 SaxonDaemon
-wait_for 8082 XalanDaemon
-wait_for 8083 Saxon2Daemon
+for u in $(echo "$DAEMON_URLS_SAXON12" | tr ',' ' '); do wait_for "$u" SaxonDaemon; done
+for u in $(echo "$DAEMON_URLS_XALAN" | tr ',' ' '); do wait_for "$u" XalanDaemon; done
+for u in $(echo "$DAEMON_URLS_SAXON9" | tr ',' ' '); do wait_for "$u" Saxon2Daemon; done
 
 # ── Go server in foreground ───────────────────────────────────────────────────
 exec ./server
@@ -3,6 +3,8 @@ import logo from "./logo.svg";
 import TabsNav from "./components/TabsNav";
 import DataPipelineHeader from "./components/DataPipelineHeader";
 import Icon from "./components/Icon";
+import FlameGraph from "./components/FlameGraph";
+import { parseWatchList, parseSampleOption } from "./lib/traceWatch";
 import {
   parseErrorLines,
   stripParamBlock,
@@ -14,6 +16,7 @@ import {
   findErrorReference,
   needsStylesheetReset,
   checkWellFormed,
+  formatTimings,
 } from "./lib/workspaceUtils";
 import { templateToWorkspace, findTemplate, STARTER_STYLESHEET } from "./lib/templates";
 import { findUnfinishedExpression } from "./lib/unfinishedExpression";
@@ -486,6 +489,7 @@ function defaultWorkspaceStatus() {
     result: "",
     duration: null,
     serverMs: null,
+    serverTimings: null,
     error: "",
     errorLines: [],
     isServerError: false,
@@ -493,6 +497,9 @@ function defaultWorkspaceStatus() {
     traceEntries: [],
     traceEngine: "",
     hotspots: [],
+    expressions: [],
+    flame: "",
+    traceTruncated: null,
     traceText: "",
     showRawTrace: false,
     resultView: "source",
@@ -822,6 +829,15 @@ export default function App() {
   const [traceEnabled, setTraceEnabled] = useState(() => {
     try { return JSON.parse(localStorage.getItem("traceEnabled") || "false"); } catch { return false; }
   });
+  const [traceWatch, setTraceWatch] = useState(() => {
+    try { return localStorage.getItem("traceWatch") || ""; } catch { return ""; }
+  });
+  // Compared as JSON so that edits which watch the same things (spacing,
+  // a trailing comma) do not rerun the transform.
+  const traceWatchKey = useMemo(() => JSON.stringify(parseWatchList(traceWatch)), [traceWatch]);
+  const [traceSample, setTraceSample] = useState(() => {
+    try { return localStorage.getItem("traceSample") || ""; } catch { return ""; }
+  });
   const [traceCollapsed, setTraceCollapsed] = useState(false);
   const [traceHover, setTraceHover] = useState(null);
   const [traceNameWidth, setTraceNameWidth] = useState(240);
@@ -965,6 +981,14 @@ export default function App() {
     try { localStorage.setItem("traceEnabled", JSON.stringify(traceEnabled)); } catch {}
   }, [traceEnabled]);
 
+  useEffect(() => {
+    try { localStorage.setItem("traceWatch", traceWatch); } catch {}
+  }, [traceWatch]);
+
+  useEffect(() => {
+    try { localStorage.setItem("traceSample", traceSample); } catch {}
+  }, [traceSample]);
+
   useEffect(() => {
     if (typeof document === "undefined") return;
     document.documentElement.dataset.theme = theme;
@@ -1075,6 +1099,7 @@ export default function App() {
     result,
     duration,
     serverMs,
+    serverTimings,
     error,
     errorLines,
     isServerError,
@@ -1082,6 +1107,9 @@ export default function App() {
     traceEntries,
     traceEngine,
     hotspots,
+    expressions,
+    flame,
+    traceTruncated,
     traceText,
     showRawTrace,
     resultView,
@@ -1447,7 +1475,8 @@ export default function App() {
     const chunks = traceEntries.map((entry) => {
       const name = (entry?.name ?? "").toString();
       const value = (entry?.value ?? "").toString();
-      return `${name}\n${value}`.trim();
+      const sample = entry?.sample ? ` [${entry.sample}]` : "";
+      return `${name}${sample}\n${value}`.trim();
     }).filter(Boolean);
     let combined = chunks.join("\n\n");
     if (showRawTrace && traceText) {
@@ -1657,6 +1686,8 @@ export default function App() {
           version: ver,
           parameters: paramObj,
           trace: traceEnabled,
+          ...(traceEnabled && traceWatchKey !== "null" ? { watch: JSON.parse(traceWatchKey) } : {}),
+          ...(traceEnabled && parseSampleOption(traceSample) ? { sample: parseSampleOption(traceSample) } : {}),
         }),
       });
       if (!res.ok) {
@@ -1682,6 +1713,9 @@ export default function App() {
           result: "",
           traceEntries: [],
           hotspots: [],
+          expressions: [],
+          flame: "",
+          traceTruncated: null,
           traceText: "",
           showRawTrace: false,
           resultView: "source",
@@ -1705,6 +1739,7 @@ export default function App() {
         result: data.result,
         duration: roundTripMs,
         serverMs: data.duration_ms,
+        serverTimings: data.timings || null,
         error: "",
         isRunning: false,
         errorLines: [],
@@ -1719,6 +1754,9 @@ export default function App() {
         traceEntries: newEntries,
         traceEngine: traceEnabled ? (data.trace_engine || "") : "",
         hotspots: traceEnabled ? (data.hotspots || []) : [],
+        expressions: traceEnabled ? (data.expressions || []) : [],
+        flame: traceEnabled ? (data.flame || "") : "",
+        traceTruncated: traceEnabled ? (data.trace_truncated || null) : null,
         traceText: traceEnabled ? (data.trace_text || "") : "",
       }));
       requestAnimationFrame(() => {
@@ -1800,7 +1838,7 @@ export default function App() {
 
     runTransform(xsltText, activeTab.version, activeTab.params, activeTab.id);
     return undefined;
-  }, [activeTab, traceEnabled, autoRunReady, forceRun]);
+  }, [activeTab, traceEnabled, traceWatchKey, traceSample, autoRunReady, forceRun]);
 
   useEffect(() => {
     syncParams();
@@ -2590,7 +2628,7 @@ export default function App() {
             </div>
             {traceEnabled && (
               <div className="trace-panel" style={{ width: traceCollapsed ? '2rem' : '30%' }}>
-                <div className="trace-header" style={{ display: 'flex', alignItems: 'center', gap: '0.5rem' }}>
+                <div className="trace-header" style={{ display: 'flex', flexWrap: 'wrap', alignItems: 'center', gap: '0.5rem' }}>
                   <button
                     className="icon-button"
                     title={traceCollapsed ? 'Show trace' : 'Hide trace'}
@@ -2634,22 +2672,54 @@ export default function App() {
                           </button>
                         )}
                       </div>
+                      <input
+                        className="trace-watch"
+                        type="text"
+                        value={traceWatch}
+                        onChange={(e) => setTraceWatch(e.target.value)}
+                        placeholder="Watch: $var, 12, 30-45, template pattern or name"
+                        title="Trace only these variables, the variables declared on these lines, or those of these templates. Empty traces everything."
+                        aria-label="Trace watch list"
+                        spellCheck={false}
+                      />
+                      <select
+                        className="trace-sample"
+                        value={traceSample}
+                        onChange={(e) => setTraceSample(e.target.value)}
+                        title="For long loops: capture only some evaluations of each variable, plus its first and last. Hot spots stay exact."
+                        aria-label="Trace sampling"
+                      >
+                        <option value="">Every value</option>
+                        <option value="every:10">1 in 10</option>
+                        <option value="every:100">1 in 100</option>
+                        <option value="every:1000">1 in 1000</option>
+                        <option value="random:20">20 at random</option>
+                      </select>
                       {!traceCollapsed && traceEngine === "unavailable" && (
                         <p className="trace-engine-note">
                           Trace isn't available for XSLT 1.0: the JDK's XSLTC
                           engine has no tracing hook. Switch to 2.0/3.0 to trace.
                         </p>
                       )}
-                      {!traceCollapsed && traceEngine === "saxon12-compat" && (
+                      {!traceCollapsed && traceEngine === "saxon9" && (
+                        <p className="trace-engine-note">
+                          XSLT 2.0 traces come from Saxon 9.6, which reports variables
+                          and hot spots only. The flame graph and the slowest XPath
+                          expressions need XSLT 3.0 (Saxon 12).
+                        </p>
+                      )}
+                      {!traceCollapsed && traceTruncated && (
                         <p className="trace-engine-note">
-                          Traced runs of XSLT 2.0 execute on Saxon 12 in
-                          2.0-compatibility mode; untraced runs use Saxon 9.
+                          The trace reached its {Math.round(traceTruncated.max_bytes / 1048576)} MB
+                          limit; {traceTruncated.skipped.toLocaleString()} more variable
+                          {traceTruncated.skipped === 1 ? " was" : "s were"} not captured.
+                          A watch list narrows the trace to what you need.
                         </p>
                       )}
                       {!traceCollapsed && hotspots?.length > 0 && (
                         <div className="hotspots">
                           <p className="hotspots-title">
-                            Hot spots — how often each construct actually ran
+                            Hot spots — where the time went, and how often each construct ran
                           </p>
                           <ul>
                             {hotspots.slice(0, 8).map((h, i) => (
@@ -2658,6 +2728,34 @@ export default function App() {
                                 <span className="hotspot-kind">{h.kind}</span>
                                 {h.label && <code className="hotspot-label">{h.label}</code>}
                                 {h.line > 0 && <span className="hotspot-line">line {h.line}</span>}
+                                {h.inclusive_ms > 0 && (
+                                  <span
+                                    className="hotspot-time"
+                                    title="Self time excludes the constructs it called; total includes them"
+                                  >
+                                    {(h.self_ms || 0).toFixed(1)} ms self · {h.inclusive_ms.toFixed(1)} ms total
+                                  </span>
+                                )}
+                              </li>
+                            ))}
+                          </ul>
+                          {flame && <FlameGraph stacks={flame} />}
+                        </div>
+                      )}
+                      {!traceCollapsed && expressions?.length > 0 && (
+                        <div className="hotspots">
+                          <p className="hotspots-title">
+                            Slowest XPath expressions — total time, including what they contain
+                          </p>
+                          <ul>
+                            {expressions.slice(0, 10).map((e, i) => (
+                              <li key={i}>
+                                <span className="hotspot-count">{e.total_ms.toFixed(1)} ms</span>
+                                <code className="hotspot-label">{e.expression}</code>
+                                <span className="hotspot-line">
+                                  {e.where && `${e.where} · `}line {e.line}
+                                  {e.column > 0 && `, col ${e.column}`} · {e.count.toLocaleString()}×
+                                </span>
                               </li>
                             ))}
                           </ul>
@@ -2699,6 +2797,7 @@ export default function App() {
                                       >
                                         {namePreview || EMPTY_SYMBOL}
                                       </pre>
+                                      {t?.sample && <span className="trace-sample-label">{t.sample}</span>}
                                     </div>
                                   </td>
                                   <td className="trace-value">
@@ -2708,6 +2807,14 @@ export default function App() {
                                       onMouseLeave={hideTraceTooltip}
                                     >
                                       <pre className="trace-preview trace-value-preview">{valuePreview || EMPTY_SYMBOL}</pre>
+                                      {t?.truncated && (
+                                        <span
+                                          className="trace-truncated"
+                                          title="The server cut this value off at its size limit"
+                                        >
+                                          cut off
+                                        </span>
+                                      )}
                                     </div>
                                   </td>
                                 </tr>
@@ -2985,7 +3092,13 @@ export default function App() {
                 <div className="success-box" role="status" aria-live="polite">
                   Success in {duration} ms
                   {serverMs != null && (
-                    <span className="success-server-time" title="Server-side Saxon compile + transform time (excludes network)">
+                    <span
+                      className="success-server-time"
+                      title={
+                        formatTimings(serverTimings) ||
+                        "Server-side Saxon compile + transform time (excludes network)"
+                      }
+                    >
                       {" "}· Saxon {serverMs} ms
                     </span>
                   )}
@@ -0,0 +1,49 @@
+import { useMemo } from "react";
+import { parseCollapsedStacks, formatMicros } from "../lib/flameGraph";
+
+// Frames narrower than this share of the whole run are left out: they would be
+// slivers too thin to read or hover.
+const MIN_FRACTION = 0.005;
+
+function Frame({ node, total }) {
+  const children = node.children.filter((c) => c.value / total >= MIN_FRACTION);
+  return (
+    <div className="flame-frame" style={{ flexGrow: node.value }}>
+      <div
+        className="flame-bar"
+        title={`${node.name}\n${formatMicros(node.value)} total, ${formatMicros(node.self)} self (${
+          ((node.value / total) * 100).toFixed(1)
+        }%)`}
+      >
+        {node.name}
+      </div>
+      {children.length > 0 && (
+        <div className="flame-children">
+          {children.map((c) => (
+            <Frame key={c.name} node={c} total={total} />
+          ))}
+          {/* Self time and dropped slivers keep the children in proportion. */}
+          <div style={{ flexGrow: node.value - children.reduce((sum, c) => sum + c.value, 0) }} />
+        </div>
+      )}
+    </div>
+  );
+}
+
+/**
+ * An icicle-style flame graph of a traced run: callers on top, what they
+ * called below, each frame as wide as the time spent in it.
+ */
+export default function FlameGraph({ stacks }) {
+  const root = useMemo(() => parseCollapsedStacks(stacks), [stacks]);
+  if (root.value <= 0) return null;
+  return (
+    <div className="flame-graph" aria-label="Flame graph of the traced run">
+      <div className="flame-children">
+        {root.children.map((c) => (
+          <Frame key={c.name} node={c} total={root.value} />
+        ))}
+      </div>
+    </div>
+  );
+}
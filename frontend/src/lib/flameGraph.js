@@ -0,0 +1,43 @@
+// Collapsed stacks ("frame;frame;frame 1234" per line, as the backend forwards
+// a traced run's profile) folded back into the call tree a flame graph draws.
+
+/**
+ * Parse collapsed stacks into a tree of { name, value, self, children }.
+ * value is the node's total (its own self time plus its children's), in the
+ * units of the input — microseconds from the backend. Repeated stacks add up;
+ * malformed lines are skipped. Children are sorted by name, as flame graphs
+ * conventionally are, so the same stylesheet always draws the same picture.
+ */
+export function parseCollapsedStacks(text) {
+  const root = { name: "all", value: 0, self: 0, children: [] };
+  for (const line of String(text ?? "").split("\n")) {
+    const sep = line.lastIndexOf(" ");
+    if (sep <= 0) continue;
+    const amount = Number(line.slice(sep + 1));
+    if (!Number.isFinite(amount) || amount <= 0) continue;
+    let node = root;
+    node.value += amount;
+    for (const name of line.slice(0, sep).split(";")) {
+      let child = node.children.find((c) => c.name === name);
+      if (!child) {
+        child = { name, value: 0, self: 0, children: [] };
+        node.children.push(child);
+      }
+      child.value += amount;
+      node = child;
+    }
+    node.self += amount;
+  }
+  const sort = (node) => {
+    node.children.sort((a, b) => (a.name < b.name ? -1 : a.name > b.name ? 1 : 0));
+    node.children.forEach(sort);
+  };
+  sort(root);
+  return root;
+}
+
+/** Microseconds as the flame graph's tooltips show them. */
+export function formatMicros(us) {
+  if (us >= 1000) return `${(us / 1000).toFixed(us >= 100000 ? 0 : 1)} ms`;
+  return `${Math.round(us)} µs`;
+}
@@ -0,0 +1,40 @@
+import { describe, it, expect } from "vitest";
+import { parseCollapsedStacks, formatMicros } from "./flameGraph";
+
+describe("parseCollapsedStacks", () => {
+  it("builds totals from self time up the stack", () => {
+    const root = parseCollapsedStacks("a 10\na;b 30\na;b;c 5\na;d 20\n");
+    expect(root.value).toBe(65);
+    const [a] = root.children;
+    expect(a).toMatchObject({ name: "a", value: 65, self: 10 });
+    expect(a.children.map((c) => [c.name, c.value, c.self])).toEqual([
+      ["b", 35, 30],
+      ["d", 20, 20],
+    ]);
+  });
+
+  it("adds up repeated stacks and skips malformed lines", () => {
+    const root = parseCollapsedStacks("a;b 4\nnonsense\na;b 6\na;b x\n 3");
+    expect(root.value).toBe(10);
+    expect(root.children[0].children[0]).toMatchObject({ name: "b", self: 10 });
+  });
+
+  it("keeps frame names that contain spaces", () => {
+    const root = parseCollapsedStacks("xsl:template / (line 3);xsl:function f:fib (line 2) 12");
+    expect(root.children[0].name).toBe("xsl:template / (line 3)");
+    expect(root.children[0].children[0].name).toBe("xsl:function f:fib (line 2)");
+  });
+
+  it("returns an empty tree for no input", () => {
+    expect(parseCollapsedStacks("")).toMatchObject({ value: 0, children: [] });
+    expect(parseCollapsedStacks(undefined).value).toBe(0);
+  });
+});
+
+describe("formatMicros", () => {
+  it("switches to milliseconds past one", () => {
+    expect(formatMicros(420)).toBe("420 µs");
+    expect(formatMicros(1520)).toBe("1.5 ms");
+    expect(formatMicros(250000)).toBe("250 ms");
+  });
+});
@@ -0,0 +1,63 @@
+// What a traced run should capture: the watch-list, typed as one
+// comma-separated line in the trace panel, and how to sample the values.
+
+/**
+ * Parse "$total, 12, 30-45, item[@type], main" into the watch the backend
+ * takes: { variables, lines, templates }. "$name" is a variable, "12" or
+ * "30-45" a line range, anything else a template's match pattern or name.
+ * Commas inside brackets, parentheses or quotes belong to a pattern. Returns
+ * null when there is nothing to watch, so the run traces everything.
+ */
+export function parseWatchList(text) {
+  const watch = { variables: [], lines: [], templates: [] };
+  for (const entry of splitEntries(String(text ?? ""))) {
+    if (entry.startsWith("$")) {
+      if (entry.length > 1) watch.variables.push(entry.slice(1));
+    } else if (/^[1-9]\d*\s*(-\s*[1-9]\d*)?$/.test(entry)) {
+      watch.lines.push(entry.replace(/\s+/g, ""));
+    } else {
+      watch.templates.push(entry);
+    }
+  }
+  if (!watch.variables.length && !watch.lines.length && !watch.templates.length) {
+    return null;
+  }
+  return watch;
+}
+
+function splitEntries(text) {
+  const entries = [];
+  let depth = 0;
+  let quote = "";
+  let start = 0;
+  for (let i = 0; i < text.length; i++) {
+    const ch = text[i];
+    if (quote) {
+      if (ch === quote) quote = "";
+    } else if (ch === "'" || ch === '"') {
+      quote = ch;
+    } else if (ch === "[" || ch === "(") {
+      depth++;
+    } else if ((ch === "]" || ch === ")") && depth > 0) {
+      depth--;
+    } else if (ch === "," && depth === 0) {
+      entries.push(text.slice(start, i));
+      start = i + 1;
+    }
+  }
+  entries.push(text.slice(start));
+  return entries.map((e) => e.trim()).filter(Boolean);
+}
+
+/**
+ * The trace sampling picker's value ("every:100", "random:20", or "" for
+ * every value) as the sample the backend takes, or null.
+ */
+export function parseSampleOption(option) {
+  const [mode, count] = String(option ?? "").split(":");
+  const n = Number(count);
+  if (!Number.isInteger(n) || n <= 0) return null;
+  if (mode === "every") return n > 1 ? { every: n } : null;
+  if (mode === "random") return { random: n };
+  return null;
+}
@@ -0,0 +1,40 @@
+import { describe, it, expect } from "vitest";
+import { parseWatchList, parseSampleOption } from "./traceWatch";
+
+describe("parseWatchList", () => {
+  it("sorts entries into variables, lines and templates", () => {
+    expect(parseWatchList("$total, 12, 30 - 45, item, main")).toEqual({
+      variables: ["total"],
+      lines: ["12", "30-45"],
+      templates: ["item", "main"],
+    });
+  });
+
+  it("keeps commas inside predicates and quotes with the pattern", () => {
+    expect(parseWatchList("item[contains(@a, 'x,y')], row")).toEqual({
+      variables: [],
+      lines: [],
+      templates: ["item[contains(@a, 'x,y')]", "row"],
+    });
+  });
+
+  it("returns null when there is nothing to watch", () => {
+    expect(parseWatchList("")).toBeNull();
+    expect(parseWatchList(" , $ ,")).toBeNull();
+    expect(parseWatchList(undefined)).toBeNull();
+  });
+});
+
+describe("parseSampleOption", () => {
+  it("turns picker values into samples", () => {
+    expect(parseSampleOption("every:100")).toEqual({ every: 100 });
+    expect(parseSampleOption("random:20")).toEqual({ random: 20 });
+  });
+
+  it("returns null for every value", () => {
+    expect(parseSampleOption("")).toBeNull();
+    expect(parseSampleOption("every:1")).toBeNull();
+    expect(parseSampleOption("every:x")).toBeNull();
+    expect(parseSampleOption("other:5")).toBeNull();
+  });
+});
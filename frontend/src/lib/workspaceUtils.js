@@ -253,3 +253,17 @@ export function checkWellFormed(text) {
     line: lineMatch ? parseInt(lineMatch[1], 10) : null,
   };
 }
+
+const TIMING_PHASES = ["queue", "decode", "compile", "parse", "params", "transform", "serialize"];
+
+// The daemon's per-phase breakdown ({ queueMs, compileMs, ... }) as one line,
+// e.g. "compile 2.3 ms · transform 0.8 ms", in the order a request goes
+// through them. Phases under 0.05 ms would only read as "0 ms" and are left
+// out. Returns "" when there is nothing to show (cached results, older
+// backends).
+export function formatTimings(timings) {
+  if (!timings) return "";
+  return TIMING_PHASES.filter((phase) => timings[`${phase}Ms`] >= 0.05)
+    .map((phase) => `${phase} ${timings[`${phase}Ms`].toFixed(1)} ms`)
+    .join(" · ");
+}
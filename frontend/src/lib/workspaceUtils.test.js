@@ -3,6 +3,7 @@ import {
   addParams,
   detectVersionUpgradeHint,
   findErrorReference,
+  formatTimings,
   needsStylesheetReset,
   checkWellFormed,
   extractParamNames,
@@ -161,3 +162,15 @@ describe("checkWellFormed", () => {
     expect(checkWellFormed("   ")).toBeNull();
   });
 });
+
+describe("formatTimings", () => {
+  it("lists the phases in request order, skipping ones too short to show", () => {
+    expect(
+      formatTimings({ transformMs: 0.84, queueMs: 0.01, compileMs: 2.31, parseMs: 0, serializeMs: 0.12 }),
+    ).toBe("compile 2.3 ms · transform 0.8 ms · serialize 0.1 ms");
+  });
+  it("is empty without timings", () => {
+    expect(formatTimings(undefined)).toBe("");
+    expect(formatTimings({})).toBe("");
+  });
+});
@@ -0,0 +1,100 @@
+#!/bin/sh
+# compare_xalan_native.sh
+# The XSLT 1.0 daemon on the JVM (XSLTC, with its AppCDS archive if there is
+# one) against its native-image build (interpretive Xalan): time to /ready,
+# RSS when ready and after load, and throughput for the first and for a
+# later batch of requests, since the JVM speeds up as it warms and the
+# native build does not. Runs inside the xalan-native image:
+#
+#   docker run --rm --entrypoint sh -v "$PWD/scripts:/scripts" \
+#     xslt-playground-backend:xalan-native /scripts/compare_xalan_native.sh [requests] [concurrency]
+#
+# Both daemons get the same heap cap as in start.sh.
+set -eu
+
+REQUESTS=${1:-400}
+CONCURRENCY=${2:-4}
+HEAP_MB=${XALAN_HEAP_MB:-128}
+CDS_DIR=${CDS_DIR:-/opt/cds}
+NATIVE=${NATIVE:-/opt/xalan-native/xalan-daemon}
+URL=http://127.0.0.1:8082
+WORK=$(mktemp -d)
+trap 'rm -rf "$WORK"' EXIT
+
+now_ms() {
+  echo $(( $(date +%s%N) / 1000000 ))
+}
+
+rss_mb() {
+  awk '/^VmRSS:/ { printf "%.1f", $2 / 1024 }' "/proc/$1/status"
+}
+
+# A grouping and sorting stylesheet over 500 orders: enough work per request
+# that the daemon, not curl, is what gets measured. Single-quoted attributes
+# and &quot; keep it free of characters JSON would need escaped.
+XSLT=$(tr -d '\n' <<'EOF'
+<xsl:stylesheet version='1.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>
+<xsl:key name='by-country' match='order' use='@country'/>
+<xsl:template match='/'><report>
+<xsl:for-each select='orders/order[generate-id() = generate-id(key(&quot;by-country&quot;, @country)[1])]'>
+<xsl:sort select='@country'/>
+<country code='{@country}' orders='{count(key(&quot;by-country&quot;, @country))}'
+ total='{format-number(sum(key(&quot;by-country&quot;, @country)/@total), &quot;#0.00&quot;)}'/>
+</xsl:for-each></report></xsl:template></xsl:stylesheet>
+EOF
+)
+{
+  printf '{"xslt":"%s","source":"<orders>' "$XSLT"
+  i=0
+  while [ $i -lt 500 ]; do
+    printf "<order id='%d' country='C%d' total='%d.%02d'/>" $i $((i % 17)) $((i * 7 % 300)) $((i % 100))
+    i=$((i + 1))
+  done
+  printf '</orders>","parameters":{},"fileParameters":{}}'
+} > "$WORK/request.json"
+
+# batch — REQUESTS POSTs, CONCURRENCY at a time; prints requests per second
+batch() {
+  : > "$WORK/urls"
+  i=0
+  while [ $i -lt "$REQUESTS" ]; do
+    echo "url = \"$URL/transform\"" >> "$WORK/urls"
+    echo "output = \"/dev/null\"" >> "$WORK/urls"
+    i=$((i + 1))
+  done
+  START=$(now_ms)
+  curl -s --no-progress-meter -Z --parallel-max "$CONCURRENCY" --data-binary "@$WORK/request.json" \
+    -H 'Content-Type: application/json' -w '%{http_code}\n' -K "$WORK/urls" > "$WORK/codes"
+  ELAPSED=$(( $(now_ms) - START ))
+  FAILED=$(grep -vc '^200$' "$WORK/codes" || true)
+  [ "$FAILED" -eq 0 ] || echo "  $FAILED of $REQUESTS requests failed" >&2
+  awk -v n="$REQUESTS" -v ms="$ELAPSED" 'BEGIN { printf "%.0f", n * 1000 / ms }'
+}
+
+# run LABEL COMMAND... — start the daemon, measure, stop it
+run() {
+  LABEL=$1
+  shift
+  START=$(now_ms)
+  "$@" > "$WORK/daemon.log" 2>&1 &
+  PID=$!
+  until curl -sf -o /dev/null "$URL/ready"; do sleep 0.01; done
+  READY_MS=$(( $(now_ms) - START ))
+  READY_RSS=$(rss_mb $PID)
+  FIRST=$(batch)
+  batch > /dev/null
+  LATER=$(batch)
+  LOADED_RSS=$(rss_mb $PID)
+  kill $PID; wait $PID 2> /dev/null || true
+  printf "%-14s /ready %5d ms %6s MB   first %5s req/s   later %5s req/s   after load %6s MB\n" \
+    "$LABEL" "$READY_MS" "$READY_RSS" "$FIRST" "$LATER" "$LOADED_RSS"
+}
+
+CDS_OPT=""
+if [ -f "$CDS_DIR/XalanDaemon.jsa" ]; then
+  CDS_OPT="-XX:SharedArchiveFile=$CDS_DIR/XalanDaemon.jsa"
+fi
+# shellcheck disable=SC2086
+run "jvm (xsltc)" java -Xms$((HEAP_MB / 4))m -Xmx${HEAP_MB}m -XX:+UseSerialGC $CDS_OPT \
+  -cp '/opt/xalan/*' com.xsltplayground.XalanDaemon
+run "native" "$NATIVE" -Xmx${HEAP_MB}m
@@ -0,0 +1,90 @@
+#!/usr/bin/env node
+/**
+ * Exports the frontend's template gallery as the daemons' JIT warm-up corpus
+ * (backend/ext/warmup/corpus.json). Re-run after changing the gallery:
+ *
+ *   node scripts/export_warmup_corpus.mjs
+ *
+ * Each template becomes a daemon request shaped the way the Go proxy builds
+ * one: the XML parameter it would pick becomes the source, other XML values
+ * become fileParameters, the rest stay string parameters. A few extra entries
+ * cover the tib: extension functions, which no gallery template calls.
+ */
+import { readFile, writeFile, mkdir } from "node:fs/promises";
+import { dirname, join } from "node:path";
+import { fileURLToPath } from "node:url";
+
+const ROOT = join(dirname(fileURLToPath(import.meta.url)), "..");
+const TEMPLATES_JS = join(ROOT, "frontend", "src", "lib", "templates.js");
+const OUT = join(ROOT, "backend", "ext", "warmup", "corpus.json");
+
+// Same preference order as pickSourceXML in backend/src/main.go.
+const SOURCE_KEYS = ["input", "source", "xml", "document", "input1"];
+
+const TIB_NS = "http://www.tibco.com/bw/xslt/custom-functions";
+
+const EXTRA = [
+  {
+    id: "tib-functions",
+    versions: ["2.0", "3.0"],
+    xslt: `<xsl:stylesheet version="VERSION" xmlns:xsl="http://www.w3.org/1999/XSL/Transform" xmlns:tib="${TIB_NS}">
+  <xsl:output method="xml" indent="yes"/>
+  <xsl:template match="/">
+    <out>
+      <xsl:for-each select="orders/order">
+        <order id="{tib:pad-front(@id, 4, '0')}"
+               day="{tib:add-to-date('2024-01-31', 0, 1, 0)}"
+               code="{tib:string-to-base64(@country, 'UTF-8')}"
+               rounded="{tib:round-fraction(number(@total), 1)}"
+               last="{tib:substring-after-last('a.b.c', '.')}"/>
+      </xsl:for-each>
+    </out>
+  </xsl:template>
+</xsl:stylesheet>`,
+  },
+];
+
+function looksLikeXML(value) {
+  const trimmed = value.trim();
+  return trimmed.startsWith("<") || trimmed.startsWith("&lt;");
+}
+
+function toRequest(id, version, xslt, params) {
+  const values = Object.fromEntries(params.map((p) => [p.name, p.value]));
+  let sourceKey = SOURCE_KEYS.find((k) => k in values && looksLikeXML(values[k]));
+  if (!sourceKey) {
+    sourceKey = Object.keys(values).find((k) => looksLikeXML(values[k]));
+  }
+  const parameters = {};
+  const fileParameters = {};
+  for (const [name, value] of Object.entries(values)) {
+    if (name === sourceKey) continue;
+    if (looksLikeXML(value)) fileParameters[name] = value.trim();
+    else parameters[name] = value;
+  }
+  return {
+    id,
+    version,
+    xslt,
+    source: sourceKey ? values[sourceKey].trim() : "",
+    parameters,
+    fileParameters,
+  };
+}
+
+// templates.js is an ES module but the frontend package is not, so load it
+// from its text rather than by path.
+const source = await readFile(TEMPLATES_JS, "utf8");
+const { TEMPLATES } = await import(`data:text/javascript,${encodeURIComponent(source)}`);
+
+const orders = TEMPLATES.find((t) => t.id === "params").params;
+const corpus = TEMPLATES.map((t) => toRequest(t.id, t.version, t.xslt, t.params));
+for (const extra of EXTRA) {
+  for (const version of extra.versions) {
+    corpus.push(toRequest(`${extra.id}-${version}`, version, extra.xslt.replace("VERSION", version), orders.slice(0, 1)));
+  }
+}
+
+await mkdir(dirname(OUT), { recursive: true });
+await writeFile(OUT, JSON.stringify(corpus, null, 2) + "\n");
+console.log(`wrote ${corpus.length} entries to ${OUT}`);
@@ -0,0 +1,81 @@
+#!/bin/sh
+# measure_startup.sh
+# Startup cost of each XSLT daemon launched cold, with its AppCDS archive,
+# and restored from its CRaC checkpoint: milliseconds from launch to the
+# first 200 from /health and from /ready, and resident memory (VmRSS) at
+# each point. Runs inside the backend image, where the jars, the corpus,
+# /opt/cds (from `start.sh train-cds`) and /opt/crac (from `start.sh
+# checkpoint`, CRaC JDK only) live:
+#
+#   docker run --rm --entrypoint sh -v "$PWD/scripts:/scripts" \
+#     xslt-backend /scripts/measure_startup.sh [runs]
+#
+# Launch lines mirror start.sh; keep the two in step, or the archive is
+# silently not used. Each configuration is started RUNS times (default 5) and
+# the mean is printed; configurations with no archive or image are skipped.
+set -eu
+
+RUNS=${1:-5}
+CDS_DIR=${CDS_DIR:-/opt/cds}
+CRAC_DIR=${CRAC_DIR:-/opt/crac}
+
+now_ms() {
+  echo $(( $(date +%s%N) / 1000000 ))
+}
+
+rss_kb() {
+  awk '/^VmRSS:/ { print $2 }' "/proc/$1/status"
+}
+
+# measure CLASS HEALTH_URL READY_URL JAVA_ARGS...
+# prints: health_ms health_rss_kb ready_ms ready_rss_kb
+measure() {
+  CLASS=$1; HEALTH=$2; READY=$3
+  shift 3
+  START=$(now_ms)
+  java "$@" > /dev/null 2>&1 &
+  LAUNCHER=$!
+  until curl -sf -o /dev/null "$HEALTH"; do sleep 0.01; done
+  HEALTH_MS=$(( $(now_ms) - START ))
+  # A restored JVM is not the launcher's process, but it keeps the command
+  # line it was checkpointed with.
+  PID=$(pgrep -n -f "$CLASS")
+  HEALTH_RSS=$(rss_kb "$PID")
+  until curl -sf -o /dev/null "$READY"; do sleep 0.05; done
+  READY_MS=$(( $(now_ms) - START )); READY_RSS=$(rss_kb "$PID")
+  kill "$PID"; wait "$LAUNCHER" 2> /dev/null || true
+  echo "$HEALTH_MS $HEALTH_RSS $READY_MS $READY_RSS"
+}
+
+# report MODE JAVA_ARGS... — RUNS launches of $CLASS, averaged into one line
+report() {
+  MODE=$1
+  shift
+  i=0
+  while [ $i -lt "$RUNS" ]; do
+    measure "$CLASS" "$BASE/health" "$BASE/ready" "$@"
+    i=$((i + 1))
+  done | awk -v name="$NAME" -v mode="$MODE" '
+    { h += $1; hr += $2; r += $3; rr += $4; n++ }
+    END {
+      printf "%-13s %-4s  /health %5d ms %6.1f MB   /ready %6d ms %6.1f MB\n",
+        name, mode, h / n, hr / n / 1024, r / n, rr / n / 1024
+    }'
+}
+
+# run NAME CLASS CLASSPATH BASE_URL
+run() {
+  NAME=$1; CLASS=$2; CP=$3; BASE=$4
+  report cold -XX:+UseSerialGC -cp "$CP" "$CLASS"
+  if [ -f "$CDS_DIR/$NAME.jsa" ]; then
+    report cds -XX:+UseSerialGC -XX:SharedArchiveFile="$CDS_DIR/$NAME.jsa" -cp "$CP" "$CLASS"
+  fi
+  if [ -d "$CRAC_DIR/$NAME" ]; then
+    report crac -XX:CRaCRestoreFrom="$CRAC_DIR/$NAME"
+  fi
+}
+
+run SaxonDaemon com.xsltplayground.SaxonDaemon '/opt/saxon12/*' http://127.0.0.1:8081
+run XalanDaemon com.xsltplayground.XalanDaemon '/opt/xalan/*' http://127.0.0.1:8082
+run Saxon2Daemon com.xsltplayground.Saxon2Daemon '/opt/saxon9/*' http://127.0.0.1:8083
+run EngineHost com.xsltplayground.server.EngineHost '/opt/host/*' http://127.0.0.1:8090/saxon12